@@ -0,0 +1,204 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab;
+
+import android.content.Context;
+
+import com.google.ar.core.AugmentedImage;
+import com.google.ar.core.TrackingState;
+import com.google.ar.sceneform.Scene;
+import com.google.ar.sceneform.rmslab.helpers.FrameProfiler;
+import com.google.ar.sceneform.rmslab.tracking.ImageRegistry;
+import com.google.ar.sceneform.rmslab.tracking.ImageTracker;
+import com.google.ar.sceneform.rmslab.tracking.TrackingStatus;
+
+/**
+ * Owns the anchor and node of every augmented image in the scene.
+ *
+ * <p>When to create, hold, fade and release content is decided by the {@link ImageTracker}; this
+ * class applies those decisions to the scene. Each tracked image gets one {@link
+ * AugmentedImageNode}, anchored at the image center. Held content keeps its last pose, and once it
+ * is released its anchor is detached, so ARCore no longer updates it, and its node removed from
+ * the scene and returned to the {@link NodePool}.
+ */
+public class AnchorManager implements ImageTracker.Listener<AugmentedImage> {
+  private final Context context;
+  private final Scene scene;
+  private final RenderableLoader renderableLoader;
+  private final PlacementQueue placementQueue;
+  private final NodePool nodePool;
+
+  // Receives the time spent creating nodes, if set.
+  private FrameProfiler profiler;
+  private int nodeCreationStage;
+
+  // Node of each image in the scene, keyed by the index of the image in the database, so content
+  // held for a lost image can be revived by a new trackable for the same image.
+  private final ImageRegistry<AugmentedImageNode> nodes = new ImageRegistry<>();
+
+  public AnchorManager(
+      Context context,
+      Scene scene,
+      RenderableLoader renderableLoader,
+      PlacementQueue placementQueue,
+      NodePool nodePool) {
+    this.context = context;
+    this.scene = scene;
+    this.renderableLoader = renderableLoader;
+    this.placementQueue = placementQueue;
+    this.nodePool = nodePool;
+  }
+
+  /** Reports the time spent creating nodes to the profiler, as a nested stage. */
+  public void setProfiler(FrameProfiler profiler, int nodeCreationStage) {
+    this.profiler = profiler;
+    this.nodeCreationStage = nodeCreationStage;
+  }
+
+  /** Maps an ARCore tracking state to the one used by the tracking logic. */
+  public static TrackingStatus toStatus(TrackingState state) {
+    switch (state) {
+      case TRACKING:
+        return TrackingStatus.TRACKING;
+      case PAUSED:
+        return TrackingStatus.PAUSED;
+      default:
+        return TrackingStatus.STOPPED;
+    }
+  }
+
+  @Override
+  public void onDetected(int index) {
+    renderableLoader.load(index);
+  }
+
+  /** Anchors a pooled or new node on the image, unless there is no content for it. */
+  @Override
+  public void onAcquired(int index, AugmentedImage image) {
+    long startNanos = System.nanoTime();
+    AugmentedImageNode node = nodePool.obtain(index);
+    if (node == null) {
+      node = new AugmentedImageNode(context);
+    }
+    if (!node.setImage(image, index)) {
+      // Nothing to show; a pooled node goes back to the pool.
+      nodePool.recycle(node);
+      return;
+    }
+    nodes.put(index, node);
+    scene.addChild(node);
+    renderableLoader.markTracked(index);
+    if (profiler != null) {
+      profiler.add(nodeCreationStage, System.nanoTime() - startNanos);
+    }
+  }
+
+  /** Revives held content in place, re-anchoring it if the old trackable stopped. */
+  @Override
+  public void onRevived(int index, AugmentedImage image) {
+    AugmentedImageNode node = nodes.get(index);
+    if (node == null) {
+      return;
+    }
+    if (node.getAnchor() == null || !image.equals(node.getImage())) {
+      node.detach();
+      if (!node.setImage(image, index)) {
+        // The content is gone, so the held node is of no use.
+        onReleased(index);
+        return;
+      }
+    }
+    node.setHeld(false, false);
+    renderableLoader.markTracked(index);
+  }
+
+  /** A STOPPED image can no longer update its anchor, so the anchor is detached right away. */
+  @Override
+  public void onStopped(int index) {
+    AugmentedImageNode node = nodes.get(index);
+    if (node != null) {
+      node.detach();
+    }
+  }
+
+  @Override
+  public void onHeld(int index) {
+    AugmentedImageNode node = nodes.get(index);
+    if (node != null) {
+      node.setHeld(true, false);
+    }
+  }
+
+  @Override
+  public void onFaded(int index) {
+    AugmentedImageNode node = nodes.get(index);
+    if (node != null) {
+      node.setHeld(true, true);
+    }
+  }
+
+  /** Detaches the anchor of the image, removes its node and returns the node to the pool. */
+  @Override
+  public void onReleased(int index) {
+    AugmentedImageNode node = nodes.remove(index);
+    if (node != null) {
+      detach(node);
+    }
+  }
+
+  public AugmentedImageNode get(int index) {
+    return nodes.get(index);
+  }
+
+  public boolean isEmpty() {
+    return nodes.isEmpty();
+  }
+
+  /**
+   * Nodes of the images currently in the scene, including held ones. Iterate with {@link
+   * ImageRegistry#valueAt} to avoid allocating.
+   */
+  public ImageRegistry<AugmentedImageNode> getNodes() {
+    return nodes;
+  }
+
+  /** Number of anchors that ARCore is still updating. */
+  public int getLiveAnchorCount() {
+    int count = 0;
+    for (int i = 0; i < nodes.size(); i++) {
+      if (nodes.valueAt(i).getAnchor() != null) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /** Number of image nodes in the scene. */
+  public int getNodeCount() {
+    return nodes.size();
+  }
+
+  private void detach(AugmentedImageNode node) {
+    placementQueue.cancel(node);
+    if (node.getIndex() >= 0) {
+      renderableLoader.markStopped(node.getIndex());
+    }
+    node.detach();
+    scene.removeChild(node);
+    nodePool.recycle(node);
+  }
+}
@@ -33,7 +33,10 @@ import com.google.ar.sceneform.Scene;
 import com.google.ar.sceneform.rendering.ModelRenderable;
 import com.google.ar.sceneform.rendering.Renderable;
 import com.google.ar.sceneform.rendering.Texture;
+import com.google.ar.sceneform.rmslab.helpers.FrameProfiler;
 import com.google.ar.sceneform.ux.AugmentedFaceNode;
+import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -48,6 +51,14 @@ public class AugmentedFacesActivity extends AppCompatActivity {
 
   private static final double MIN_OPENGL_VERSION = 3.0;
 
+  // Stages of the face update listener timed by the frame profiler.
+  private static final int STAGE_GET_ALL_TRACKABLES = 0;
+  private static final int STAGE_NODE_CREATION = 1;
+  private static final int STAGE_NODE_REMOVAL = 2;
+
+  // File in the app's external files directory the frame times are written to on pause.
+  private static final String FRAME_TIMES_FILE = "face_frame_times.txt";
+
   private FaceArFragment arFragment;
 
   private ModelRenderable faceRegionsRenderable;
@@ -58,6 +69,14 @@ public class AugmentedFacesActivity extends AppCompatActivity {
 
   private final HashMap<AugmentedFace, AugmentedFaceNode> faceNodeMap = new HashMap<>();
 
+  // Histograms of the time spent in the face update listener, in total and per stage.
+  private final FrameProfiler frameProfiler =
+      new FrameProfiler("getAllTrackables", "nodeCreation", "nodeRemoval");
+
+  public FrameProfiler getFrameProfiler() {
+    return frameProfiler;
+  }
+
   @Override
   @SuppressWarnings({"AndroidApiChecker", "FutureReturnValueIgnored"})
   // CompletableFuture requires api level 24
@@ -108,8 +127,10 @@ public class AugmentedFacesActivity extends AppCompatActivity {
             return;
           }
 
+          frameProfiler.beginFrame();
           Collection<AugmentedFace> faceList =
               sceneView.getSession().getAllTrackables(AugmentedFace.class);
+          frameProfiler.mark(STAGE_GET_ALL_TRACKABLES);
 
           // Make new AugmentedFaceNodes for any new faces.
           for (AugmentedFace face : faceList) {
@@ -121,6 +142,7 @@ public class AugmentedFacesActivity extends AppCompatActivity {
               faceNodeMap.put(face, faceNode);
             }
           }
+          frameProfiler.mark(STAGE_NODE_CREATION);
 
           // Remove any AugmentedFaceNodes associated with an AugmentedFace that stopped tracking.
           Iterator<Map.Entry<AugmentedFace, AugmentedFaceNode>> iter =
@@ -134,9 +156,28 @@ public class AugmentedFacesActivity extends AppCompatActivity {
               iter.remove();
             }
           }
+          frameProfiler.mark(STAGE_NODE_REMOVAL);
+          frameProfiler.endFrame();
         });
   }
 
+  @Override
+  protected void onPause() {
+    Log.d(TAG, "Frame times:\n" + frameProfiler.summary());
+    // Written off the UI thread. Frames recorded after a resume may or may not make it in.
+    ((RmsLabApplication) getApplication())
+        .getDiagnosticsExecutor()
+        .execute(
+            () -> {
+              try {
+                frameProfiler.dump(new File(getExternalFilesDir(null), FRAME_TIMES_FILE));
+              } catch (IOException e) {
+                Log.e(TAG, "Unable to write frame times", e);
+              }
+            });
+    super.onPause();
+  }
+
   @Override
   protected void onSaveInstanceState(Bundle outState) {
     // TODO Auto-generated method stub
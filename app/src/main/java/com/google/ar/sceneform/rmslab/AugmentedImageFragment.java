@@ -16,27 +16,32 @@
 
 package com.google.ar.sceneform.rmslab;
 
+import android.app.Activity;
 import android.app.ActivityManager;
 import android.content.Context;
-import android.content.res.AssetManager;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
+import com.google.ar.core.AugmentedImage;
 import com.google.ar.core.AugmentedImageDatabase;
 import com.google.ar.core.Config;
 import com.google.ar.core.Session;
 import com.google.ar.sceneform.rmslab.helpers.SnackbarHelper;
 import com.google.ar.sceneform.ux.ArFragment;
 
-import java.io.IOException;
-import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * Extend the ArFragment to customize the ARCore session configuration to include Augmented Images.
@@ -44,22 +49,40 @@ import java.io.InputStream;
 public class AugmentedImageFragment extends ArFragment {
   private static final String TAG = "AugmentedImageFragment";
 
-  // This is the name of the image in the sample database.  A copy of the image is in the assets
-  // directory.  Opening this image on your computer is a good quick way to test the augmented image
-  // matching.
-  private static final String DEFAULT_IMAGE_NAME = "default.jpg";
-
-  // This is a pre-created database containing the sample image.
-  private static final String SAMPLE_IMAGE_DATABASE = "img_database.imgdb";
-
-  // Augmented image configuration and rendering.
-  // Load a single image (true) or a pre-generated image database (false).
-  private static final boolean USE_SINGLE_IMAGE = false;
-
   // Do a runtime check for the OpenGL level available at runtime to avoid Sceneform crashing the
   // application.
   private static final double MIN_OPENGL_VERSION = 3.0;
 
+  /** Notified on the UI thread once the session uses the database of another shard. */
+  public interface OnShardChangedListener {
+    void onShardChanged(ImageDatabaseLoader.Shard previous, ImageDatabaseLoader.Shard active);
+  }
+
+  private OnShardChangedListener onShardChangedListener;
+
+  // Runs tasks on the UI thread, between frames, so the frame loop never calls session.update()
+  // while the session is being configured, and always sees the active shard of the database the
+  // session uses.
+  private final Handler uiHandler = new Handler(Looper.getMainLooper());
+  private final Executor uiExecutor = uiHandler::post;
+
+  // Shard state, only used on the UI thread. Databases are created on the executor of the
+  // ImageDatabaseLoader.
+  private Session session;
+  private Config config;
+  private List<ImageDatabaseLoader.Shard> shards;
+  // Shard being switched to, so asking for it again does not start a second switch.
+  private ImageDatabaseLoader.Shard pendingShard;
+  // Database of the shard likely to be needed next, created ahead of time.
+  private ImageDatabaseLoader.Shard preloadedShard;
+  private CompletableFuture<AugmentedImageDatabase> preloadedDatabase;
+
+  // Shard the session is configured with.
+  private ImageDatabaseLoader.Shard activeShard;
+  // Images of the databases the session was configured with before, which ARCore may still report
+  // as STOPPED with their index in the old database.
+  private Collection<AugmentedImage> staleImages = Collections.emptySet();
+
   @Override
   public void onAttach(Context context) {
     super.onAttach(context);
@@ -97,63 +120,144 @@ public class AugmentedImageFragment extends ArFragment {
   }
 
   @Override
+  @SuppressWarnings({"AndroidApiChecker", "FutureReturnValueIgnored"})
+  // CompletableFuture requires api level 24
   protected Config getSessionConfiguration(Session session) {
     Config config = super.getSessionConfiguration(session);
-    if (!setupAugmentedImageDatabase(config, session)) {
-      SnackbarHelper.getInstance()
-          .showError(getActivity(), "Could not setup augmented image database");
-    }
+
+    // The database is read in the background since the process started. ARCore creates it off the
+    // UI thread, then the session is configured again with it on the UI thread, between frames.
+    getImageDatabaseLoader()
+        .getShards()
+        .thenAcceptAsync(shards -> start(session, config, shards), uiExecutor)
+        .exceptionally(
+            throwable -> {
+              showError(throwable);
+              return null;
+            });
     return config;
   }
 
-  private boolean setupAugmentedImageDatabase(Config config, Session session) {
-    AugmentedImageDatabase augmentedImageDatabase;
+  public void setOnShardChangedListener(OnShardChangedListener onShardChangedListener) {
+    this.onShardChangedListener = onShardChangedListener;
+  }
+
+  /**
+   * Switches the session to the database shard of the zone, for example when the visitor walks into
+   * another hall. The database is created in the background, or was already preloaded, so the
+   * switch only costs the frame loop the call to configure the session.
+   */
+  @SuppressWarnings({"AndroidApiChecker", "FutureReturnValueIgnored"})
+  public void setZone(String zone) {
+    getImageDatabaseLoader()
+        .getShards()
+        .thenAcceptAsync(
+            shards -> {
+              for (ImageDatabaseLoader.Shard shard : shards) {
+                if (shard.getZone().equals(zone)) {
+                  switchTo(shard);
+                  return;
+                }
+              }
+              Log.w(TAG, "No image database shard for zone " + zone);
+            },
+            uiExecutor);
+  }
+
+  /**
+   * Content catalog index of the first image of the active shard. Add it to the index of an
+   * augmented image to get its catalog index. Call from the UI thread.
+   */
+  public int getIndexBase() {
+    return activeShard != null ? activeShard.getBaseIndex() : 0;
+  }
+
+  /** False if the image belongs to a previous database shard. Call from the UI thread. */
+  public boolean isActive(AugmentedImage image) {
+    return staleImages.isEmpty() || !staleImages.contains(image);
+  }
+
+  private ImageDatabaseLoader getImageDatabaseLoader() {
+    return ((RmsLabApplication) requireContext().getApplicationContext()).getImageDatabaseLoader();
+  }
+
+  // The methods below run on the UI thread, which owns the shard state.
 
-    AssetManager assetManager = getContext() != null ? getContext().getAssets() : null;
-    if (assetManager == null) {
-      Log.e(TAG, "Context is null, cannot intitialize image database.");
-      return false;
+  private void start(Session session, Config config, List<ImageDatabaseLoader.Shard> shards) {
+    this.session = session;
+    this.config = config;
+    this.shards = shards;
+    // Databases of a previous session cannot be used with this one.
+    activeShard = null;
+    staleImages = Collections.emptySet();
+    pendingShard = null;
+    preloadedShard = null;
+    preloadedDatabase = null;
+    switchTo(shards.get(0));
+  }
+
+  @SuppressWarnings({"AndroidApiChecker", "FutureReturnValueIgnored"})
+  private void switchTo(ImageDatabaseLoader.Shard shard) {
+    if (session == null || shard == activeShard || shard == pendingShard) {
+      return;
     }
+    pendingShard = shard;
+    CompletableFuture<AugmentedImageDatabase> database =
+        shard == preloadedShard
+            ? preloadedDatabase
+            : getImageDatabaseLoader().load(session, shard);
+    preloadedShard = null;
+    preloadedDatabase = null;
+    Session session = this.session;
+    database
+        .thenAcceptAsync(result -> activate(session, shard, result), uiExecutor)
+        .exceptionally(
+            throwable -> {
+              showError(throwable);
+              return null;
+            });
+  }
 
-    // There are two ways to configure an AugmentedImageDatabase:
-    // 1. Add Bitmap to DB directly
-    // 2. Load a pre-built AugmentedImageDatabase
-    // Option 2) has
-    // * shorter setup time
-    // * doesn't require images to be packaged in apk.
-    if (USE_SINGLE_IMAGE) {
-      Bitmap augmentedImageBitmap = loadAugmentedImageBitmap(assetManager);
-      if (augmentedImageBitmap == null) {
-        return false;
-      }
-
-      augmentedImageDatabase = new AugmentedImageDatabase(session);
-      augmentedImageDatabase.addImage(DEFAULT_IMAGE_NAME, augmentedImageBitmap);
-      // If the physical size of the image is known, you can instead use:
-      //     augmentedImageDatabase.addImage("image_name", augmentedImageBitmap, widthInMeters);
-      // This will improve the initial detection speed. ARCore will still actively estimate the
-      // physical size of the image as it is viewed from multiple viewpoints.
-    } else {
-      // This is an alternative way to initialize an AugmentedImageDatabase instance,
-      // load a pre-existing augmented image database.
-      try (InputStream is = getContext().getAssets().open(SAMPLE_IMAGE_DATABASE)) {
-        augmentedImageDatabase = AugmentedImageDatabase.deserialize(session, is);
-      } catch (IOException e) {
-        Log.e(TAG, "IO exception loading augmented image database.", e);
-        return false;
-      }
+  private void activate(
+      Session session, ImageDatabaseLoader.Shard shard, AugmentedImageDatabase database) {
+    // A later switch, or a new session, took over.
+    if (session != this.session || shard != pendingShard) {
+      return;
     }
+    pendingShard = null;
+    // The session and the shard indices change together, before the next frame.
+    if (activeShard != null) {
+      staleImages = new HashSet<>(session.getAllTrackables(AugmentedImage.class));
+    }
+    config.setAugmentedImageDatabase(database);
+    session.configure(config);
+    ImageDatabaseLoader.Shard previous = activeShard;
+    activeShard = shard;
+    Log.d(TAG, "Image database shard " + shard + " active, " + shard.getImageCount() + " images");
 
-    config.setAugmentedImageDatabase(augmentedImageDatabase);
-    return true;
+    if (previous != null && onShardChangedListener != null) {
+      onShardChangedListener.onShardChanged(previous, shard);
+    }
+    preloadNext(shard);
+  }
+
+  // Visitors usually walk through the zones in the order of the shard manifest.
+  private void preloadNext(ImageDatabaseLoader.Shard shard) {
+    ImageDatabaseLoader.Shard next = shards.get((shards.indexOf(shard) + 1) % shards.size());
+    if (next != shard) {
+      preloadedShard = next;
+      preloadedDatabase = getImageDatabaseLoader().load(session, next);
+    }
   }
 
-  private Bitmap loadAugmentedImageBitmap(AssetManager assetManager) {
-    try (InputStream is = assetManager.open(DEFAULT_IMAGE_NAME)) {
-      return BitmapFactory.decodeStream(is);
-    } catch (IOException e) {
-      Log.e(TAG, "IO exception loading augmented image bitmap.", e);
+  private void showError(Throwable throwable) {
+    Log.e(TAG, "Could not setup augmented image database", throwable);
+    Activity activity = getActivity();
+    if (activity != null) {
+      activity.runOnUiThread(
+          () ->
+              SnackbarHelper.getInstance()
+                  .showError(activity, "Could not setup augmented image database"));
     }
-    return null;
   }
 }
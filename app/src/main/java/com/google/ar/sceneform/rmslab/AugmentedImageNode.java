@@ -19,8 +19,10 @@ package com.google.ar.sceneform.rmslab;
 import android.content.Context;
 import android.util.Log;
 
+import com.google.ar.core.Anchor;
 import com.google.ar.core.AugmentedImage;
 import com.google.ar.sceneform.AnchorNode;
+import com.google.ar.sceneform.rendering.Color;
 import com.google.ar.sceneform.rendering.ModelRenderable;
 
 import java.util.concurrent.CompletableFuture;
@@ -34,12 +36,31 @@ public class AugmentedImageNode extends AnchorNode {
 
   private static final String TAG = "AugmentedImageNode";
 
+  // Brightness of held content once it has faded.
+  private static final float FADED_TINT = 0.4f;
+
   // The augmented image represented by this node.
   private AugmentedImage image;
 
   private Context context;
 
+  // The node's own copy of the model, so fading it does not tint other nodes showing the same
+  // cached model, and the cached model it was copied from.
   private ModelRenderable modelFutureRenderable;
+  private ModelRenderable sourceRenderable;
+
+  // The catalog entry describing the content for the image.
+  private ContentCatalog.Entry entry;
+
+  // The model node, created once the renderable has loaded.
+  private CustomizedTransformableNode content;
+
+  // Content catalog index of the image, or -1 while the node is not in use.
+  private int index = -1;
+
+  // True while the image is lost and its content is held at its last pose.
+  private boolean held;
+  private boolean faded;
 
   public AugmentedImageNode(Context context) {
     this.context = context;
@@ -50,38 +71,147 @@ public class AugmentedImageNode extends AnchorNode {
    * created based on an Anchor created from the image. The corners are then positioned based on the
    * extents of the image. There is no need to worry about world coordinates since everything is
    * relative to the center of the image, which is the parent node of the corners.
+   *
+   * <p>The anchor is created once, right away. The content is attached by the {@link
+   * PlacementQueue} once the model for the image has loaded.
+   *
+   * <p>{@code index} is the index of the image in the content catalog, which is its index in the
+   * active image database shard plus the base index of the shard.
+   *
+   * @return false if there is no content for the image, in which case the node is left as it was.
    */
   @SuppressWarnings({"AndroidApiChecker", "FutureReturnValueIgnored"})
-  public void setImage(AugmentedImage image) {
+  public boolean setImage(AugmentedImage image, int index) {
+    // A recycled node already has the entry for its image.
+    ContentCatalog.Entry entry = this.entry;
+    if (entry == null || entry.getIndex() != index) {
+      entry = MainActivity.getActivity().getContentCatalog().get(index);
+    }
+    // Start loading the model on first detection.
+    CompletableFuture<ModelRenderable> renderable =
+        MainActivity.getActivity().getRenderableLoader().load(index);
+    if (entry == null || renderable == null) {
+      Log.w(TAG, "No content for image " + index);
+      return false;
+    }
     this.image = image;
+    this.index = index;
+    this.entry = entry;
 
-    // If any of the models are not loaded, then recurse when all are loaded.
-    if (!MainActivity.getActivity().getRenderableMap().get(image.getIndex()).isDone()) {
-      CompletableFuture.allOf(MainActivity.getActivity().getRenderableMap().get(image.getIndex()))
-              .thenAccept((Void aVoid) -> setImage(image))
-              .exceptionally(
-                      throwable -> {
-                        Log.e(TAG, "Exception loading", throwable);
-                        return null;
-                      });
+    // Set the anchor based on the center of the image.
+    if (getAnchor() == null) {
+      setAnchor(image.createAnchor(image.getCenterPose()));
     }
 
-    // Set the anchor based on the center of the image.
-    setAnchor(image.createAnchor(image.getCenterPose()));
+    MainActivity.getActivity().getPlacementQueue().place(this, renderable);
+    return true;
+  }
+
+  /**
+   * Creates the content for the image. A recycled node resets the content it already has instead,
+   * and calling this again while the node is in use has no effect. A fade set while the model was
+   * loading is applied here.
+   */
+  void attachContent(ModelRenderable renderable) {
+    if (content != null) {
+      if (content.getParent() != this) {
+        if (sourceRenderable != renderable) {
+          setModel(renderable);
+          content.setRenderable(modelFutureRenderable);
+        }
+        content.reset(entry.getScale());
+        content.setParent(this);
+        content.select();
+        applyTint();
+      }
+      return;
+    }
 
     // Create the transformable andy and add it to the anchor.
     CustomizedTransformableNode andy = new CustomizedTransformableNode(context, MainActivity.getActivity().arFragment.getTransformationSystem());
-    andy.setMsg(MainActivity.getActivity().getNodeMsg().get(image.getIndex()));
+    andy.setMsg(entry.getMessages());
+    andy.reset(entry.getScale());
     andy.setParent(this);
-    modelFutureRenderable = MainActivity.getActivity().getRenderableMap().get(image.getIndex()).getNow(null);
+    setModel(renderable);
     andy.setRenderable(modelFutureRenderable);
     andy.select();
+    content = andy;
+    applyTint();
+  }
+
+  private void setModel(ModelRenderable renderable) {
+    sourceRenderable = renderable;
+    // The copy shares the model data, but has its own material instances.
+    modelFutureRenderable = renderable.makeCopy();
+  }
+
+  /** Detaches the anchor so ARCore stops updating it. The node keeps its last world pose. */
+  void detach() {
+    Anchor anchor = getAnchor();
+    if (anchor != null) {
+      setAnchor(null);
+      anchor.detach();
+    }
+  }
+
+  /**
+   * Called by the {@link NodePool} once the node is detached and out of the scene. The content is
+   * unparented but kept, along with the catalog entry, so the node can be reused for the same
+   * image.
+   */
+  void recycle() {
+    setHeld(false, false);
+    image = null;
+    index = -1;
+    if (content != null) {
+      content.setParent(null);
+    }
+  }
+
+  /**
+   * Marks the content as held at its last pose while the image is lost, or as live again. Held
+   * content can also be faded, which dims the model through the tint parameter of its catalog
+   * entry. Models without one are not dimmed.
+   */
+  void setHeld(boolean held, boolean faded) {
+    this.held = held;
+    if (this.faded == faded) {
+      return;
+    }
+    this.faded = faded;
+    applyTint();
+  }
+
+  // Each default Sceneform material multiplies the base color through a parameter of its own, so
+  // the catalog entry names it along with the value it has in the model.
+  private void applyTint() {
+    if (modelFutureRenderable == null || entry.getTintParameter().isEmpty()) {
+      return;
+    }
+    float level = faded ? FADED_TINT : 1.0f;
+    float[] base = entry.getTint();
+    Color tint = new Color(base[0] * level, base[1] * level, base[2] * level, base[3]);
+    for (int i = 0; i < modelFutureRenderable.getSubmeshCount(); i++) {
+      modelFutureRenderable.getMaterial(i).setFloat4(entry.getTintParameter(), tint);
+    }
+  }
+
+  boolean isHeld() {
+    return held;
+  }
+
+  public int getIndex() {
+    return index;
   }
 
   public AugmentedImage getImage() {
     return image;
   }
 
+  public ContentCatalog.Entry getEntry() {
+    return entry;
+  }
+
   public ModelRenderable getModelFutureRenderable() {
     return modelFutureRenderable;
   }
@@ -0,0 +1,338 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab;
+
+import android.content.res.AssetManager;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.ar.core.AugmentedImageDatabase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Adds many reference images to a runtime-built {@link AugmentedImageDatabase}.
+ *
+ * <p>Images are decoded in parallel on a fixed number of threads, and downsampled while decoding to
+ * the resolution ARCore needs rather than their full size. At most a window of decoded bitmaps is
+ * in memory at once: once ARCore has copied a bitmap into the database, it is reused, through
+ * {@link BitmapFactory.Options#inBitmap}, to decode a later image. Images are added in the order
+ * they are given, so their database indices match the content catalog.
+ *
+ * <p>Bitmaps stay ARGB_8888, the only format ARCore's Java API accepts. ARCore converts them to
+ * grayscale itself, so converting them here as well would only add a pass over every image.
+ */
+public class BitmapIngester {
+  private static final String TAG = "BitmapIngester";
+
+  // ARCore needs reference images of at least 300x300 pixels, and detects no better with images
+  // much larger than the camera image it matches them against.
+  public static final int DEFAULT_MIN_DIMENSION = 480;
+
+  /** Time and memory used to ingest a batch of images. */
+  public static final class Stats {
+    private final int imageCount;
+    private final long totalMs;
+    private final long decodeMs;
+    private final long peakBitmapBytes;
+    private final long peakHeapBytes;
+    private final int reusedCount;
+
+    Stats(
+        int imageCount,
+        long totalMs,
+        long decodeMs,
+        long peakBitmapBytes,
+        long peakHeapBytes,
+        int reusedCount) {
+      this.imageCount = imageCount;
+      this.totalMs = totalMs;
+      this.decodeMs = decodeMs;
+      this.peakBitmapBytes = peakBitmapBytes;
+      this.peakHeapBytes = peakHeapBytes;
+      this.reusedCount = reusedCount;
+    }
+
+    public int getImageCount() {
+      return imageCount;
+    }
+
+    /** Wall time from the first decode to the last image added to the database. */
+    public long getTotalMs() {
+      return totalMs;
+    }
+
+    /** Decode time summed over all threads. */
+    public long getDecodeMs() {
+      return decodeMs;
+    }
+
+    /** Most memory held at once by decoded bitmaps. */
+    public long getPeakBitmapBytes() {
+      return peakBitmapBytes;
+    }
+
+    /** Most Java and native heap in use at once, sampled after each image. */
+    public long getPeakHeapBytes() {
+      return peakHeapBytes;
+    }
+
+    /** Number of images decoded into a reused bitmap. */
+    public int getReusedCount() {
+      return reusedCount;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          Locale.US,
+          "%d images in %d ms (decode %d ms over all threads, %d into reused bitmaps), "
+              + "peak bitmap memory %.1f MB, peak heap %.1f MB",
+          imageCount,
+          totalMs,
+          decodeMs,
+          reusedCount,
+          peakBitmapBytes / (1024.0 * 1024.0),
+          peakHeapBytes / (1024.0 * 1024.0));
+    }
+  }
+
+  // A decoded image, waiting to be added to the database.
+  private static final class Decoded {
+    final Bitmap bitmap;
+    final boolean reused;
+    final long decodeNanos;
+
+    Decoded(Bitmap bitmap, boolean reused, long decodeNanos) {
+      this.bitmap = bitmap;
+      this.reused = reused;
+      this.decodeNanos = decodeNanos;
+    }
+  }
+
+  private final AssetManager assetManager;
+  private int threadCount = Math.min(4, Runtime.getRuntime().availableProcessors());
+  private int minDimension = DEFAULT_MIN_DIMENSION;
+
+  // Bitmaps that ARCore is done with, ready to be decoded into again. Only used by the thread
+  // calling ingest(), which hands one to each decode.
+  private final ArrayDeque<Bitmap> freeBitmaps = new ArrayDeque<>();
+  private final AtomicLong bitmapBytes = new AtomicLong();
+  private final AtomicLong peakBitmapBytes = new AtomicLong();
+
+  public BitmapIngester(AssetManager assetManager) {
+    this.assetManager = assetManager;
+  }
+
+  /** Number of images decoded at the same time. */
+  public void setThreadCount(int threadCount) {
+    this.threadCount = Math.max(1, threadCount);
+  }
+
+  /**
+   * Smallest size, in pixels, that the shorter side of an image is downsampled to. Images whose
+   * shorter side is already below it are decoded at full size.
+   */
+  public void setMinDimension(int minDimension) {
+    this.minDimension = minDimension;
+  }
+
+  /**
+   * Decodes the image assets and adds them to the database, named after the asset, in the order
+   * given. Blocks until all images have been added.
+   */
+  public Stats ingest(List<String> images, AugmentedImageDatabase database) throws IOException {
+    long startMs = SystemClock.uptimeMillis();
+    long decodeNanos = 0;
+    long peakHeapBytes = 0;
+    int reusedCount = 0;
+    bitmapBytes.set(0);
+    peakBitmapBytes.set(0);
+
+    // Two decodes per thread are in flight, so a thread can start on the next image while ARCore
+    // copies the previous one.
+    int window = threadCount * 2;
+    ArrayDeque<Future<Decoded>> pending = new ArrayDeque<>(window);
+    ExecutorService decoders = Executors.newFixedThreadPool(threadCount);
+    try {
+      int next = 0;
+      for (int added = 0; added < images.size(); added++) {
+        while (next < images.size() && pending.size() < window) {
+          String image = images.get(next++);
+          Bitmap reusable = freeBitmaps.poll();
+          pending.add(decoders.submit(() -> decode(image, reusable)));
+        }
+
+        Decoded decoded = await(pending.poll());
+        database.addImage(images.get(added), decoded.bitmap);
+        freeBitmaps.add(decoded.bitmap);
+
+        decodeNanos += decoded.decodeNanos;
+        if (decoded.reused) {
+          reusedCount++;
+        }
+        peakHeapBytes = Math.max(peakHeapBytes, heapBytes());
+      }
+    } finally {
+      // Let the decodes still in flight finish, so their bitmaps can be recycled.
+      decoders.shutdown();
+      for (Future<Decoded> future : pending) {
+        try {
+          freeBitmaps.add(future.get().bitmap);
+        } catch (InterruptedException | ExecutionException e) {
+          // Nothing left to recycle.
+        }
+      }
+      recycleAll();
+    }
+
+    Stats stats =
+        new Stats(
+            images.size(),
+            SystemClock.uptimeMillis() - startMs,
+            decodeNanos / 1000000,
+            peakBitmapBytes.get(),
+            peakHeapBytes,
+            reusedCount);
+    Log.d(TAG, "Ingested " + stats);
+    return stats;
+  }
+
+  // Decodes the asset into the reusable bitmap if it is big enough, or into a new one. The reusable
+  // bitmap is recycled if it is not decoded into, also when the image cannot be decoded.
+  private Decoded decode(String image, Bitmap reusable) throws IOException {
+    long startNanos = System.nanoTime();
+    Bitmap bitmap = null;
+    try {
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inJustDecodeBounds = true;
+      try (InputStream in = assetManager.open(image)) {
+        BitmapFactory.decodeStream(in, null, options);
+      }
+      if (options.outWidth <= 0 || options.outHeight <= 0) {
+        throw new IOException("Unable to decode " + image);
+      }
+
+      options.inJustDecodeBounds = false;
+      options.inSampleSize = sampleSize(options.outWidth, options.outHeight, minDimension);
+      // ARCore converts reference images to grayscale itself, from ARGB_8888 bitmaps only.
+      options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+      options.inMutable = true;
+      long needed =
+          (long) (options.outWidth / options.inSampleSize)
+              * (options.outHeight / options.inSampleSize)
+              * 4;
+      // A reusable bitmap that is too small is let go below, so the free bitmaps grow to fit the
+      // batch.
+      if (reusable != null && reusable.getAllocationByteCount() >= needed) {
+        options.inBitmap = reusable;
+      }
+
+      try (InputStream in = assetManager.open(image)) {
+        bitmap = BitmapFactory.decodeStream(in, null, options);
+      } catch (IllegalArgumentException e) {
+        // The decoder could not reuse the bitmap; fall back to a new one below.
+      }
+      if (bitmap == null && options.inBitmap != null) {
+        options.inBitmap = null;
+        try (InputStream in = assetManager.open(image)) {
+          bitmap = BitmapFactory.decodeStream(in, null, options);
+        }
+      }
+      if (bitmap == null) {
+        throw new IOException("Unable to decode " + image);
+      }
+
+      boolean reused = bitmap == reusable;
+      if (!reused) {
+        allocated(bitmap.getAllocationByteCount());
+      }
+      return new Decoded(bitmap, reused, System.nanoTime() - startNanos);
+    } finally {
+      if (bitmap != reusable) {
+        release(reusable);
+      }
+    }
+  }
+
+  /**
+   * Largest power of two sample size that keeps the shorter side of the image at or above the
+   * minimum dimension.
+   */
+  static int sampleSize(int width, int height, int minDimension) {
+    int shorter = Math.min(width, height);
+    int sampleSize = 1;
+    while (shorter / (sampleSize * 2) >= minDimension) {
+      sampleSize *= 2;
+    }
+    return sampleSize;
+  }
+
+  private void allocated(long bytes) {
+    long total = bitmapBytes.addAndGet(bytes);
+    long peak;
+    while (total > (peak = peakBitmapBytes.get()) && !peakBitmapBytes.compareAndSet(peak, total)) {
+      // Retry until the peak is at least this total.
+    }
+  }
+
+  private void release(Bitmap bitmap) {
+    if (bitmap != null) {
+      bitmapBytes.addAndGet(-bitmap.getAllocationByteCount());
+      bitmap.recycle();
+    }
+  }
+
+  private void recycleAll() {
+    Bitmap bitmap;
+    while ((bitmap = freeBitmaps.poll()) != null) {
+      release(bitmap);
+    }
+  }
+
+  private static Decoded await(Future<Decoded> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while decoding images", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException("Unable to decode images", cause);
+    }
+  }
+
+  private static long heapBytes() {
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory() + Debug.getNativeHeapAllocatedSize();
+  }
+}
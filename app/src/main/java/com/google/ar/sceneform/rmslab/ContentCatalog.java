@@ -0,0 +1,240 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Read-only view of the content catalog, which describes what to show for each augmented image.
+ *
+ * <p>The catalog is compiled from {@code app/catalog/content_catalog.json} by the {@code
+ * compileContentCatalog} Gradle task. It is memory mapped from the APK, and only the header is
+ * validated when it is opened. An entry is decoded when it is looked up, so opening the catalog
+ * costs the same no matter how many entries it has.
+ *
+ * <p>Layout, all values big endian:
+ *
+ * <pre>
+ *   int   magic            'RMSC'
+ *   int   version
+ *   int   slotCount        largest image index + 1
+ *   int   entryCount
+ *   int   slots[slotCount] offset of the entry for each image index, or -1
+ *   int   order[entryCount] image indices, most likely to be seen first
+ *   entries:
+ *     int    textureTexels
+ *     float  scale
+ *     string model         raw resource name
+ *     string tintParameter  material parameter that tints the model, or empty
+ *     float  tint[4]        RGBA value of that parameter in the model
+ *     short  animationCount, string animations[animationCount]
+ *     short  messageCount,   string messages[messageCount]
+ * </pre>
+ *
+ * Strings are an unsigned short byte length followed by UTF-8 bytes.
+ */
+public class ContentCatalog {
+  public static final int MAGIC = 0x524d5343;
+  public static final int VERSION = 2;
+
+  private static final int HEADER_BYTES = 16;
+
+  /** What to show for one augmented image. */
+  public static final class Entry {
+    private final int index;
+    private final String model;
+    private final float scale;
+    private final String tintParameter;
+    private final float[] tint;
+    private final int textureTexels;
+    private final List<String> animations;
+    private final ArrayList<String> messages;
+
+    Entry(
+        int index,
+        String model,
+        float scale,
+        String tintParameter,
+        float[] tint,
+        int textureTexels,
+        List<String> animations,
+        ArrayList<String> messages) {
+      this.index = index;
+      this.model = model;
+      this.scale = scale;
+      this.tintParameter = tintParameter;
+      this.tint = tint;
+      this.textureTexels = textureTexels;
+      this.animations = animations;
+      this.messages = messages;
+    }
+
+    public int getIndex() {
+      return index;
+    }
+
+    /** Name of the raw resource holding the model. */
+    public String getModel() {
+      return model;
+    }
+
+    public float getScale() {
+      return scale;
+    }
+
+    /**
+     * Parameter of the model's material that multiplies its base color, which depends on the
+     * material the model was imported with, or an empty string if the model cannot be tinted.
+     */
+    public String getTintParameter() {
+      return tintParameter;
+    }
+
+    /** RGBA value the tint parameter has in the model, to scale when tinting it. Do not modify. */
+    public float[] getTint() {
+      return tint;
+    }
+
+    /** Total width * height of the textures used by the model. */
+    public int getTextureTexels() {
+      return textureTexels;
+    }
+
+    /** Runtime names of the animations in the model, in playback order. */
+    public List<String> getAnimations() {
+      return animations;
+    }
+
+    /** Messages shown on the info card, the first one is the greeting. */
+    public ArrayList<String> getMessages() {
+      return messages;
+    }
+  }
+
+  private final ByteBuffer buffer;
+  private final int slotCount;
+  private final int entryCount;
+
+  /** Wraps a catalog image. Only the header is read. */
+  public ContentCatalog(ByteBuffer buffer) throws IOException {
+    this.buffer = buffer;
+    if (buffer.limit() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+      throw new IOException("Not a content catalog");
+    }
+    if (buffer.getInt(4) != VERSION) {
+      throw new IOException("Unsupported content catalog version " + buffer.getInt(4));
+    }
+    slotCount = buffer.getInt(8);
+    entryCount = buffer.getInt(12);
+    if (slotCount < 0
+        || entryCount < 0
+        || buffer.limit() < HEADER_BYTES + 4L * (slotCount + entryCount)) {
+      throw new IOException("Truncated content catalog");
+    }
+  }
+
+  /** Memory maps a catalog from an uncompressed asset. */
+  public static ContentCatalog open(AssetManager assetManager, String name) throws IOException {
+    try (AssetFileDescriptor fd = assetManager.openFd(name);
+        FileInputStream is = fd.createInputStream();
+        FileChannel channel = is.getChannel()) {
+      // The mapping stays valid after the channel is closed.
+      return new ContentCatalog(
+          channel.map(FileChannel.MapMode.READ_ONLY, fd.getStartOffset(), fd.getLength()));
+    }
+  }
+
+  /** Number of image indices the catalog can describe, including ones without an entry. */
+  public int getSlotCount() {
+    return slotCount;
+  }
+
+  public int getEntryCount() {
+    return entryCount;
+  }
+
+  public boolean contains(int index) {
+    return entryOffset(index) >= 0;
+  }
+
+  /** Returns the image index of the n-th most likely entry. */
+  public int getLikelyIndex(int n) {
+    return buffer.getInt(HEADER_BYTES + 4 * (slotCount + n));
+  }
+
+  /** Decodes the entry for the image index, or returns null if there is none. */
+  public Entry get(int index) {
+    int offset = entryOffset(index);
+    if (offset < 0) {
+      return null;
+    }
+
+    // Duplicate so concurrent lookups do not share a position.
+    ByteBuffer in = buffer.duplicate();
+    in.position(offset);
+    int textureTexels = in.getInt();
+    float scale = in.getFloat();
+    String model = readString(in);
+    String tintParameter = readString(in);
+    float[] tint = new float[4];
+    for (int i = 0; i < tint.length; i++) {
+      tint[i] = in.getFloat();
+    }
+    int animationCount = in.getShort() & 0xffff;
+    List<String> animations = new ArrayList<>(animationCount);
+    for (int i = 0; i < animationCount; i++) {
+      animations.add(readString(in));
+    }
+    int messageCount = in.getShort() & 0xffff;
+    ArrayList<String> messages = new ArrayList<>(messageCount);
+    for (int i = 0; i < messageCount; i++) {
+      messages.add(readString(in));
+    }
+    return new Entry(
+        index,
+        model,
+        scale,
+        tintParameter,
+        tint,
+        textureTexels,
+        Collections.unmodifiableList(animations),
+        messages);
+  }
+
+  private int entryOffset(int index) {
+    if (index < 0 || index >= slotCount) {
+      return -1;
+    }
+    return buffer.getInt(HEADER_BYTES + 4 * index);
+  }
+
+  private static String readString(ByteBuffer in) {
+    byte[] bytes = new byte[in.getShort() & 0xffff];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -21,6 +21,7 @@ import android.widget.TextView;
 
 import com.google.ar.sceneform.HitTestResult;
 import com.google.ar.sceneform.Node;
+import com.google.ar.sceneform.math.Quaternion;
 import com.google.ar.sceneform.math.Vector3;
 import com.google.ar.sceneform.rendering.ViewRenderable;
 import com.google.ar.sceneform.ux.TransformableNode;
@@ -105,6 +106,23 @@ public class CustomizedTransformableNode extends TransformableNode implements No
 
   }
 
+  /**
+   * Puts the node back in its initial state: identity transform at the given scale, first
+   * message, info card showing. Used both for new nodes and for nodes reused from the NodePool.
+   */
+  public void reset(float scale) {
+    setLocalPosition(Vector3.zero());
+    setLocalRotation(Quaternion.identity());
+    setLocalScale(new Vector3(scale, scale, scale));
+    msgIndex = 0;
+    if (infoCard != null) {
+      infoCard.setEnabled(true);
+    }
+    if (textView != null) {
+      textView.setText(getMsg());
+    }
+  }
+
   @Override
   public void onTap(HitTestResult hitTestResult, MotionEvent motionEvent) {
     if (infoCard == null) {
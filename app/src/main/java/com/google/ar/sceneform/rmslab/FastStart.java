@@ -0,0 +1,244 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Moves the moov box of an MP4 file in front of its media data, so the video can start playing
+ * before it is fully downloaded.
+ *
+ * <p>MediaMuxer and MediaRecorder only know the sample tables once the recording is finished, so
+ * they write the moov after the mdat. The file is rewritten next to itself with the moov first and
+ * renamed over the original. Everything but the moov is moved with {@link FileChannel#transferTo},
+ * so the media data is not copied through the Java heap. The moov is streamed through a small
+ * buffer while the chunk offsets in its stco and co64 boxes are shifted, so the memory used does
+ * not depend on the size of the file. This class does not depend on Android.
+ */
+public final class FastStart {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final int MOOV = fourcc("moov");
+  private static final int MDAT = fourcc("mdat");
+  private static final int STCO = fourcc("stco");
+  private static final int CO64 = fourcc("co64");
+  // Boxes on the way from the moov to the chunk offsets.
+  private static final int[] CONTAINERS = {
+    MOOV, fourcc("trak"), fourcc("mdia"), fourcc("minf"), fourcc("stbl")
+  };
+
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  private FileChannel input;
+  private FileChannel output;
+  // Chunk offsets from mdatStart up to moovStart move by moovSize.
+  private long mdatStart;
+  private long moovStart;
+  private long moovSize;
+
+  private FastStart() {}
+
+  /**
+   * Rewrites the file with its moov first.
+   *
+   * @return false if the file was left as it was, because its moov is already first or it has no
+   *     moov or mdat.
+   * @throws IOException if the file can't be read or rewritten, or is malformed; it is left as it
+   *     was.
+   */
+  public static boolean apply(File file) throws IOException {
+    return new FastStart().rewrite(file);
+  }
+
+  private boolean rewrite(File file) throws IOException {
+    File temp = new File(file.getPath() + ".faststart");
+    boolean rewritten = false;
+    try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+      input = in.getChannel();
+      long size = input.size();
+      mdatStart = -1;
+      moovStart = -1;
+      for (long offset = 0; offset < size; ) {
+        long boxSize = readBoxHeader(offset, size);
+        int type = buffer.getInt(4);
+        if (type == MDAT && mdatStart < 0) {
+          mdatStart = offset;
+        } else if (type == MOOV && moovStart < 0) {
+          moovStart = offset;
+          moovSize = boxSize;
+        }
+        offset += boxSize;
+      }
+      if (mdatStart < 0 || moovStart < 0 || moovStart < mdatStart) {
+        return false;
+      }
+
+      try (FileOutputStream out = new FileOutputStream(temp)) {
+        output = out.getChannel();
+        long moovEnd = moovStart + moovSize;
+        transfer(0, mdatStart);
+        copyBox(moovStart, moovEnd);
+        transfer(mdatStart, moovStart - mdatStart);
+        transfer(moovEnd, size - moovEnd);
+        output.force(true);
+      }
+      if (!temp.renameTo(file)) {
+        throw new IOException("Unable to replace " + file);
+      }
+      rewritten = true;
+    } finally {
+      if (!rewritten) {
+        temp.delete();
+      }
+    }
+    return true;
+  }
+
+  // Copies the boxes from start to end, descending into those that lead to chunk offsets.
+  private void copyBoxes(long start, long end) throws IOException {
+    for (long offset = start; offset < end; ) {
+      offset = copyBox(offset, end);
+    }
+  }
+
+  // Copies the box at offset, within a parent ending at end, and returns where it ends.
+  private long copyBox(long offset, long end) throws IOException {
+    long boxSize = readBoxHeader(offset, end);
+    int type = buffer.getInt(4);
+    int headerSize = buffer.limit();
+    if (isContainer(type)) {
+      transfer(offset, headerSize);
+      copyBoxes(offset + headerSize, offset + boxSize);
+    } else if (type == STCO || type == CO64) {
+      copyChunkOffsets(offset, boxSize, headerSize, type == CO64 ? 8 : 4);
+    } else {
+      transfer(offset, boxSize);
+    }
+    return offset + boxSize;
+  }
+
+  private void copyChunkOffsets(long offset, long boxSize, int headerSize, int entrySize)
+      throws IOException {
+    // Version, flags and entry count.
+    long entries = offset + headerSize + 8;
+    transfer(offset, entries - offset);
+    long count =
+        Math.min(
+            read(offset + headerSize + 4, 4).getInt() & 0xffffffffL,
+            (offset + boxSize - entries) / entrySize);
+    long end = entries + count * entrySize;
+    for (long position = entries; position < end; ) {
+      int length = (int) Math.min(BUFFER_SIZE / entrySize * entrySize, end - position);
+      read(position, length);
+      for (int i = 0; i < length; i += entrySize) {
+        if (entrySize == 4) {
+          long shifted = shift(buffer.getInt(i) & 0xffffffffL);
+          if (shifted > 0xffffffffL) {
+            throw new IOException("Chunk offset beyond 4 GB, the moov needs co64");
+          }
+          buffer.putInt(i, (int) shifted);
+        } else {
+          buffer.putLong(i, shift(buffer.getLong(i)));
+        }
+      }
+      write();
+      position += length;
+    }
+    // Anything after the entries.
+    transfer(end, offset + boxSize - end);
+  }
+
+  private long shift(long chunkOffset) {
+    boolean moved = chunkOffset >= mdatStart && chunkOffset < moovStart;
+    return moved ? chunkOffset + moovSize : chunkOffset;
+  }
+
+  // Reads the header of the box at offset into the buffer, with the size and type at 0 and 4 and
+  // the header size as limit, and returns the size of the box.
+  private long readBoxHeader(long offset, long end) throws IOException {
+    if (end - offset < 8) {
+      throw new IOException("Truncated box at " + offset);
+    }
+    read(offset, 8);
+    long size = buffer.getInt(0) & 0xffffffffL;
+    int type = buffer.getInt(4);
+    if (size == 1) {
+      if (end - offset < 16) {
+        throw new IOException("Truncated box at " + offset);
+      }
+      size = read(offset + 8, 8).getLong();
+      buffer.clear();
+      buffer.putInt(4, type);
+      buffer.limit(16);
+    } else if (size == 0) {
+      // The box extends to the end of its parent.
+      size = end - offset;
+    }
+    if (size < buffer.limit() || size > end - offset) {
+      throw new IOException("Bad box size " + size + " at " + offset);
+    }
+    return size;
+  }
+
+  // Reads length bytes from position into the buffer, from its start.
+  private ByteBuffer read(long position, int length) throws IOException {
+    buffer.clear();
+    buffer.limit(length);
+    while (buffer.hasRemaining()) {
+      if (input.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of file");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private void write() throws IOException {
+    buffer.rewind();
+    while (buffer.hasRemaining()) {
+      output.write(buffer);
+    }
+  }
+
+  private void transfer(long position, long count) throws IOException {
+    long end = position + count;
+    while (position < end) {
+      long transferred = input.transferTo(position, end - position, output);
+      if (transferred <= 0) {
+        throw new IOException("Unexpected end of file");
+      }
+      position += transferred;
+    }
+  }
+
+  private static boolean isContainer(int type) {
+    for (int container : CONTAINERS) {
+      if (type == container) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int fourcc(String type) {
+    return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+  }
+}
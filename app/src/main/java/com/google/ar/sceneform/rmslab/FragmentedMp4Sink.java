@@ -0,0 +1,96 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.google.ar.sceneform.rmslab.helpers.DirectBufferPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the output of a {@link VideoEncoder} into a fragmented MP4 file with a {@link
+ * FragmentedMp4Writer}, so the file can be played while it is being recorded.
+ */
+public class FragmentedMp4Sink implements VideoEncoder.Sink {
+  private static final String TAG = "FragmentedMp4Sink";
+
+  private final FragmentedMp4Writer writer;
+  private boolean writing;
+
+  public FragmentedMp4Sink(File file, DirectBufferPool bufferPool, long fragmentDurationUs)
+      throws IOException {
+    writer = new FragmentedMp4Writer(file, bufferPool);
+    writer.setFragmentDuration(fragmentDurationUs);
+  }
+
+  public static boolean supports(String mimeType) {
+    return FragmentedMp4Writer.supports(mimeType);
+  }
+
+  public File getFile() {
+    return writer.getFile();
+  }
+
+  @Override
+  public void onFormat(MediaFormat format) {
+    if (writing) {
+      Log.e(TAG, "Output format changed after writing started, ignored");
+      return;
+    }
+    try {
+      writer.start(
+          format.getString(MediaFormat.KEY_MIME),
+          format.getInteger(MediaFormat.KEY_WIDTH),
+          format.getInteger(MediaFormat.KEY_HEIGHT),
+          format.containsKey("csd-0") ? format.getByteBuffer("csd-0") : null,
+          format.containsKey("csd-1") ? format.getByteBuffer("csd-1") : null);
+      writing = true;
+    } catch (IOException | IllegalArgumentException e) {
+      Log.e(TAG, "Unable to start " + writer.getFile(), e);
+    }
+  }
+
+  @Override
+  public void onSample(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+    if (!writing) {
+      return;
+    }
+    try {
+      writer.writeSample(
+          buffer,
+          info.presentationTimeUs,
+          (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to write " + writer.getFile() + ", stopped writing", e);
+      writing = false;
+    }
+  }
+
+  @Override
+  public void onEnd() {
+    try {
+      writer.close();
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to finish " + writer.getFile(), e);
+    }
+  }
+}
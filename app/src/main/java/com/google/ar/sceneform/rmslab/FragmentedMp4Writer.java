@@ -0,0 +1,698 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab;
+
+import com.google.ar.sceneform.rmslab.helpers.DirectBufferPool;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes H.264 or HEVC access units into a fragmented MP4 (ISO BMFF) file.
+ *
+ * <p>The file starts with an init segment, an ftyp and a moov without samples, followed by a moof
+ * and mdat pair per fragment. A new fragment is started on the first key frame after the current
+ * one reaches the fragment duration. Since every fragment describes its own samples, the file can
+ * be played up to the last fragment while it is still being written, and when the app dies only the
+ * fragment in progress is lost.
+ *
+ * <p>The file is grown ahead of the writes in large steps and the space after the last fragment is
+ * covered by a free box, so the file is well formed at all times. A fragment is written after the
+ * header of that free box and then committed by writing its first 8 bytes over it.
+ *
+ * <p>Access units may be in Annex B format, as MediaCodec outputs them, or already length
+ * prefixed. They are copied into a direct buffer from a {@link DirectBufferPool}, with start codes
+ * replaced by lengths, and written out with the fragment's header in a single gathering write, so
+ * nothing is allocated per sample. This class does not depend on Android. It is not thread safe.
+ */
+public final class FragmentedMp4Writer implements Closeable {
+  public static final String MIME_AVC = "video/avc";
+  public static final String MIME_HEVC = "video/hevc";
+
+  private static final int TRACK_ID = 1;
+  private static final int MOVIE_TIMESCALE = 1000;
+  private static final int TIMESCALE = 90000;
+  private static final int MAX_FRAGMENT_SAMPLES = 256;
+  private static final int HEADER_BUFFER_SIZE = 128 + 16 * MAX_FRAGMENT_SAMPLES;
+  private static final int DEFAULT_PAYLOAD_SIZE = 4 * 1024 * 1024;
+  private static final int BOX_HEADER_SIZE = 8;
+
+  // tfhd with default-base-is-moof: sample data offsets are relative to the moof.
+  private static final int TFHD_FLAGS = 0x020000;
+  // trun with a data offset and a duration, size, flags and composition offset per sample.
+  private static final int TRUN_FLAGS = 0x000f01;
+  // Key frames depend on no other sample; other frames do and are not sync samples.
+  private static final int SYNC_SAMPLE_FLAGS = 0x02000000;
+  private static final int NON_SYNC_SAMPLE_FLAGS = 0x01010000;
+
+  private static final int FREE = fourcc("free");
+  private static final int MOOF = fourcc("moof");
+  private static final int MFHD = fourcc("mfhd");
+  private static final int TRAF = fourcc("traf");
+  private static final int TFHD = fourcc("tfhd");
+  private static final int TFDT = fourcc("tfdt");
+  private static final int TRUN = fourcc("trun");
+  private static final int MDAT = fourcc("mdat");
+
+  private final File file;
+  private final DirectBufferPool pool;
+  private final RandomAccessFile output;
+  private final FileChannel channel;
+  private final ByteBuffer freeHeader = ByteBuffer.allocateDirect(BOX_HEADER_SIZE);
+  private final ByteBuffer[] fragment = new ByteBuffer[2];
+
+  private long fragmentDurationUs = 1000000;
+  private long preallocationBytes = 16 * 1024 * 1024;
+
+  // Samples of the fragment in progress; times are presentation times in TIMESCALE units.
+  private final int[] sizes = new int[MAX_FRAGMENT_SAMPLES];
+  private final boolean[] keyFrames = new boolean[MAX_FRAGMENT_SAMPLES];
+  private final long[] times = new long[MAX_FRAGMENT_SAMPLES];
+  private final long[] sortedTimes = new long[MAX_FRAGMENT_SAMPLES];
+  private int sampleCount;
+  private ByteBuffer header;
+  private ByteBuffer payload;
+
+  private long firstTimeUs = -1;
+  private long fragmentStartUs;
+  // Decode time of the next fragment.
+  private long decodeTime;
+  private long lastDuration = TIMESCALE / 30;
+  private int sequenceNumber;
+  // End of the last committed fragment, where the free box starts.
+  private long position;
+  private long allocated;
+  private boolean started;
+  private boolean closed;
+
+  public FragmentedMp4Writer(File file, DirectBufferPool pool) throws IOException {
+    this.file = file;
+    this.pool = pool;
+    output = new RandomAccessFile(file, "rw");
+    output.setLength(0);
+    channel = output.getChannel();
+  }
+
+  public static boolean supports(String mimeType) {
+    return MIME_AVC.equals(mimeType) || MIME_HEVC.equals(mimeType);
+  }
+
+  /** Sets how long fragments are at least, unless they run out of buffer space first. */
+  public void setFragmentDuration(long fragmentDurationUs) {
+    this.fragmentDurationUs = fragmentDurationUs;
+  }
+
+  /** Sets how far ahead of the writes the file is grown, at most 1 GB. */
+  public void setPreallocation(long preallocationBytes) {
+    this.preallocationBytes = Math.max(0, Math.min(preallocationBytes, 1L << 30));
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /** Size of the file up to the last fragment written. */
+  public long getSize() {
+    return position;
+  }
+
+  /**
+   * Writes the init segment.
+   *
+   * @param codecConfig the parameter sets, in Annex B format: SPS and PPS for H.264, VPS, SPS and
+   *     PPS for HEVC, as in MediaCodec's csd-0 and csd-1 buffers. Null buffers are skipped.
+   */
+  public void start(String mimeType, int width, int height, ByteBuffer... codecConfig)
+      throws IOException {
+    if (started || closed) {
+      throw new IllegalStateException("Already started");
+    }
+    if (!supports(mimeType)) {
+      throw new IllegalArgumentException("Unsupported mime type " + mimeType);
+    }
+    List<byte[]> parameterSets = nalUnits(codecConfig);
+    int configSize = 0;
+    for (byte[] parameterSet : parameterSets) {
+      configSize += parameterSet.length + 8;
+    }
+
+    ByteBuffer init = pool.acquire(1024 + configSize);
+    try {
+      writeFtyp(init);
+      writeMoov(init, MIME_HEVC.equals(mimeType), width, height, parameterSets);
+      init.flip();
+      grow(init.remaining());
+      writeFully(init, 0);
+      position = init.limit();
+      writeFree(position);
+    } finally {
+      pool.release(init);
+    }
+    header = pool.acquire(HEADER_BUFFER_SIZE);
+    payload = pool.acquire(DEFAULT_PAYLOAD_SIZE);
+    started = true;
+  }
+
+  /**
+   * Adds an access unit. Access units before the first key frame are skipped. The buffer is read
+   * from its position to its limit, which are left as they were.
+   */
+  public void writeSample(ByteBuffer data, long presentationTimeUs, boolean keyFrame)
+      throws IOException {
+    if (!started || closed) {
+      throw new IllegalStateException("Not started");
+    }
+    if (firstTimeUs < 0) {
+      if (!keyFrame) {
+        return;
+      }
+      firstTimeUs = presentationTimeUs;
+    }
+    long time = ticks(presentationTimeUs - firstTimeUs);
+    int size = copyAccessUnit(data, null);
+    if (sampleCount > 0
+        && ((keyFrame && presentationTimeUs - fragmentStartUs >= fragmentDurationUs)
+            || sampleCount == MAX_FRAGMENT_SAMPLES
+            || payload.remaining() < size)) {
+      writeFragment(time);
+    }
+    if (sampleCount == 0) {
+      fragmentStartUs = presentationTimeUs;
+      if (payload.capacity() < size) {
+        pool.release(payload);
+        payload = pool.acquire(size);
+      }
+    }
+    copyAccessUnit(data, payload);
+    sizes[sampleCount] = size;
+    keyFrames[sampleCount] = keyFrame;
+    times[sampleCount] = time;
+    sampleCount++;
+  }
+
+  /** Writes the last fragment and trims the file to its end. */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      if (sampleCount > 0) {
+        writeFragment(-1);
+      }
+      channel.truncate(position);
+      channel.force(true);
+    } finally {
+      output.close();
+      pool.release(header);
+      pool.release(payload);
+      header = null;
+      payload = null;
+    }
+  }
+
+  // Writes the samples added so far as a fragment. nextTime is the presentation time of the sample
+  // after them, or -1 if there is none.
+  private void writeFragment(long nextTime) throws IOException {
+    int count = sampleCount;
+    // With B-frames access units come out of presentation order. They are decoded one after the
+    // other at the sorted presentation times, and shown at theirs with a composition offset.
+    System.arraycopy(times, 0, sortedTimes, 0, count);
+    Arrays.sort(sortedTimes, 0, count);
+
+    header.clear();
+    int moof = beginBox(header, MOOF);
+    int mfhd = beginFullBox(header, MFHD, 0, 0);
+    header.putInt(++sequenceNumber);
+    endBox(header, mfhd);
+    int traf = beginBox(header, TRAF);
+    int tfhd = beginFullBox(header, TFHD, 0, TFHD_FLAGS);
+    header.putInt(TRACK_ID);
+    endBox(header, tfhd);
+    int tfdt = beginFullBox(header, TFDT, 1, 0);
+    header.putLong(decodeTime);
+    endBox(header, tfdt);
+    int trun = beginFullBox(header, TRUN, 1, TRUN_FLAGS);
+    header.putInt(count);
+    int dataOffset = header.position();
+    header.putInt(0);
+    long decode = decodeTime;
+    for (int i = 0; i < count; i++) {
+      long duration;
+      if (i + 1 < count) {
+        duration = sortedTimes[i + 1] - sortedTimes[i];
+      } else if (nextTime >= 0) {
+        duration = nextTime - sortedTimes[i];
+      } else {
+        duration = lastDuration;
+      }
+      duration = Math.max(1, duration);
+      header.putInt((int) duration);
+      header.putInt(sizes[i]);
+      header.putInt(keyFrames[i] ? SYNC_SAMPLE_FLAGS : NON_SYNC_SAMPLE_FLAGS);
+      header.putInt((int) (times[i] - decode));
+      decode += duration;
+      lastDuration = duration;
+    }
+    endBox(header, trun);
+    endBox(header, traf);
+    endBox(header, moof);
+    header.putInt(dataOffset, header.position() - moof + BOX_HEADER_SIZE);
+    header.putInt(BOX_HEADER_SIZE + payload.position());
+    header.putInt(MDAT);
+
+    header.flip();
+    payload.flip();
+    long length = header.remaining() + payload.remaining();
+    grow(position + length);
+    // Cover the space after the fragment first, then write all of it but the header of the free
+    // box it replaces, and commit it by replacing that header.
+    writeFree(position + length);
+    header.position(BOX_HEADER_SIZE);
+    channel.position(position + BOX_HEADER_SIZE);
+    fragment[0] = header;
+    fragment[1] = payload;
+    while (header.hasRemaining() || payload.hasRemaining()) {
+      channel.write(fragment);
+    }
+    // The commit only lands after the fragment's data, even if the device loses power.
+    channel.force(false);
+    header.position(0);
+    header.limit(BOX_HEADER_SIZE);
+    writeFully(header, position);
+    position += length;
+
+    decodeTime = decode;
+    sampleCount = 0;
+    payload.clear();
+  }
+
+  // Grows the file so that it holds end bytes and the header of the free box after them.
+  private void grow(long end) throws IOException {
+    if (allocated >= end + BOX_HEADER_SIZE) {
+      return;
+    }
+    allocated = end + BOX_HEADER_SIZE + preallocationBytes;
+    output.setLength(allocated);
+    if (started) {
+      writeFree(position);
+    }
+  }
+
+  // Writes the header of a free box from the given offset to the end of the file.
+  private void writeFree(long offset) throws IOException {
+    freeHeader.clear();
+    freeHeader.putInt((int) (allocated - offset));
+    freeHeader.putInt(FREE);
+    freeHeader.flip();
+    writeFully(freeHeader, offset);
+  }
+
+  private void writeFully(ByteBuffer buffer, long offset) throws IOException {
+    while (buffer.hasRemaining()) {
+      offset += channel.write(buffer, offset);
+    }
+  }
+
+  private static void writeFtyp(ByteBuffer b) {
+    int ftyp = beginBox(b, fourcc("ftyp"));
+    b.putInt(fourcc("iso6"));
+    b.putInt(0);
+    b.putInt(fourcc("isom"));
+    b.putInt(fourcc("iso6"));
+    b.putInt(fourcc("mp41"));
+    endBox(b, ftyp);
+  }
+
+  private static void writeMoov(
+      ByteBuffer b, boolean hevc, int width, int height, List<byte[]> parameterSets) {
+    int moov = beginBox(b, fourcc("moov"));
+
+    int mvhd = beginFullBox(b, fourcc("mvhd"), 0, 0);
+    b.putInt(0); // Creation time.
+    b.putInt(0); // Modification time.
+    b.putInt(MOVIE_TIMESCALE);
+    b.putInt(0); // Duration, given by the fragments.
+    b.putInt(0x00010000); // Rate 1.0.
+    b.putShort((short) 0x0100); // Volume 1.0.
+    putZeros(b, 10);
+    putMatrix(b);
+    putZeros(b, 24);
+    b.putInt(TRACK_ID + 1);
+    endBox(b, mvhd);
+
+    int trak = beginBox(b, fourcc("trak"));
+    // Enabled, in movie and in preview.
+    int tkhd = beginFullBox(b, fourcc("tkhd"), 0, 7);
+    b.putInt(0); // Creation time.
+    b.putInt(0); // Modification time.
+    b.putInt(TRACK_ID);
+    b.putInt(0);
+    b.putInt(0); // Duration.
+    putZeros(b, 16); // Reserved, layer, alternate group, volume, reserved.
+    putMatrix(b);
+    b.putInt(width << 16);
+    b.putInt(height << 16);
+    endBox(b, tkhd);
+
+    int mdia = beginBox(b, fourcc("mdia"));
+    int mdhd = beginFullBox(b, fourcc("mdhd"), 0, 0);
+    b.putInt(0); // Creation time.
+    b.putInt(0); // Modification time.
+    b.putInt(TIMESCALE);
+    b.putInt(0); // Duration.
+    b.putShort((short) 0x55c4); // Language "und".
+    b.putShort((short) 0);
+    endBox(b, mdhd);
+    int hdlr = beginFullBox(b, fourcc("hdlr"), 0, 0);
+    b.putInt(0);
+    b.putInt(fourcc("vide"));
+    putZeros(b, 12);
+    for (char c : "VideoHandler".toCharArray()) {
+      b.put((byte) c);
+    }
+    b.put((byte) 0);
+    endBox(b, hdlr);
+
+    int minf = beginBox(b, fourcc("minf"));
+    int vmhd = beginFullBox(b, fourcc("vmhd"), 0, 1);
+    putZeros(b, 8); // Graphics mode and color.
+    endBox(b, vmhd);
+    int dinf = beginBox(b, fourcc("dinf"));
+    int dref = beginFullBox(b, fourcc("dref"), 0, 0);
+    b.putInt(1);
+    // The data is in this file.
+    endBox(b, beginFullBox(b, fourcc("url "), 0, 1));
+    endBox(b, dref);
+    endBox(b, dinf);
+
+    int stbl = beginBox(b, fourcc("stbl"));
+    int stsd = beginFullBox(b, fourcc("stsd"), 0, 0);
+    b.putInt(1);
+    writeSampleEntry(b, hevc, width, height, parameterSets);
+    endBox(b, stsd);
+    // The samples are all in the fragments.
+    int stts = beginFullBox(b, fourcc("stts"), 0, 0);
+    b.putInt(0);
+    endBox(b, stts);
+    int stsc = beginFullBox(b, fourcc("stsc"), 0, 0);
+    b.putInt(0);
+    endBox(b, stsc);
+    int stsz = beginFullBox(b, fourcc("stsz"), 0, 0);
+    b.putInt(0);
+    b.putInt(0);
+    endBox(b, stsz);
+    int stco = beginFullBox(b, fourcc("stco"), 0, 0);
+    b.putInt(0);
+    endBox(b, stco);
+    endBox(b, stbl);
+    endBox(b, minf);
+    endBox(b, mdia);
+    endBox(b, trak);
+
+    int mvex = beginBox(b, fourcc("mvex"));
+    int trex = beginFullBox(b, fourcc("trex"), 0, 0);
+    b.putInt(TRACK_ID);
+    b.putInt(1); // Sample description.
+    b.putInt(0); // Duration, size and flags are given per sample.
+    b.putInt(0);
+    b.putInt(0);
+    endBox(b, trex);
+    endBox(b, mvex);
+
+    endBox(b, moov);
+  }
+
+  private static void writeSampleEntry(
+      ByteBuffer b, boolean hevc, int width, int height, List<byte[]> parameterSets) {
+    int entry = beginBox(b, fourcc(hevc ? "hvc1" : "avc1"));
+    putZeros(b, 6);
+    b.putShort((short) 1); // Data reference.
+    putZeros(b, 16);
+    b.putShort((short) width);
+    b.putShort((short) height);
+    b.putInt(0x00480000); // 72 dpi.
+    b.putInt(0x00480000);
+    b.putInt(0);
+    b.putShort((short) 1); // Frames per sample.
+    putZeros(b, 32); // Compressor name.
+    b.putShort((short) 0x18); // Depth.
+    b.putShort((short) -1);
+    if (hevc) {
+      writeHvcC(b, parameterSets);
+    } else {
+      writeAvcC(b, parameterSets);
+    }
+    endBox(b, entry);
+  }
+
+  private static void writeAvcC(ByteBuffer b, List<byte[]> parameterSets) {
+    List<byte[]> sps = nalUnitsOfType(parameterSets, false, 7);
+    List<byte[]> pps = nalUnitsOfType(parameterSets, false, 8);
+    if (sps.isEmpty() || pps.isEmpty() || sps.get(0).length < 4) {
+      throw new IllegalArgumentException("Codec config lacks an SPS or PPS");
+    }
+    byte[] first = sps.get(0);
+    int avcC = beginBox(b, fourcc("avcC"));
+    b.put((byte) 1);
+    b.put(first[1]); // Profile.
+    b.put(first[2]); // Constraint flags.
+    b.put(first[3]); // Level.
+    b.put((byte) 0xff); // 4-byte NAL unit lengths.
+    b.put((byte) (0xe0 | sps.size()));
+    putNalUnits(b, sps);
+    b.put((byte) pps.size());
+    putNalUnits(b, pps);
+    endBox(b, avcC);
+  }
+
+  // Assumes 8-bit 4:2:0, which is what encoders fed from a surface produce.
+  private static void writeHvcC(ByteBuffer b, List<byte[]> parameterSets) {
+    List<byte[]> vps = nalUnitsOfType(parameterSets, true, 32);
+    List<byte[]> sps = nalUnitsOfType(parameterSets, true, 33);
+    List<byte[]> pps = nalUnitsOfType(parameterSets, true, 34);
+    if (vps.isEmpty() || sps.isEmpty() || pps.isEmpty()) {
+      throw new IllegalArgumentException("Codec config lacks a VPS, SPS or PPS");
+    }
+    // After the NAL unit header: the layer counts, then the general profile, tier and level.
+    byte[] profile = unescape(sps.get(0), 2, 13);
+    int subLayers = ((profile[0] >> 1) & 7) + 1;
+    boolean temporalIdNested = (profile[0] & 1) != 0;
+
+    int hvcC = beginBox(b, fourcc("hvcC"));
+    b.put((byte) 1);
+    b.put(profile, 1, 12);
+    b.putShort((short) 0xf000); // No minimum spatial segmentation.
+    b.put((byte) 0xfc); // Unknown parallelism.
+    b.put((byte) 0xfd); // 4:2:0.
+    b.put((byte) 0xf8); // 8-bit luma.
+    b.put((byte) 0xf8); // 8-bit chroma.
+    b.putShort((short) 0); // Unknown frame rate.
+    b.put((byte) ((subLayers << 3) | (temporalIdNested ? 4 : 0) | 3));
+    b.put((byte) 3);
+    putNalUnitArray(b, 32, vps);
+    putNalUnitArray(b, 33, sps);
+    putNalUnitArray(b, 34, pps);
+    endBox(b, hvcC);
+  }
+
+  private static void putNalUnitArray(ByteBuffer b, int type, List<byte[]> units) {
+    b.put((byte) (0x80 | type)); // Complete: there are no others in the stream.
+    b.putShort((short) units.size());
+    putNalUnits(b, units);
+  }
+
+  private static void putNalUnits(ByteBuffer b, List<byte[]> units) {
+    for (byte[] unit : units) {
+      b.putShort((short) unit.length);
+      b.put(unit);
+    }
+  }
+
+  private static void putMatrix(ByteBuffer b) {
+    int[] identity = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+    for (int value : identity) {
+      b.putInt(value);
+    }
+  }
+
+  private static void putZeros(ByteBuffer b, int count) {
+    for (int i = 0; i < count; i++) {
+      b.put((byte) 0);
+    }
+  }
+
+  private static int beginBox(ByteBuffer b, int type) {
+    int start = b.position();
+    b.putInt(0);
+    b.putInt(type);
+    return start;
+  }
+
+  private static int beginFullBox(ByteBuffer b, int type, int version, int flags) {
+    int start = beginBox(b, type);
+    b.putInt((version << 24) | flags);
+    return start;
+  }
+
+  private static void endBox(ByteBuffer b, int start) {
+    b.putInt(start, b.position() - start);
+  }
+
+  private static int fourcc(String type) {
+    return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+  }
+
+  private static long ticks(long timeUs) {
+    return (timeUs * TIMESCALE + 500000) / 1000000;
+  }
+
+  // Copies an access unit to dst with each NAL unit prefixed by its 4-byte length instead of a
+  // start code, or only measures it if dst is null. Returns its size in dst.
+  private static int copyAccessUnit(ByteBuffer src, ByteBuffer dst) {
+    int start = src.position();
+    int end = src.limit();
+    int nal = firstNalUnit(src, start, end);
+    if (nal < 0) {
+      // Already length prefixed.
+      if (dst != null) {
+        dst.put(src);
+        src.position(start);
+      }
+      return end - start;
+    }
+    int size = 0;
+    while (nal < end) {
+      int next = findStartCode(src, nal, end);
+      int nalEnd = trimTrailingZeros(src, nal, next);
+      if (nalEnd > nal) {
+        if (dst != null) {
+          dst.putInt(nalEnd - nal);
+          src.limit(nalEnd);
+          src.position(nal);
+          dst.put(src);
+          src.limit(end);
+        }
+        size += 4 + nalEnd - nal;
+      }
+      nal = next + 3;
+    }
+    src.position(start);
+    return size;
+  }
+
+  // Splits Annex B buffers into NAL units. A buffer without start codes is one NAL unit.
+  private static List<byte[]> nalUnits(ByteBuffer... buffers) {
+    List<byte[]> units = new ArrayList<>();
+    for (ByteBuffer buffer : buffers) {
+      if (buffer == null) {
+        continue;
+      }
+      int end = buffer.limit();
+      int nal = firstNalUnit(buffer, buffer.position(), end);
+      if (nal < 0) {
+        units.add(bytes(buffer, buffer.position(), end));
+        continue;
+      }
+      while (nal < end) {
+        int next = findStartCode(buffer, nal, end);
+        int nalEnd = trimTrailingZeros(buffer, nal, next);
+        if (nalEnd > nal) {
+          units.add(bytes(buffer, nal, nalEnd));
+        }
+        nal = next + 3;
+      }
+    }
+    return units;
+  }
+
+  private static List<byte[]> nalUnitsOfType(List<byte[]> units, boolean hevc, int type) {
+    List<byte[]> ofType = new ArrayList<>();
+    for (byte[] unit : units) {
+      int unitType = hevc ? (unit[0] >> 1) & 0x3f : unit[0] & 0x1f;
+      if (unitType == type) {
+        ofType.add(unit);
+      }
+    }
+    return ofType;
+  }
+
+  // Start of the first NAL unit if the buffer starts with a 3 or 4-byte start code, or -1.
+  private static int firstNalUnit(ByteBuffer b, int start, int end) {
+    int code = findStartCode(b, start, Math.min(end, start + 4));
+    if (code == start || (code == start + 1 && b.get(start) == 0)) {
+      return code + 3;
+    }
+    return -1;
+  }
+
+  // Index of the next 0x000001 start code at or after from, or to if there is none.
+  private static int findStartCode(ByteBuffer b, int from, int to) {
+    for (int i = from; i + 2 < to; i++) {
+      if ((b.get(i + 2) & 0xff) > 1) {
+        // No start code can begin at i, i + 1 or i + 2.
+        i += 2;
+      } else if (b.get(i) == 0 && b.get(i + 1) == 0 && b.get(i + 2) == 1) {
+        return i;
+      }
+    }
+    return to;
+  }
+
+  // NAL units never end in a zero byte; zeros before a start code belong to the start code.
+  private static int trimTrailingZeros(ByteBuffer b, int start, int end) {
+    while (end > start && b.get(end - 1) == 0) {
+      end--;
+    }
+    return end;
+  }
+
+  private static byte[] bytes(ByteBuffer b, int start, int end) {
+    byte[] bytes = new byte[end - start];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = b.get(start + i);
+    }
+    return bytes;
+  }
+
+  // Reads count bytes of a NAL unit's payload from offset, removing emulation prevention bytes.
+  private static byte[] unescape(byte[] nal, int offset, int count) {
+    byte[] raw = new byte[count];
+    int n = 0;
+    int zeros = 0;
+    for (int i = offset; i < nal.length && n < count; i++) {
+      if (zeros >= 2 && nal[i] == 3) {
+        zeros = 0;
+        continue;
+      }
+      raw[n++] = nal[i];
+      zeros = nal[i] == 0 ? zeros + 1 : 0;
+    }
+    if (n < count) {
+      throw new IllegalArgumentException("Parameter set too short");
+    }
+    return raw;
+  }
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.ar.core.AugmentedImageDatabase;
+import com.google.ar.core.Session;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Loads the augmented image database off the UI thread.
+ *
+ * <p>Loading starts with the process: the serialized database is read from the assets on a
+ * background executor while the UI is set up. ARCore can only create the database once there is a
+ * session, so {@link #load} finishes the job on the same executor.
+ *
+ * <p>A database can also be built at runtime from the images in the {@code reference_images}
+ * asset directory, or from the sample image if there is none. The images are decoded in parallel
+ * and downsampled by a {@link BitmapIngester}. The database is then serialized into the cache
+ * directory, under a hash of the images, and later launches deserialize it instead of adding the
+ * images again.
+ *
+ * <p>The images can be split into {@link Shard shards}, one database per zone of the venue, listed
+ * in the {@code image_shards.json} asset in the order visitors usually walk through the zones:
+ *
+ * <pre>
+ *   [{"zone": "hall_a", "database": "shards/hall_a.imgdb", "baseIndex": 0}, ...]
+ * </pre>
+ *
+ * Image indices in a shard start at 0, so each shard has a base index that is added to them to get
+ * the content catalog index. Without the asset there is a single shard, the database above.
+ */
+@SuppressWarnings({"AndroidApiChecker", "FutureReturnValueIgnored"})
+// CompletableFuture requires api level 24
+public class ImageDatabaseLoader {
+  private static final String TAG = "ImageDatabaseLoader";
+
+  // This is the name of the image in the sample database.  A copy of the image is in the assets
+  // directory.  Opening this image on your computer is a good quick way to test the augmented image
+  // matching.
+  private static final String DEFAULT_IMAGE_NAME = "default.jpg";
+
+  // This is a pre-created database containing the sample image.
+  private static final String SAMPLE_IMAGE_DATABASE = "img_database.imgdb";
+
+  // Database compiled with physical image sizes by the compileImageDatabase Gradle task, used
+  // instead of the sample database when the app was built with an image manifest.
+  private static final String COMPILED_IMAGE_DATABASE = "compiled_images.imgdb";
+
+  // Augmented image configuration and rendering.
+  // Build the database from images at runtime (true) or load a pre-generated one (false).
+  private static final boolean USE_SINGLE_IMAGE = false;
+
+  // Asset directory of the images to build the database from at runtime, in catalog order.
+  private static final String REFERENCE_IMAGE_DIR = "reference_images";
+
+  // Databases built from bitmaps are cached as <prefix><hash>.imgdb. Change the version when the
+  // way the database is built changes, so older caches are rebuilt.
+  private static final String CACHE_PREFIX = "imagedb-";
+  private static final String CACHE_VERSION = "4";
+
+  // Number of images to ingest into a throwaway database once the first database is created, to
+  // measure BitmapIngester on a device. The database is handed to the session after the benchmark.
+  // 0, the default, skips the benchmark; set it to 200 to measure a venue-sized batch.
+  private static final int INGESTION_BENCHMARK_IMAGES = 0;
+
+  // Lists the database shards, if the images are split by zone.
+  private static final String SHARD_MANIFEST = "image_shards.json";
+
+  // Zone of the single shard used without a shard manifest.
+  public static final String DEFAULT_ZONE = "default";
+
+  /** One database of the images of a zone. */
+  public static final class Shard {
+    private final String zone;
+    // Asset holding the serialized database, or null for the default database.
+    private final String database;
+    private final int baseIndex;
+    private volatile int imageCount;
+
+    Shard(String zone, String database, int baseIndex) {
+      this.zone = zone;
+      this.database = database;
+      this.baseIndex = baseIndex;
+    }
+
+    public String getZone() {
+      return zone;
+    }
+
+    /** Content catalog index of the first image of the shard. */
+    public int getBaseIndex() {
+      return baseIndex;
+    }
+
+    /** Number of images in the shard, known once its database has been loaded. */
+    public int getImageCount() {
+      return imageCount;
+    }
+
+    @Override
+    public String toString() {
+      return zone;
+    }
+  }
+
+  // What the database is created from, read before there is a session.
+  private static final class Source {
+    // Where the database comes from: the assets, the cache, or bitmaps.
+    String origin;
+    // Serialized database, or null if it has to be built from the images.
+    byte[] serialized;
+    // Image assets to build the database from.
+    List<String> images;
+    // Where to cache the database built from the images.
+    File cacheFile;
+    long readyMs;
+  }
+
+  private final AssetManager assetManager;
+  private final File cacheDir;
+  private final Executor executor;
+  private final CompletableFuture<List<Shard>> shards;
+
+  // Shards whose database is being read, by zone. A source is dropped once its database is created.
+  private final ConcurrentHashMap<String, CompletableFuture<Source>> sources =
+      new ConcurrentHashMap<>();
+  // Set once the ingestion benchmark has run, so it runs once per process.
+  private final AtomicBoolean benchmarked = new AtomicBoolean();
+
+  public ImageDatabaseLoader(Context context, Executor executor) {
+    this.assetManager = context.getAssets();
+    this.cacheDir = context.getCacheDir();
+    this.executor = executor;
+    shards = CompletableFuture.supplyAsync(this::readShards, executor);
+    // Start reading the first shard right away.
+    shards.thenAccept(list -> read(list.get(0)));
+  }
+
+  public Executor getExecutor() {
+    return executor;
+  }
+
+  /** The shards, in walking order, once the shard manifest has been read. */
+  public CompletableFuture<List<Shard>> getShards() {
+    return shards;
+  }
+
+  /**
+   * Creates the database of the shard for the session. The future completes on the loader's
+   * executor, or exceptionally if the database could not be read.
+   */
+  public CompletableFuture<AugmentedImageDatabase> load(Session session, Shard shard) {
+    long requestedMs = SystemClock.uptimeMillis();
+    CompletableFuture<Source> source = read(shard);
+    return source.thenApplyAsync(
+        read -> {
+          sources.remove(shard.getZone(), source);
+          return createDatabase(session, shard, read, requestedMs);
+        },
+        executor);
+  }
+
+  private CompletableFuture<Source> read(Shard shard) {
+    return sources.computeIfAbsent(
+        shard.getZone(), zone -> CompletableFuture.supplyAsync(() -> readSource(shard), executor));
+  }
+
+  private List<Shard> readShards() {
+    String json;
+    try {
+      json = new String(readAsset(SHARD_MANIFEST), StandardCharsets.UTF_8);
+    } catch (FileNotFoundException e) {
+      return Collections.singletonList(new Shard(DEFAULT_ZONE, null, 0));
+    } catch (IOException e) {
+      throw new CompletionException(e);
+    }
+
+    try {
+      JSONArray array = new JSONArray(json);
+      List<Shard> list = new ArrayList<>(array.length());
+      for (int i = 0; i < array.length(); i++) {
+        JSONObject shard = array.getJSONObject(i);
+        list.add(
+            new Shard(
+                shard.getString("zone"), shard.getString("database"), shard.getInt("baseIndex")));
+      }
+      if (list.isEmpty()) {
+        throw new JSONException("No shards");
+      }
+      return list;
+    } catch (JSONException e) {
+      throw new CompletionException(new IOException("Invalid " + SHARD_MANIFEST, e));
+    }
+  }
+
+  private Source readSource(Shard shard) {
+    Source source = new Source();
+    try {
+      // There are two ways to configure an AugmentedImageDatabase:
+      // 1. Add Bitmap to DB directly
+      // 2. Load a pre-built AugmentedImageDatabase
+      // Option 2) has
+      // * shorter setup time
+      // * doesn't require images to be packaged in apk.
+      // Shards are always pre-built.
+      if (shard.database != null) {
+        source.origin = shard.database;
+        source.serialized = readAsset(shard.database);
+      } else if (USE_SINGLE_IMAGE) {
+        List<String> images = listReferenceImages();
+        File cacheFile = new File(cacheDir, CACHE_PREFIX + hash(images) + ".imgdb");
+        if (cacheFile.exists()) {
+          source.origin = "cache";
+          source.serialized = readFile(cacheFile);
+        } else {
+          // Decoding waits for the session, so that the bitmaps can be handed to ARCore as they
+          // are decoded instead of all being held in memory.
+          source.origin = "bitmaps";
+          source.images = images;
+          source.cacheFile = cacheFile;
+        }
+      } else {
+        source.origin = "assets";
+        source.serialized = readDatabaseAsset();
+      }
+    } catch (IOException e) {
+      throw new CompletionException(e);
+    }
+    source.readyMs = SystemClock.uptimeMillis();
+    return source;
+  }
+
+  private AugmentedImageDatabase createDatabase(
+      Session session, Shard shard, Source source, long requestedMs) {
+    long startMs = SystemClock.uptimeMillis();
+    AugmentedImageDatabase database;
+    if (source.serialized != null) {
+      try {
+        InputStream in = new ByteArrayInputStream(source.serialized);
+        database = AugmentedImageDatabase.deserialize(session, in);
+      } catch (IOException e) {
+        throw new CompletionException(e);
+      }
+    } else {
+      database = new AugmentedImageDatabase(session);
+      // If the physical size of the images is known, BitmapIngester could instead use:
+      //     augmentedImageDatabase.addImage("image_name", augmentedImageBitmap, widthInMeters);
+      // This will improve the initial detection speed. ARCore will still actively estimate the
+      // physical size of the image as it is viewed from multiple viewpoints.
+      try {
+        new BitmapIngester(assetManager).ingest(source.images, database);
+      } catch (IOException e) {
+        throw new CompletionException(e);
+      }
+      writeCache(database, source.cacheFile);
+    }
+    shard.imageCount = database.getNumImages();
+    long endMs = SystemClock.uptimeMillis();
+    if (INGESTION_BENCHMARK_IMAGES > 0 && benchmarked.compareAndSet(false, true)) {
+      benchmarkIngestion(session);
+    }
+
+    long processStartMs = Process.getStartUptimeMillis();
+    Log.d(
+        TAG,
+        String.format(
+            "Image database %s from %s: read %d ms after process start, requested at %d ms, "
+                + "created in %d ms, ready %d ms after process start",
+            shard,
+            source.origin,
+            source.readyMs - processStartMs,
+            requestedMs - processStartMs,
+            endMs - startMs,
+            endMs - processStartMs));
+    return database;
+  }
+
+  private byte[] readDatabaseAsset() throws IOException {
+    try {
+      return readAsset(COMPILED_IMAGE_DATABASE);
+    } catch (FileNotFoundException e) {
+      return readAsset(SAMPLE_IMAGE_DATABASE);
+    }
+  }
+
+  // Writes to a temporary file first, so an interrupted write never leaves a truncated cache.
+  private void writeCache(AugmentedImageDatabase database, File cacheFile) {
+    File temp = new File(cacheDir, cacheFile.getName() + ".tmp");
+    try (OutputStream out = new FileOutputStream(temp)) {
+      database.serialize(out);
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to cache the augmented image database", e);
+      temp.delete();
+      return;
+    }
+    if (!temp.renameTo(cacheFile)) {
+      Log.e(TAG, "Unable to cache the augmented image database");
+      temp.delete();
+      return;
+    }
+
+    // Drop databases cached for older images.
+    File[] files = cacheDir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.getName().startsWith(CACHE_PREFIX) && !file.equals(cacheFile)) {
+          file.delete();
+        }
+      }
+    }
+  }
+
+  // Ingests INGESTION_BENCHMARK_IMAGES images into a throwaway database and logs the time and
+  // memory it took. The reference images, or the sample image, are repeated to make up the batch,
+  // so this runs whichever way the databases of the app are created.
+  private void benchmarkIngestion(Session session) {
+    try {
+      List<String> images = listReferenceImages();
+      List<String> batch = new ArrayList<>(INGESTION_BENCHMARK_IMAGES);
+      for (int i = 0; i < INGESTION_BENCHMARK_IMAGES; i++) {
+        batch.add(images.get(i % images.size()));
+      }
+      BitmapIngester.Stats stats =
+          new BitmapIngester(assetManager).ingest(batch, new AugmentedImageDatabase(session));
+      Log.d(TAG, "Ingestion benchmark: " + stats);
+    } catch (IOException e) {
+      Log.e(TAG, "Ingestion benchmark failed", e);
+    }
+  }
+
+  // Image assets in the reference image directory, sorted by name, or the sample image.
+  private List<String> listReferenceImages() throws IOException {
+    String[] names = assetManager.list(REFERENCE_IMAGE_DIR);
+    if (names == null || names.length == 0) {
+      return Collections.singletonList(DEFAULT_IMAGE_NAME);
+    }
+    Arrays.sort(names);
+    List<String> images = new ArrayList<>(names.length);
+    for (String name : names) {
+      images.add(REFERENCE_IMAGE_DIR + "/" + name);
+    }
+    return images;
+  }
+
+  private byte[] readAsset(String name) throws IOException {
+    try (InputStream in = assetManager.open(name)) {
+      return readFully(in);
+    }
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      return readFully(in);
+    }
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(in.available(), 8192));
+    byte[] buffer = new byte[8192];
+    int count;
+    while ((count = in.read(buffer)) != -1) {
+      out.write(buffer, 0, count);
+    }
+    return out.toByteArray();
+  }
+
+  // Hashes the names and contents of the images, streaming them so they are not all in memory.
+  private String hash(List<String> images) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    digest.update(CACHE_VERSION.getBytes(StandardCharsets.UTF_8));
+    byte[] buffer = new byte[8192];
+    for (String image : images) {
+      digest.update(image.getBytes(StandardCharsets.UTF_8));
+      try (InputStream in = assetManager.open(image)) {
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+          digest.update(buffer, 0, count);
+        }
+      }
+    }
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+}
@@ -18,7 +18,6 @@ package com.google.ar.sceneform.rmslab;
 import android.Manifest;
 import android.app.Activity;
 import android.app.ActivityManager;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
@@ -27,7 +26,6 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Build.VERSION_CODES;
 import android.os.Bundle;
-import android.provider.MediaStore;
 import android.provider.Settings;
 import android.support.design.widget.FloatingActionButton;
 import android.support.design.widget.Snackbar;
@@ -46,13 +44,17 @@ import com.google.ar.sceneform.FrameTime;
 import com.google.ar.sceneform.animation.ModelAnimator;
 import com.google.ar.sceneform.rendering.AnimationData;
 import com.google.ar.sceneform.rendering.ModelRenderable;
+import com.google.ar.sceneform.rmslab.helpers.FrameProfiler;
+import com.google.ar.sceneform.rmslab.tracking.ImageRegistry;
+import com.google.ar.sceneform.rmslab.tracking.ImageTracker;
+import com.google.ar.sceneform.rmslab.tracking.TrackingStateMachine;
 import com.google.ar.sceneform.ux.ArFragment;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.concurrent.CompletableFuture;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This is an example activity that uses the Sceneform UX package to make common AR tasks easier.
@@ -61,33 +63,164 @@ public class MainActivity extends AppCompatActivity {
   private static final String TAG = MainActivity.class.getSimpleName();
   private static final double MIN_OPENGL_VERSION = 3.0;
 
-  private static final Integer ANDY_INDEX = 0;
-  private static final Integer DEPTH_DRONE_INDEX = 1;
-  private static final Integer DRONE_INDEX = 2;
-  private static final Integer EARTH_INDEX = 3;
-  private static final Integer IRON_INDEX = 4;
+  // Describes the model, scale, animations and messages for each image index.
+  private static final String CONTENT_CATALOG = "content_catalog.bin";
 
-  // Augmented image and its associated center pose anchor, keyed by the augmented image in
-  // the database.
-  private final Map<AugmentedImage, AugmentedImageNode> augmentedImageMap = new HashMap<>();
+  // Number of models to start loading before any image is detected. The catalog lists models in
+  // order of how likely they are to be seen, so this warms the most common markers only.
+  private static final int PREFETCH_COUNT = 1;
 
-  public Map<Integer, ArrayList<String>> getNodeMsg() {
-    return nodeMsg;
+  // Estimated memory the loaded models may use before models of stopped images are evicted, and
+  // how long an image must have been stopped before its model can be evicted.
+  private static final long RENDERABLE_BUDGET_BYTES = 128L * 1024 * 1024;
+  private static final long RENDERABLE_EVICTION_DELAY_MS = 30_000;
+
+  // Most anchors kept alive at once. Past this, the least recently tracked held image is released,
+  // and a new image waits while all of them are tracked.
+  private static final int MAX_LIVE_ANCHORS = 8;
+
+  // How long content of a lost image is held at its last pose before it is released, and how long
+  // the image must have been lost before the held content fades.
+  private static final long LOST_IMAGE_GRACE_PERIOD_MS = 3_000;
+  private static final long LOST_IMAGE_FADE_DELAY_MS = 500;
+  private static final boolean FADE_HELD_CONTENT = true;
+
+  // TRACKING updates in a row needed before content is created for a newly detected image.
+  private static final int ACQUIRE_TRACKING_FRAMES = 2;
+
+  // Stages of onUpdateFrame timed by the frame profiler.
+  private static final int STAGE_GET_AR_FRAME = 0;
+  private static final int STAGE_GET_UPDATED_TRACKABLES = 1;
+  private static final int STAGE_STATE_HANDLING = 2;
+  private static final int STAGE_NODE_CREATION = 3;
+
+  // File in the app's external files directory the frame times are written to on pause.
+  private static final String FRAME_TIMES_FILE = "frame_times.txt";
+
+  // Records every frame seen by onUpdateFrame into a session log in the app's external files
+  // directory, to be replayed off device by the replaySession task of the tracking module.
+  private static final boolean RECORD_SESSION = false;
+  private static final String SESSION_LOG_FILE = "session.rlog";
+
+  // Records videos with a MediaRecorder. VideoRecorder.ENGINE_MEDIA_CODEC instead records with a
+  // MediaCodec encoder, which reports encode latency and dropped frames.
+  private static final int VIDEO_RECORDER_ENGINE = VideoRecorder.ENGINE_MEDIA_RECORDER;
+
+  // Keeps the last seconds of video in memory while recording, instead of writing a file. A long
+  // press on the record button saves them.
+  private static final boolean INSTANT_REPLAY = false;
+  private static final int INSTANT_REPLAY_SECONDS = 15;
+  private static final int INSTANT_REPLAY_MAX_BYTES = 64 * 1024 * 1024;
+
+  // Writes recordings as a directory of segments, rolled every few seconds or megabytes, so a
+  // kiosk that is power-cycled while recording keeps all but the last segment.
+  private static final boolean SEGMENTED_RECORDING = false;
+  private static final int RECORDING_SEGMENT_SECONDS = 10;
+  private static final long RECORDING_SEGMENT_MAX_BYTES = 64 * 1024 * 1024;
+
+  // Moves the moov of finished videos before their media data, so they start playing before they
+  // are fully downloaded when shared.
+  private static final boolean FAST_START_VIDEOS = true;
+
+  // Also records each video as a small proxy to share right away, encoded alongside the video
+  // instead of transcoded from it afterwards.
+  private static final boolean RECORD_PROXY = true;
+  private static final int PROXY_SHORT_SIDE = 480;
+  private static final int PROXY_BIT_RATE = 2000000;
+
+  // AR frame rate that the recording quality is lowered to hold.
+  private static final float RECORDING_TARGET_FRAME_RATE = 30;
+
+  // Released image nodes kept for reuse, per catalog entry.
+  private static final int POOLED_NODES_PER_ENTRY = 1;
+
+  // Anchors and nodes of the augmented images in the scene.
+  private AnchorManager anchorManager;
+
+  // Decides when content is created, held and released for each image.
+  private ImageTracker<AugmentedImage> imageTracker;
+
+  // Writes the session log, if RECORD_SESSION is set.
+  private SessionRecorder sessionRecorder;
+
+  // Node subtrees of stopped images, reused when the image is detected again.
+  private final NodePool nodePool = new NodePool(POOLED_NODES_PER_ENTRY);
+
+  // Histograms of the time spent in onUpdateFrame, in total and per stage.
+  private final FrameProfiler frameProfiler =
+      new FrameProfiler(
+          "getArFrame", "getUpdatedTrackables", "stateHandling", "nodeCreation");
+
+  public FrameProfiler getFrameProfiler() {
+    return frameProfiler;
   }
 
-  private Map<Integer, ArrayList<String>> nodeMsg = new HashMap<>();
+  // Turns per-frame image updates into transition events, so the UI is only touched on changes.
+  private final TrackingStateMachine trackingStateMachine =
+      new TrackingStateMachine(
+          new TrackingStateMachine.Listener() {
+            @Override
+            public void onImageTracked(int index) {
+              Log.d(TAG, "Image " + index + " tracked");
+            }
+
+            @Override
+            public void onImageLost(int index) {
+              Log.d(TAG, "Image " + index + " lost");
+            }
+
+            @Override
+            public void onStateChanged(TrackingStateMachine.State state) {
+              // Show the scanning hint only while no image is tracked.
+              runOnUiThread(
+                  () ->
+                      fitToScanView.setVisibility(
+                          state == TrackingStateMachine.State.TRACKING
+                              ? View.GONE
+                              : View.VISIBLE));
+            }
+          });
+
+  private ContentCatalog contentCatalog;
+
+  public ContentCatalog getContentCatalog() {
+    return contentCatalog;
+  }
 
-  private HashMap<Integer, CompletableFuture<ModelRenderable>> renderableMap = new HashMap<>();
+  // Builds each model the first time its image is detected.
+  private RenderableLoader renderableLoader;
 
-  public HashMap<Integer, CompletableFuture<ModelRenderable> > getRenderableMap() {
-    return renderableMap;
+  public RenderableLoader getRenderableLoader() {
+    return renderableLoader;
+  }
+
+  // Attaches content to image nodes once their model has loaded.
+  private final PlacementQueue placementQueue = new PlacementQueue();
+
+  public PlacementQueue getPlacementQueue() {
+    return placementQueue;
+  }
+
+  public AnchorManager getAnchorManager() {
+    return anchorManager;
+  }
+
+  public ImageTracker<AugmentedImage> getImageTracker() {
+    return imageTracker;
   }
 
   public ArFragment arFragment;
 
+  // The same fragment, which owns the augmented image database shards.
+  private AugmentedImageFragment augmentedImageFragment;
+
   // VideoRecorder encapsulates all the video recording functionality.
   private VideoRecorder videoRecorder;
 
+  // Steps the recording quality down when recording slows the AR view, and back up.
+  private final RecordingGovernor recordingGovernor =
+      new RecordingGovernor(RECORDING_TARGET_FRAME_RATE);
+
   // Controls animation playback.
   private ModelAnimator animator;
 
@@ -121,22 +254,75 @@ public class MainActivity extends AppCompatActivity {
     }
 
     setContentView(R.layout.activity_ux);
-    //Load all the 3d models
-    loadModels();
+    //Open the content catalog, the 3d models are loaded on first detection
+    if (!openContentCatalog()) {
+      return;
+    }
+    renderableLoader.prefetch(PREFETCH_COUNT);
 
     arFragment = (ArFragment) getSupportFragmentManager().findFragmentById(R.id.ux_fragment);
+    augmentedImageFragment = (AugmentedImageFragment) arFragment;
+    augmentedImageFragment.setOnShardChangedListener(this::onShardChanged);
     fitToScanView = findViewById(R.id.image_view_fit_to_scan);
 
+    anchorManager =
+        new AnchorManager(
+            this,
+            arFragment.getArSceneView().getScene(),
+            renderableLoader,
+            placementQueue,
+            nodePool);
+    anchorManager.setProfiler(frameProfiler, STAGE_NODE_CREATION);
+    imageTracker = new ImageTracker<>(anchorManager, trackingStateMachine);
+    imageTracker.setMaxLiveAnchors(MAX_LIVE_ANCHORS);
+    imageTracker.setGracePeriod(
+        LOST_IMAGE_GRACE_PERIOD_MS, LOST_IMAGE_FADE_DELAY_MS, FADE_HELD_CONTENT);
+    imageTracker.setAcquireFrames(ACQUIRE_TRACKING_FRAMES);
+    if (RECORD_SESSION) {
+      startSessionRecording();
+    }
+    // Pooled nodes would keep an evicted model alive.
+    renderableLoader.setOnEvictListener(nodePool::clear);
     arFragment.getArSceneView().getScene().addOnUpdateListener(this::onUpdateFrame);
 
     // Initialize the VideoRecorder.
     videoRecorder = new VideoRecorder();
     int orientation = getResources().getConfiguration().orientation;
     videoRecorder.setVideoQuality(CamcorderProfile.QUALITY_2160P, orientation);
+    videoRecorder.setEngine(VIDEO_RECORDER_ENGINE);
+    videoRecorder.setGovernor(recordingGovernor);
+    if (SEGMENTED_RECORDING) {
+      videoRecorder.setSegmentation(RECORDING_SEGMENT_SECONDS, RECORDING_SEGMENT_MAX_BYTES);
+    }
+    if (RECORD_PROXY) {
+      videoRecorder.setProxy(PROXY_SHORT_SIDE, PROXY_BIT_RATE);
+    }
+    if (INSTANT_REPLAY) {
+      videoRecorder.setInstantReplay(INSTANT_REPLAY_SECONDS, INSTANT_REPLAY_MAX_BYTES);
+    }
     videoRecorder.setSceneView(arFragment.getArSceneView());
+    videoRecorder.setContentResolver(getContentResolver());
+    if (FAST_START_VIDEOS) {
+      videoRecorder.setPostProcessExecutor(
+          ((RmsLabApplication) getApplication()).getVideoPostProcessExecutor());
+    }
+    videoRecorder.setListener(
+        new VideoRecorder.Listener() {
+          @Override
+          public void onStateChanged(VideoRecorder.State state) {
+            onRecorderStateChanged(state);
+          }
+
+          @Override
+          public void onVideoSaved(File video) {
+            Toast.makeText(MainActivity.this, "Video saved: " + video, Toast.LENGTH_SHORT).show();
+            Log.d(TAG, "Video saved: " + video);
+          }
+        });
 
     recordButton = findViewById(R.id.record);
     recordButton.setOnClickListener(this::toggleRecording);
+    recordButton.setOnLongClickListener(unusedView -> videoRecorder.saveReplay());
     recordButton.setEnabled(true);
     recordButton.setImageResource(R.drawable.round_videocam);
 
@@ -148,134 +334,113 @@ public class MainActivity extends AppCompatActivity {
 
   }
 
-  private void loadModels() {
-    CompletableFuture<ModelRenderable> andyFutureRenderable;
-    andyFutureRenderable =
-            ModelRenderable.builder()
-                    .setSource(this, R.raw.andy_dance)
-                    .build();
-    renderableMap.put(ANDY_INDEX, andyFutureRenderable);
-    nodeMsg.put(ANDY_INDEX, new ArrayList<>());
-    nodeMsg.get(ANDY_INDEX).add("Hi!");
-    nodeMsg.get(ANDY_INDEX).add("Welcome to CSE 611");
-    nodeMsg.get(ANDY_INDEX).add("I'm Andy!");
-    nodeMsg.get(ANDY_INDEX).add("m cool :)");
-    nodeMsg.get(ANDY_INDEX).add("Wassup?");
-    nodeMsg.get(ANDY_INDEX).add("Android - modified version of Linux");
-    nodeMsg.get(ANDY_INDEX).add("Latest release: 9.0 Pie");
-    nodeMsg.get(ANDY_INDEX).add("ll meet soon");
-    nodeMsg.get(ANDY_INDEX).add("byeeee");
-
-    andyFutureRenderable =
-            ModelRenderable.builder()
-                    .setSource(this, R.raw.depth_drone)
-                    .build();
-    renderableMap.put(DEPTH_DRONE_INDEX, andyFutureRenderable);
-    nodeMsg.put(DEPTH_DRONE_INDEX, new ArrayList<>());
-    nodeMsg.get(DEPTH_DRONE_INDEX).add("Hi!");
-    nodeMsg.get(DEPTH_DRONE_INDEX).add("Its a Deep Drone");
-    nodeMsg.get(DEPTH_DRONE_INDEX).add("Submersible Remotely operated vehicle");
-    nodeMsg.get(DEPTH_DRONE_INDEX).add("Designed for mid-water salvage for US Navy");
-    nodeMsg.get(DEPTH_DRONE_INDEX).add("Operated by Phoenix International");
-    nodeMsg.get(DEPTH_DRONE_INDEX).add("Length: 9 ft 3 in");
-    nodeMsg.get(DEPTH_DRONE_INDEX).add("Width: 4 ft 7 in");
-    nodeMsg.get(DEPTH_DRONE_INDEX).add("Height: 6 ft 2 in");
-    nodeMsg.get(DEPTH_DRONE_INDEX).add("Maximum Depth: 8,000 ft (2,440 m)");
-
-    andyFutureRenderable =
-            ModelRenderable.builder()
-                    .setSource(this, R.raw.drone)
-                    .build();
-    renderableMap.put(DRONE_INDEX, andyFutureRenderable);
-    nodeMsg.put(DRONE_INDEX, new ArrayList<>());
-    nodeMsg.get(DRONE_INDEX).add("Hi!");
-    nodeMsg.get(DRONE_INDEX).add("Drone used by Police");
-    nodeMsg.get(DRONE_INDEX).add("Be careful");
-    nodeMsg.get(DRONE_INDEX).add("Designed carefully");
-    nodeMsg.get(DRONE_INDEX).add("Loaded with sophisticated camera");
-    nodeMsg.get(DRONE_INDEX).add("Danger!");
-
-    andyFutureRenderable =
-            ModelRenderable.builder()
-                    .setSource(this, R.raw.globe)
-                    .build();
-    renderableMap.put(EARTH_INDEX, andyFutureRenderable);
-    nodeMsg.put(EARTH_INDEX, new ArrayList<>());
-    nodeMsg.get(EARTH_INDEX).add("Hi!");
-    nodeMsg.get(EARTH_INDEX).add("m mother earth");
-    nodeMsg.get(EARTH_INDEX).add("Third planet from the Sun ");
-    nodeMsg.get(EARTH_INDEX).add("I'm beautiful");
-    nodeMsg.get(EARTH_INDEX).add("Formed over 4.5 billion years ago");
-    nodeMsg.get(EARTH_INDEX).add("Only natural satellite.");
-    nodeMsg.get(EARTH_INDEX).add("Revolves around the Sun in 365.26 days");
-    nodeMsg.get(EARTH_INDEX).add("71% is covered with water");
-    nodeMsg.get(EARTH_INDEX).add("Over the next 3.5 Bys, solar luminosity will increase by 40%");
-
-    andyFutureRenderable =
-            ModelRenderable.builder()
-                    .setSource(this, R.raw.iron_man)
-                    .build();
-    renderableMap.put(IRON_INDEX, andyFutureRenderable);
-    nodeMsg.put(IRON_INDEX, new ArrayList<>());
-    nodeMsg.get(IRON_INDEX).add("Hi!");
-    nodeMsg.get(IRON_INDEX).add("Everyone knows me :)");
-    nodeMsg.get(IRON_INDEX).add("A billionaire industrialist and genius inventor");
-    nodeMsg.get(IRON_INDEX).add("Tony Stark");
-    nodeMsg.get(IRON_INDEX).add("Terrorists kidnap me");
-    nodeMsg.get(IRON_INDEX).add("and guess what :)");
-    nodeMsg.get(IRON_INDEX).add("I built this armored suit there :)");
-    nodeMsg.get(IRON_INDEX).add("member of team Avengers");
+  private boolean openContentCatalog() {
+    try {
+      contentCatalog = ContentCatalog.open(getAssets(), CONTENT_CATALOG);
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to open content catalog", e);
+      Toast.makeText(this, "Unable to open content catalog", Toast.LENGTH_LONG).show();
+      finish();
+      return false;
+    }
+
+    renderableLoader =
+        new RenderableLoader(
+            this, contentCatalog, RENDERABLE_BUDGET_BYTES, RENDERABLE_EVICTION_DELAY_MS);
+    return true;
+  }
+
+  /** Switches to the augmented image database shard of the zone the user is in. */
+  public void setZone(String zone) {
+    augmentedImageFragment.setZone(zone);
+  }
+
+  // The images of the previous shard can no longer be detected, release their content.
+  private void onShardChanged(
+      ImageDatabaseLoader.Shard previous, ImageDatabaseLoader.Shard active) {
+    int from = previous.getBaseIndex();
+    int to = from + previous.getImageCount();
+    Log.d(TAG, "Image database shard " + previous + " replaced by " + active);
+    imageTracker.releaseRange(from, to);
+    for (int index = from; index < to; index++) {
+      renderableLoader.release(index);
+    }
+  }
+
+  private void startSessionRecording() {
+    File file = new File(getExternalFilesDir(null), SESSION_LOG_FILE);
+    try {
+      sessionRecorder = new SessionRecorder(file, imageTracker);
+      Log.d(TAG, "Recording session to " + file);
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to record session", e);
+    }
   }
 
   private void onUpdateFrame(FrameTime frameTime) {
+    recordingGovernor.onFrame();
+    videoRecorder.onFrame();
+    frameProfiler.beginFrame();
     Frame frame = arFragment.getArSceneView().getArFrame();
+    frameProfiler.mark(STAGE_GET_AR_FRAME);
 
     // If there is no frame or ARCore is not tracking yet, just return.
     if (frame == null || frame.getCamera().getTrackingState() != TrackingState.TRACKING) {
+      if (sessionRecorder != null && frame != null) {
+        sessionRecorder.record(frame, null, 0);
+      }
+      frameProfiler.endFrame();
       return;
     }
 
+    // Time is taken from the camera frame, so a replayed session sees the same clock.
+    long nowMs = TimeUnit.NANOSECONDS.toMillis(frame.getTimestamp());
     Collection<AugmentedImage> updatedAugmentedImages =
             frame.getUpdatedTrackables(AugmentedImage.class);
+    frameProfiler.mark(STAGE_GET_UPDATED_TRACKABLES);
+    // Image indices restart at 0 in every database shard, offset them into the content catalog.
+    int indexBase = augmentedImageFragment.getIndexBase();
+    if (sessionRecorder != null) {
+      sessionRecorder.record(frame, updatedAugmentedImages, indexBase);
+    }
     for (AugmentedImage augmentedImage : updatedAugmentedImages) {
-      switch (augmentedImage.getTrackingState()) {
-        case PAUSED:
-          // When an image is in PAUSED state, but the camera is not PAUSED, it has been detected,
-          // but not yet tracked.
-          //String text = "Detected Image " + augmentedImage.getIndex();
-          //SnackbarHelper.getInstance().showMessage(this, text);
-          break;
-
-        case TRACKING:
-          // Have to switch to UI Thread to update View.
-          fitToScanView.setVisibility(View.GONE);
-
-          // Create a new anchor for newly found images.
-          if (!augmentedImageMap.containsKey(augmentedImage)) {
-            AugmentedImageNode node = new AugmentedImageNode(this);
-            node.setImage(augmentedImage);
-            augmentedImageMap.put(augmentedImage, node);
-            arFragment.getArSceneView().getScene().addChild(node);
-          }
-          break;
-
-        case STOPPED:
-          augmentedImageMap.remove(augmentedImage);
-          break;
+      // Their index is in a previous shard, and their content was released with it.
+      if (!augmentedImageFragment.isActive(augmentedImage)) {
+        continue;
       }
+      imageTracker.update(
+          augmentedImage,
+          indexBase + augmentedImage.getIndex(),
+          AnchorManager.toStatus(augmentedImage.getTrackingState()),
+          nowMs);
     }
+    imageTracker.endFrame(nowMs);
+
+    renderableLoader.trim();
+    frameProfiler.mark(STAGE_STATE_HANDLING);
+    frameProfiler.endFrame();
   }
 
   private void onPlayAnimation(View unusedView) {
-    if(augmentedImageMap.size() == 0)
+    if(anchorManager.isEmpty())
       return;
 
-    for(Map.Entry<AugmentedImage, AugmentedImageNode> entry : augmentedImageMap.entrySet()) {
-      if(entry.getKey().getIndex() == ANDY_INDEX) {
-        ModelRenderable andyRenderable = entry.getValue().getModelFutureRenderable();
+    ImageRegistry<AugmentedImageNode> nodes = anchorManager.getNodes();
+    for (int i = 0; i < nodes.size(); i++) {
+      AugmentedImageNode node = nodes.valueAt(i);
+      ContentCatalog.Entry content = node.getEntry();
+      ModelRenderable andyRenderable = node.getModelFutureRenderable();
+      if(content != null && !content.getAnimations().isEmpty() && andyRenderable != null) {
         if (animator == null || !animator.isRunning()) {
-          AnimationData data = andyRenderable.getAnimationData(nextAnimation);
-          nextAnimation = (nextAnimation + 1) % andyRenderable.getAnimationDataCount();
+          List<String> animations = content.getAnimations();
+          String name = animations.get(nextAnimation % animations.size());
+          nextAnimation = (nextAnimation + 1) % animations.size();
+          AnimationData data = andyRenderable.getAnimationData(name);
+          if (data == null) {
+            // The catalog names an animation the model does not have.
+            Log.e(TAG, "No animation " + name + " in the model of image " + content.getIndex());
+            continue;
+          }
           animator = new ModelAnimator(data, andyRenderable);
           animator.start();
           Toast toast = Toast.makeText(this, data.getName(), Toast.LENGTH_SHORT);
@@ -292,12 +457,66 @@ public class MainActivity extends AppCompatActivity {
 
   @Override
   protected void onPause() {
-    //if (videoRecorder.isRecording()) {
-    //  toggleRecording(null);
-    //}
+    // Stop mirroring before the scene view pauses; the video is finalized in the background.
+    videoRecorder.finishRecording();
+    Log.d(TAG, "Content placement: " + placementQueue);
+    Log.d(TAG, "View updates saved: " + trackingStateMachine.getSavedUpdateCount());
+    Log.d(TAG, "Frame times:\n" + frameProfiler.summary());
+    // Written off the UI thread. Frames recorded after a resume may or may not make it in.
+    ((RmsLabApplication) getApplication())
+        .getDiagnosticsExecutor()
+        .execute(
+            () -> {
+              try {
+                frameProfiler.dump(new File(getExternalFilesDir(null), FRAME_TIMES_FILE));
+              } catch (IOException e) {
+                Log.e(TAG, "Unable to write frame times", e);
+              }
+            });
+    Log.d(
+        TAG,
+        "Live anchors: "
+            + anchorManager.getLiveAnchorCount()
+            + ", nodes: "
+            + anchorManager.getNodeCount()
+            + ", held: "
+            + imageTracker.getHeldCount()
+            + ", revived: "
+            + imageTracker.getRevivedCount()
+            + ", evicted: "
+            + imageTracker.getEvictedCount()
+            + ", deferred: "
+            + imageTracker.getDeferredCount()
+            + ", pooled node reuses: "
+            + nodePool.getHitCount()
+            + "/"
+            + (nodePool.getHitCount() + nodePool.getMissCount()));
+    if (sessionRecorder != null) {
+      sessionRecorder.flush();
+      Log.d(TAG, "Session frames recorded: " + sessionRecorder.getFrameCount());
+    }
     super.onPause();
   }
 
+  @Override
+  protected void onDestroy() {
+    if (imageTracker != null) {
+      imageTracker.releaseAll();
+    }
+    if (videoRecorder != null) {
+      videoRecorder.release();
+    }
+    if (sessionRecorder != null) {
+      try {
+        sessionRecorder.close();
+      } catch (IOException e) {
+        Log.e(TAG, "Unable to close the session recording", e);
+      }
+      sessionRecorder = null;
+    }
+    super.onDestroy();
+  }
+
   public boolean hasWritePermission() {
     return ActivityCompat.checkSelfPermission(
             arFragment.requireActivity(), Manifest.permission.WRITE_EXTERNAL_STORAGE)
@@ -325,21 +544,24 @@ public class MainActivity extends AppCompatActivity {
       launchPermissionSettings();
       return;
     }
-    boolean recording = videoRecorder.onToggleRecord();
-    if (recording) {
-      recordButton.setImageResource(R.drawable.round_stop);
-    } else {
-      recordButton.setImageResource(R.drawable.round_videocam);
-      String videoPath = videoRecorder.getVideoPath().getAbsolutePath();
-      Toast.makeText(this, "Video saved: " + videoPath, Toast.LENGTH_SHORT).show();
-      Log.d(TAG, "Video saved: " + videoPath);
-
-      // Send  notification of updated content.
-      ContentValues values = new ContentValues();
-      values.put(MediaStore.Video.Media.TITLE, "Sceneform Video");
-      values.put(MediaStore.Video.Media.MIME_TYPE, "video/mp4");
-      values.put(MediaStore.Video.Media.DATA, videoPath);
-      getContentResolver().insert(MediaStore.Video.Media.EXTERNAL_CONTENT_URI, values);
+    // The recorder starts and stops on its own thread; the button follows its state.
+    videoRecorder.onToggleRecord();
+  }
+
+  private void onRecorderStateChanged(VideoRecorder.State state) {
+    switch (state) {
+      case RECORDING:
+        recordButton.setImageResource(R.drawable.round_stop);
+        recordButton.setEnabled(true);
+        break;
+      case IDLE:
+        recordButton.setImageResource(R.drawable.round_videocam);
+        recordButton.setEnabled(true);
+        break;
+      default:
+        // Starting can still be cancelled, but a video being finalized can't be restarted yet.
+        recordButton.setEnabled(state == VideoRecorder.State.PREPARING);
+        break;
     }
   }
 
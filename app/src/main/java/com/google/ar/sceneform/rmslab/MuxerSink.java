@@ -0,0 +1,77 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** Writes the output of a {@link VideoEncoder} into an MP4 file with a {@link MediaMuxer}. */
+public class MuxerSink implements VideoEncoder.Sink {
+  private static final String TAG = "MuxerSink";
+
+  private final File file;
+  private final MediaMuxer muxer;
+  private int track = -1;
+  private long sampleCount;
+
+  public MuxerSink(File file) throws IOException {
+    this.file = file;
+    muxer = new MediaMuxer(file.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  @Override
+  public void onFormat(MediaFormat format) {
+    if (track >= 0) {
+      Log.e(TAG, "Output format changed after muxing started, ignored");
+      return;
+    }
+    track = muxer.addTrack(format);
+    muxer.start();
+  }
+
+  @Override
+  public void onSample(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+    if (track < 0) {
+      return;
+    }
+    muxer.writeSampleData(track, buffer, info);
+    sampleCount++;
+  }
+
+  @Override
+  public void onEnd() {
+    try {
+      if (track >= 0 && sampleCount > 0) {
+        muxer.stop();
+      }
+    } catch (IllegalStateException e) {
+      Log.e(TAG, "Unable to finish " + file, e);
+    } finally {
+      muxer.release();
+    }
+  }
+}
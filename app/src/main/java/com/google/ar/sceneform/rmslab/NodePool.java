@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab;
+
+import com.google.ar.sceneform.rmslab.tracking.ImageRegistry;
+
+import java.util.ArrayDeque;
+
+/**
+ * Recycles the node subtrees of augmented images that stopped being tracked.
+ *
+ * <p>A released {@link AugmentedImageNode} keeps its catalog entry, its {@link
+ * CustomizedTransformableNode} and the inflated info card, so a marker that flickers back into
+ * view reuses all of them instead of building them again. Nodes are pooled per catalog entry,
+ * since their content only fits that entry, and at most {@code maxPerEntry} nodes are kept for
+ * each.
+ */
+public class NodePool {
+  private final int maxPerEntry;
+
+  // Released nodes, keyed by the image index of their catalog entry.
+  private final ImageRegistry<ArrayDeque<AugmentedImageNode>> free = new ImageRegistry<>();
+
+  private int hitCount;
+  private int missCount;
+
+  public NodePool(int maxPerEntry) {
+    this.maxPerEntry = maxPerEntry;
+  }
+
+  /** Returns a released node for the image index, or null if there is none. */
+  public AugmentedImageNode obtain(int index) {
+    ArrayDeque<AugmentedImageNode> nodes = free.get(index);
+    AugmentedImageNode node = nodes != null ? nodes.poll() : null;
+    if (node != null) {
+      hitCount++;
+    } else {
+      missCount++;
+    }
+    return node;
+  }
+
+  /**
+   * Resets a node that has been detached and removed from the scene, and keeps it for reuse if
+   * there is room.
+   */
+  public void recycle(AugmentedImageNode node) {
+    ContentCatalog.Entry entry = node.getEntry();
+    node.recycle();
+    if (entry == null) {
+      return;
+    }
+
+    ArrayDeque<AugmentedImageNode> nodes = free.get(entry.getIndex());
+    if (nodes == null) {
+      nodes = new ArrayDeque<>(maxPerEntry);
+      free.put(entry.getIndex(), nodes);
+    }
+    if (nodes.size() < maxPerEntry) {
+      nodes.push(node);
+    }
+  }
+
+  /**
+   * Drops the released nodes for the image index, for example when its model is evicted and the
+   * nodes would otherwise keep it alive.
+   */
+  public void clear(int index) {
+    free.remove(index);
+  }
+
+  public void clear() {
+    free.clear();
+  }
+
+  /** Number of times a released node was reused. */
+  public int getHitCount() {
+    return hitCount;
+  }
+
+  /** Number of times a new node had to be built. */
+  public int getMissCount() {
+    return missCount;
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.ar.sceneform.rendering.ModelRenderable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Attaches content to augmented image nodes exactly once, as soon as their renderable is loaded.
+ *
+ * <p>A node whose renderable is already loaded gets its content right away. Otherwise the
+ * placement waits in the queue until the renderable completes. Each node has at most one pending
+ * placement, and a placement that was cancelled or replaced is dropped when its renderable
+ * completes. Sceneform completes renderable futures on the main thread, so all of this runs there.
+ */
+@SuppressWarnings({"AndroidApiChecker", "FutureReturnValueIgnored"})
+public class PlacementQueue {
+  private static final String TAG = "PlacementQueue";
+
+  // Renderable each waiting node was queued for.
+  private final Map<AugmentedImageNode, CompletableFuture<ModelRenderable>> pending =
+      new HashMap<>();
+
+  private int immediateCount;
+  private int deferredCount;
+  private int failedCount;
+  private int cancelledCount;
+  private int completedDeferredCount;
+  private long totalWaitMs;
+  private long maxWaitMs;
+
+  /** Attaches the renderable to the node now if it is loaded, or once it finishes loading. */
+  public void place(AugmentedImageNode node, CompletableFuture<ModelRenderable> renderable) {
+    if (renderable.isDone() && !renderable.isCompletedExceptionally()) {
+      pending.remove(node);
+      immediateCount++;
+      node.attachContent(renderable.getNow(null));
+      return;
+    }
+
+    deferredCount++;
+    long queuedAtMs = SystemClock.uptimeMillis();
+    pending.put(node, renderable);
+    renderable
+        .thenAccept(
+            model -> {
+              if (!pending.remove(node, renderable)) {
+                return;
+              }
+              long waitMs = SystemClock.uptimeMillis() - queuedAtMs;
+              completedDeferredCount++;
+              totalWaitMs += waitMs;
+              maxWaitMs = Math.max(maxWaitMs, waitMs);
+              Log.d(
+                  TAG,
+                  "Placed content for image " + imageIndex(node) + " after " + waitMs + " ms");
+              node.attachContent(model);
+            })
+        .exceptionally(
+            throwable -> {
+              if (pending.remove(node, renderable)) {
+                failedCount++;
+                Log.e(TAG, "Unable to place content for image " + imageIndex(node), throwable);
+              }
+              return null;
+            });
+  }
+
+  /** Drops the pending placement for the node, if any. */
+  public void cancel(AugmentedImageNode node) {
+    if (pending.remove(node) != null) {
+      cancelledCount++;
+    }
+  }
+
+  /** Number of placements that are waiting for their renderable. */
+  public int getPendingCount() {
+    return pending.size();
+  }
+
+  /** Number of placements whose renderable was already loaded. */
+  public int getImmediateCount() {
+    return immediateCount;
+  }
+
+  /** Number of placements that had to wait for their renderable. */
+  public int getDeferredCount() {
+    return deferredCount;
+  }
+
+  public int getFailedCount() {
+    return failedCount;
+  }
+
+  public int getCancelledCount() {
+    return cancelledCount;
+  }
+
+  /** Average time deferred placements waited for their renderable. */
+  public long getAverageWaitMs() {
+    return completedDeferredCount == 0 ? 0 : totalWaitMs / completedDeferredCount;
+  }
+
+  /** Longest time a deferred placement waited for its renderable. */
+  public long getMaxWaitMs() {
+    return maxWaitMs;
+  }
+
+  @Override
+  public String toString() {
+    return "PlacementQueue{immediate="
+        + immediateCount
+        + ", deferred="
+        + deferredCount
+        + ", pending="
+        + pending.size()
+        + ", failed="
+        + failedCount
+        + ", cancelled="
+        + cancelledCount
+        + ", avgWaitMs="
+        + getAverageWaitMs()
+        + ", maxWaitMs="
+        + maxWaitMs
+        + "}";
+  }
+
+  private static int imageIndex(AugmentedImageNode node) {
+    return node.getIndex();
+  }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab;
+
+import android.media.CamcorderProfile;
+import android.util.Log;
+
+import com.google.ar.sceneform.rmslab.helpers.LatencyHistogram;
+
+import java.util.Locale;
+
+/**
+ * Picks the recording quality that keeps the AR view at a target frame rate.
+ *
+ * <p>While a segment is recorded, the governor measures the render frame time, the render gaps in
+ * the encoded video and the encode latency, from the {@link RecordingStats} of the recording. At
+ * the end of the segment it steps one quality level down if the frame rate fell below the target,
+ * frames went missing from the video or the encoder fell behind, or one level up after a few
+ * segments with headroom to spare. A level sets the resolution, frame rate and bitrate of a
+ * CamcorderProfile. The encoder can only change them when it is restarted, so the new level is used
+ * from the next segment on. Every decision is logged.
+ *
+ * <p>A recording that is not segmented is a single segment, so the quality only changes from one
+ * recording to the next: a long recording started at 2160p stays at 2160p until it is stopped,
+ * even if the frame rate drops. Record in segments to step down within a recording.
+ *
+ * <p>Frames are measured on the main thread while segments begin and end on the recorder thread, so
+ * the governor is thread-safe. The recorder thread only holds its lock once per segment, to decide
+ * the next level, so {@link #onFrame} rarely waits for it.
+ */
+public class RecordingGovernor {
+  private static final String TAG = "RecordingGovernor";
+
+  // Segments with fewer frames are too short to judge.
+  private static final int MIN_SEGMENT_FRAMES = 30;
+  // Step down below this fraction of the target frame rate.
+  private static final float STEP_DOWN_FRAME_RATE = 0.9f;
+  // Step up only above this fraction of the target frame rate...
+  private static final float STEP_UP_FRAME_RATE = 0.98f;
+  // ...for this many segments in a row, so the quality doesn't flip between two levels.
+  private static final int STEP_UP_SEGMENTS = 2;
+  // Step down when more than this fraction of the frame intervals are render gaps...
+  private static final float MAX_RENDER_GAPS = 0.02f;
+  // ...or when the 90th percentile encode latency of the segment is longer than this many frame
+  // intervals.
+  private static final int MAX_ENCODE_LATENCY_FRAMES = 3;
+
+  private final float targetFrameRate;
+
+  // All the state below is guarded by this.
+  private final LatencyHistogram frameTimes = new LatencyHistogram();
+
+  // Quality levels from best to worst.
+  private int[] levels = {CamcorderProfile.QUALITY_HIGH};
+  private int level;
+  private int goodSegments;
+
+  private boolean measuring;
+  // Recording counts at the start of the segment, as a recording can have several segments.
+  private long baseEncodedCount;
+  private long baseRenderGapCount;
+  // Time of the last frame, updated on the main thread.
+  private long lastFrameNanos;
+
+  public RecordingGovernor(float targetFrameRate) {
+    this.targetFrameRate = targetFrameRate;
+  }
+
+  /**
+   * Sets the CamcorderProfile quality levels to choose from, best first, and the one to start at.
+   */
+  public synchronized void setLevels(int[] levels, int startQuality) {
+    this.levels = levels;
+    level = 0;
+    for (int i = 0; i < levels.length; i++) {
+      if (levels[i] == startQuality) {
+        level = i;
+      }
+    }
+  }
+
+  /** CamcorderProfile quality level to record the next segment at. */
+  public synchronized int getQuality() {
+    return levels[level];
+  }
+
+  /** Call on every rendered frame, on the main thread. */
+  public synchronized void onFrame() {
+    long now = System.nanoTime();
+    if (measuring && lastFrameNanos != 0) {
+      frameTimes.record(now - lastFrameNanos);
+    }
+    lastFrameNanos = now;
+  }
+
+  /**
+   * Starts measuring a segment.
+   *
+   * @param stats the stats of the recording, which have no encoder counts with MediaRecorder.
+   */
+  public synchronized void beginSegment(RecordingStats stats) {
+    stats.startSegment();
+    RecordingStats.Snapshot snapshot = stats.snapshot();
+    frameTimes.reset();
+    baseEncodedCount = snapshot.encodedFrames;
+    baseRenderGapCount = snapshot.renderGapFrames;
+    measuring = true;
+  }
+
+  /**
+   * Ends the segment and decides the quality of the next one.
+   *
+   * @param stats the stats of the recording, which have no encoder counts with MediaRecorder.
+   */
+  public synchronized void endSegment(RecordingStats stats) {
+    measuring = false;
+    long frames = frameTimes.getTotalCount();
+    if (frames < MIN_SEGMENT_FRAMES) {
+      Log.d(TAG, "Segment of " + frames + " frames too short, keeping " + name(getQuality()));
+      return;
+    }
+
+    float frameRate = (float) (1e9 / frameTimes.getMean());
+    RecordingStats.Snapshot snapshot = stats.snapshot();
+    long latencyP90 = snapshot.segmentEncodeLatencyP90Nanos;
+    long gaps = snapshot.renderGapFrames - baseRenderGapCount;
+    long encoded = snapshot.encodedFrames - baseEncodedCount;
+    long frameIntervalNanos = (long) (1e9 / targetFrameRate);
+    boolean gapsInVideo = gaps > MAX_RENDER_GAPS * (encoded + gaps);
+    boolean encoderBehind = latencyP90 > MAX_ENCODE_LATENCY_FRAMES * frameIntervalNanos;
+
+    int previous = level;
+    String reason;
+    if (frameRate < STEP_DOWN_FRAME_RATE * targetFrameRate || gapsInVideo || encoderBehind) {
+      goodSegments = 0;
+      if (encoderBehind) {
+        reason = "encoder behind";
+      } else if (gapsInVideo) {
+        reason = "render gaps in the video";
+      } else {
+        reason = "frame rate below target";
+      }
+      if (level < levels.length - 1) {
+        level++;
+      }
+    } else if (frameRate >= STEP_UP_FRAME_RATE * targetFrameRate) {
+      goodSegments++;
+      reason = "frame rate on target for " + goodSegments + " segment(s)";
+      if (goodSegments >= STEP_UP_SEGMENTS && level > 0) {
+        level--;
+        goodSegments = 0;
+      }
+    } else {
+      goodSegments = 0;
+      reason = "frame rate near target";
+    }
+
+    Log.d(
+        TAG,
+        String.format(
+            Locale.US,
+            "Segment at %s: %.1f fps (target %.0f), p99 frame %.1f ms, encode p90 %.1f ms, "
+                + "%d render gaps in %d frames; %s, %s %s",
+            name(levels[previous]),
+            frameRate,
+            targetFrameRate,
+            frameTimes.getValueAtPercentile(99) / 1e6,
+            latencyP90 / 1e6,
+            gaps,
+            encoded + gaps,
+            reason,
+            action(previous, level),
+            name(levels[level])));
+  }
+
+  private static String action(int previous, int level) {
+    if (level == previous) {
+      return "keeping";
+    }
+    return level > previous ? "stepping down to" : "stepping up to";
+  }
+
+  static String name(int quality) {
+    switch (quality) {
+      case CamcorderProfile.QUALITY_2160P:
+        return "2160p";
+      case CamcorderProfile.QUALITY_1080P:
+        return "1080p";
+      case CamcorderProfile.QUALITY_720P:
+        return "720p";
+      case CamcorderProfile.QUALITY_480P:
+        return "480p";
+      case CamcorderProfile.QUALITY_HIGH:
+        return "high";
+      default:
+        return "quality " + quality;
+    }
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab;
+
+import com.google.ar.sceneform.rmslab.helpers.LatencyHistogram;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of one recording: frames submitted to the encoder surface and their frame times on the
+ * main thread, and frames encoded, their encode latency and the gaps between them on the encoder
+ * threads of the recording, of which there can be several when the quality changes. Encoders keep
+ * no counters of their own.
+ *
+ * <p>The encoder queue depth is the frames submitted minus the frames encoded. Render gaps are
+ * counted apart: they are frame intervals with no frame in the encoded video, because the scene was
+ * not rendered in time, so they were never submitted and are not part of the queue.
+ *
+ * <p>The frame times while recording, compared with those before, show the render cost of
+ * mirroring the scene to the encoders. Sceneform does not expose GPU timings, but the main thread
+ * waits on the GPU when it falls behind, so GPU cost shows up in the frame times.
+ *
+ * <p>Updates are lock-free and allocation free, so they never hold up rendering or encoding, and
+ * {@link #snapshot} can be called from any thread, such as a HUD or a logger, without blocking
+ * them. The counters are read one after the other, so a snapshot is consistent enough for
+ * monitoring, but not atomic.
+ */
+public final class RecordingStats {
+  private final boolean encoderCounted;
+  private final long startNanos = System.nanoTime();
+  private volatile long endNanos;
+
+  private final AtomicLong submittedFrames = new AtomicLong();
+  private final AtomicLong encodedFrames = new AtomicLong();
+  private final AtomicLong renderGapFrames = new AtomicLong();
+  private final AtomicLong encodedBytes = new AtomicLong();
+  private final LatencyHistogram encodeLatency = new LatencyHistogram();
+  // Encode latency since the current segment started, for the governor.
+  private final LatencyHistogram segmentEncodeLatency = new LatencyHistogram();
+  private final LatencyHistogram frameTimes = new LatencyHistogram();
+  private volatile long baselineFrameTimeNanos;
+
+  /**
+   * @param encoderCounted false if the encoder does not report its frames, as with MediaRecorder,
+   *     in which case only the submitted frames are counted.
+   */
+  public RecordingStats(boolean encoderCounted) {
+    this.encoderCounted = encoderCounted;
+  }
+
+  /** Counts a frame drawn on the encoder surface. */
+  public void onFrameSubmitted() {
+    submittedFrames.incrementAndGet();
+  }
+
+  /** Records the time since the previous frame, for a frame rendered while recording. */
+  public void onFrameRendered(long frameTimeNanos) {
+    frameTimes.record(frameTimeNanos);
+  }
+
+  /** Sets the median frame time before the recording, to compare the frame times with. */
+  public void setBaselineFrameTime(long frameTimeNanos) {
+    baselineFrameTimeNanos = frameTimeNanos;
+  }
+
+  /** Counts a frame that came out of the encoder. */
+  public void onFrameEncoded(long latencyNanos, int bytes) {
+    encodeLatency.record(latencyNanos);
+    segmentEncodeLatency.record(latencyNanos);
+    encodedBytes.addAndGet(bytes);
+    encodedFrames.incrementAndGet();
+  }
+
+  /** Counts frame intervals missing between two encoded frames. */
+  public void onRenderGap(long frames) {
+    renderGapFrames.addAndGet(frames);
+  }
+
+  /**
+   * Starts measuring the encode latency of a new segment. The latency of frames still in the
+   * encoder from the previous segment counts towards the new one.
+   */
+  public void startSegment() {
+    segmentEncodeLatency.reset();
+  }
+
+  /** Stops the clock of the recording, so its rates are not diluted after it is over. */
+  public void finish() {
+    if (endNanos == 0) {
+      endNanos = System.nanoTime();
+    }
+  }
+
+  public Snapshot snapshot() {
+    return new Snapshot(this);
+  }
+
+  /** The counters of a recording at one point in time. */
+  public static final class Snapshot {
+    /** Time since the recording started, or its duration once it is over. */
+    public final long elapsedNanos;
+
+    public final long submittedFrames;
+    public final long encodedFrames;
+    /** Frame intervals missing from the encoded video. */
+    public final long renderGapFrames;
+    /** Frames submitted that the encoder has not output yet. */
+    public final long encoderQueueDepth;
+
+    public final long encodedBytes;
+    /** Average since the start of the recording. */
+    public final long bytesPerSecond;
+
+    public final long encodeLatencyP50Nanos;
+    public final long encodeLatencyP90Nanos;
+    public final long encodeLatencyP99Nanos;
+    /** Since the current segment started. */
+    public final long segmentEncodeLatencyP90Nanos;
+
+    /** Frame times while recording, or 0 if they were not recorded. */
+    public final long frameTimeP50Nanos;
+    public final long frameTimeP99Nanos;
+    /** Median frame time before the recording, or 0 if unknown. */
+    public final long baselineFrameTimeNanos;
+
+    private Snapshot(RecordingStats stats) {
+      // The encoded count is read before the submitted count, which is always ahead of it, so the
+      // queue depth is never negative.
+      encodedFrames = stats.encodedFrames.get();
+      renderGapFrames = stats.renderGapFrames.get();
+      encodedBytes = stats.encodedBytes.get();
+      submittedFrames = stats.submittedFrames.get();
+      encoderQueueDepth = stats.encoderCounted ? Math.max(0, submittedFrames - encodedFrames) : 0;
+      encodeLatencyP50Nanos = stats.encodeLatency.getValueAtPercentile(50);
+      encodeLatencyP90Nanos = stats.encodeLatency.getValueAtPercentile(90);
+      encodeLatencyP99Nanos = stats.encodeLatency.getValueAtPercentile(99);
+      segmentEncodeLatencyP90Nanos = stats.segmentEncodeLatency.getValueAtPercentile(90);
+      frameTimeP50Nanos = stats.frameTimes.getValueAtPercentile(50);
+      frameTimeP99Nanos = stats.frameTimes.getValueAtPercentile(99);
+      baselineFrameTimeNanos = stats.baselineFrameTimeNanos;
+      long end = stats.endNanos;
+      elapsedNanos = (end != 0 ? end : System.nanoTime()) - stats.startNanos;
+      bytesPerSecond = elapsedNanos > 0 ? (long) (encodedBytes * 1e9 / elapsedNanos) : 0;
+    }
+
+    /** Bytes written per second between an earlier snapshot of the same recording and this one. */
+    public long bytesPerSecondSince(Snapshot earlier) {
+      long nanos = elapsedNanos - earlier.elapsedNanos;
+      return nanos > 0 ? (long) ((encodedBytes - earlier.encodedBytes) * 1e9 / nanos) : 0;
+    }
+
+    @Override
+    public String toString() {
+      String counters =
+          String.format(
+              Locale.US,
+              "%.1f s: %d frames submitted, %d encoded, %d queued, %d render gaps, %d kB/s, "
+                  + "encode latency p50 %.1f ms, p99 %.1f ms",
+              elapsedNanos / 1e9,
+              submittedFrames,
+              encodedFrames,
+              encoderQueueDepth,
+              renderGapFrames,
+              bytesPerSecond / 1000,
+              encodeLatencyP50Nanos / 1e6,
+              encodeLatencyP99Nanos / 1e6);
+      if (frameTimeP50Nanos == 0) {
+        return counters;
+      }
+      return String.format(
+          Locale.US,
+          "%s, frame time p50 %.1f ms, p99 %.1f ms (p50 %.1f ms before recording)",
+          counters,
+          frameTimeP50Nanos / 1e6,
+          frameTimeP99Nanos / 1e6,
+          baselineFrameTimeNanos / 1e6);
+    }
+  }
+}
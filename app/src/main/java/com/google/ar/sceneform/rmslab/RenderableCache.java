@@ -0,0 +1,174 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab;
+
+import android.util.Log;
+
+import com.google.ar.sceneform.rendering.ModelRenderable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Byte-budgeted cache of model renderables, keyed by augmented image index.
+ *
+ * <p>Entries are kept in least recently tracked order. When the estimated size of all entries
+ * goes over the budget, entries whose image has been STOPPED for at least the eviction delay are
+ * dropped, oldest first. Entries that are still tracked are never evicted, so the cache can go over
+ * budget while many images are on screen. Sceneform reclaims the native resources of an evicted
+ * renderable once no node references it any more.
+ */
+@SuppressWarnings({"AndroidApiChecker"})
+public class RenderableCache {
+  private static final String TAG = "RenderableCache";
+
+  private static class Entry {
+    final CompletableFuture<ModelRenderable> renderable;
+    final long bytes;
+    // Time the image stopped being tracked, or -1 while it is tracked.
+    long stoppedAtMs;
+
+    Entry(CompletableFuture<ModelRenderable> renderable, long bytes, long stoppedAtMs) {
+      this.renderable = renderable;
+      this.bytes = bytes;
+      this.stoppedAtMs = stoppedAtMs;
+    }
+  }
+
+  /** Notified when a renderable is evicted to stay within the budget. */
+  public interface OnEvictListener {
+    void onEvict(int index);
+  }
+
+  private final long budgetBytes;
+  private final long evictionDelayMs;
+
+  private OnEvictListener onEvictListener;
+
+  // Iteration starts at the least recently tracked image; markStopped moves an entry to the end.
+  private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>();
+
+  private long totalBytes;
+
+  public RenderableCache(long budgetBytes, long evictionDelayMs) {
+    this.budgetBytes = budgetBytes;
+    this.evictionDelayMs = evictionDelayMs;
+  }
+
+  public void setOnEvictListener(OnEvictListener onEvictListener) {
+    this.onEvictListener = onEvictListener;
+  }
+
+  /** Returns the cached renderable for the image index, or null if it is not cached. */
+  public CompletableFuture<ModelRenderable> get(int index) {
+    Entry entry = entries.get(index);
+    return entry != null ? entry.renderable : null;
+  }
+
+  /**
+   * Adds a renderable to the cache. It counts as not tracked until {@link #markTracked} is called,
+   * so a prefetched model that is never seen can be evicted.
+   */
+  public void put(
+      int index, CompletableFuture<ModelRenderable> renderable, long bytes, long nowMs) {
+    remove(index);
+    entries.put(index, new Entry(renderable, bytes, nowMs));
+    totalBytes += bytes;
+  }
+
+  /** Removes the renderable for the image index, if it was cached. */
+  public void remove(int index) {
+    Entry entry = entries.remove(index);
+    if (entry != null) {
+      totalBytes -= entry.bytes;
+    }
+  }
+
+  /** Removes the renderable for the image index right away, and notifies the evict listener. */
+  public void evict(int index) {
+    if (entries.containsKey(index)) {
+      remove(index);
+      if (onEvictListener != null) {
+        onEvictListener.onEvict(index);
+      }
+    }
+  }
+
+  /** Removes the entry only if it still holds the given renderable. */
+  public void remove(int index, CompletableFuture<ModelRenderable> renderable) {
+    Entry entry = entries.get(index);
+    if (entry != null && entry.renderable == renderable) {
+      remove(index);
+    }
+  }
+
+  /** Marks the image as tracked, which keeps it from being evicted. */
+  public void markTracked(int index) {
+    Entry entry = entries.get(index);
+    if (entry != null) {
+      entry.stoppedAtMs = -1;
+    }
+  }
+
+  /**
+   * Marks the image as stopped, starting its eviction delay. This also makes it the most recently
+   * tracked entry, since it was tracked up to now.
+   */
+  public void markStopped(int index, long nowMs) {
+    Entry entry = entries.get(index);
+    if (entry != null && entry.stoppedAtMs < 0) {
+      entry.stoppedAtMs = nowMs;
+      entries.remove(index);
+      entries.put(index, entry);
+    }
+  }
+
+  /** Evicts stopped entries, least recently tracked first, until the cache fits its budget. */
+  public void trim(long nowMs) {
+    if (totalBytes <= budgetBytes) {
+      return;
+    }
+
+    Iterator<Map.Entry<Integer, Entry>> iter = entries.entrySet().iterator();
+    while (totalBytes > budgetBytes && iter.hasNext()) {
+      Map.Entry<Integer, Entry> mapEntry = iter.next();
+      Entry entry = mapEntry.getValue();
+      if (entry.stoppedAtMs >= 0 && nowMs - entry.stoppedAtMs >= evictionDelayMs) {
+        Log.d(TAG, "Evicting model for image " + mapEntry.getKey() + ", " + entry.bytes + " bytes");
+        iter.remove();
+        totalBytes -= entry.bytes;
+        if (onEvictListener != null) {
+          onEvictListener.onEvict(mapEntry.getKey());
+        }
+      }
+    }
+  }
+
+  public long getTotalBytes() {
+    return totalBytes;
+  }
+
+  public long getBudgetBytes() {
+    return budgetBytes;
+  }
+
+  public int size() {
+    return entries.size();
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab;
+
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.ar.sceneform.rendering.ModelRenderable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Builds the ModelRenderable for an augmented image only when that image is first detected.
+ *
+ * <p>Models are described by the {@link ContentCatalog}, but nothing is decoded until {@link
+ * #load} is called for an image index. The catalog lists its entries most likely first, so {@link
+ * #prefetch} can warm the first few models without paying for all of them.
+ *
+ * <p>Loaded models are held in a {@link RenderableCache}. A model evicted from the cache is
+ * rebuilt the next time its image is detected.
+ */
+@SuppressWarnings({"AndroidApiChecker", "FutureReturnValueIgnored"})
+public class RenderableLoader {
+  private static final String TAG = "RenderableLoader";
+
+  // Textures are uploaded as RGBA8, plus a third again for the mip chain.
+  private static final int BYTES_PER_TEXEL = 4;
+
+  private final Context context;
+  private final ContentCatalog catalog;
+  private final RenderableCache cache;
+
+  public RenderableLoader(
+      Context context, ContentCatalog catalog, long budgetBytes, long evictionDelayMs) {
+    this.context = context;
+    this.catalog = catalog;
+    this.cache = new RenderableCache(budgetBytes, evictionDelayMs);
+  }
+
+  /**
+   * Returns the renderable for the image index, starting the build if it is not loaded. Returns
+   * null if the catalog has no model for the index.
+   */
+  public CompletableFuture<ModelRenderable> load(int index) {
+    CompletableFuture<ModelRenderable> future = cache.get(index);
+    if (future != null) {
+      return future;
+    }
+
+    ContentCatalog.Entry entry = catalog.get(index);
+    int resourceId = 0;
+    if (entry != null) {
+      resourceId =
+          context.getResources().getIdentifier(entry.getModel(), "raw", context.getPackageName());
+    }
+    if (resourceId == 0) {
+      Log.w(TAG, "No model in the catalog for image " + index);
+      return null;
+    }
+
+    long bytes = estimateBytes(resourceId, entry.getTextureTexels());
+    Log.d(TAG, "Loading model for image " + index + ", estimated " + bytes + " bytes");
+    CompletableFuture<ModelRenderable> built =
+        ModelRenderable.builder().setSource(context, resourceId).build();
+    cache.put(index, built, bytes, SystemClock.uptimeMillis());
+    built.exceptionally(
+        throwable -> {
+          Log.e(TAG, "Unable to load renderable for image " + index, throwable);
+          // Forget the failed build so the next detection retries it.
+          cache.remove(index, built);
+          return null;
+        });
+    return built;
+  }
+
+  /** Starts loading the {@code count} most likely models in the catalog. */
+  public void prefetch(int count) {
+    for (int i = 0; i < count && i < catalog.getEntryCount(); i++) {
+      load(catalog.getLikelyIndex(i));
+    }
+  }
+
+  /** Returns true while the model for the image index is loading or loaded. */
+  public boolean isRequested(int index) {
+    return cache.get(index) != null;
+  }
+
+  /** Called while the image is tracked, so its model is not evicted. */
+  public void markTracked(int index) {
+    cache.markTracked(index);
+  }
+
+  /** Called when the image stops being tracked, so its model may be evicted later. */
+  public void markStopped(int index) {
+    cache.markStopped(index, SystemClock.uptimeMillis());
+  }
+
+  /** Drops the model for the image index, for example when its image can no longer be seen. */
+  public void release(int index) {
+    cache.evict(index);
+  }
+
+  /** Evicts models of stopped images if the cache is over budget. Cheap when it is not. */
+  public void trim() {
+    cache.trim(SystemClock.uptimeMillis());
+  }
+
+  /** Notified when a model is evicted, so anything holding on to it can let it go. */
+  public void setOnEvictListener(RenderableCache.OnEvictListener onEvictListener) {
+    cache.setOnEvictListener(onEvictListener);
+  }
+
+  public RenderableCache getCache() {
+    return cache;
+  }
+
+  private long estimateBytes(int resourceId, long textureTexels) {
+    long textureBytes = textureTexels * BYTES_PER_TEXEL;
+    return rawResourceLength(resourceId) + textureBytes + textureBytes / 3;
+  }
+
+  private long rawResourceLength(int resourceId) {
+    Resources resources = context.getResources();
+    // Uncompressed resources report their length directly, otherwise count the bytes.
+    try (AssetFileDescriptor fd = resources.openRawResourceFd(resourceId)) {
+      if (fd != null) {
+        return fd.getLength();
+      }
+    } catch (Resources.NotFoundException | IOException e) {
+      // Fall through and measure the stream.
+    }
+
+    long length = 0;
+    try (InputStream is = resources.openRawResource(resourceId)) {
+      long skipped;
+      while ((skipped = is.skip(Long.MAX_VALUE)) > 0) {
+        length += skipped;
+      }
+    } catch (Resources.NotFoundException | IOException e) {
+      Log.w(TAG, "Unable to measure model resource " + resourceId, e);
+    }
+    return length;
+  }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the last seconds of a {@link VideoEncoder}'s output in memory, to be saved as an MP4 on
+ * request.
+ *
+ * <p>Access units are copied into a fixed-size direct buffer used as a ring, with their sizes and
+ * timestamps in circular arrays, so nothing is allocated per frame. The oldest group of pictures is
+ * dropped as a whole once the next one starts outside the window, or when there is no room left, so
+ * the buffer always starts on a key frame and the saved video can be muxed without re-encoding. The
+ * window held can be up to one key frame interval longer than asked for. Key frames are indexed, so
+ * finding where the next group of pictures starts does not scan the buffer.
+ *
+ * <p>Saving muxes the access units straight from the ring, through a buffer the size of the largest
+ * one, rather than copying the whole window first.
+ */
+public class ReplayBuffer implements VideoEncoder.Sink {
+  private static final String TAG = "ReplayBuffer";
+
+  private final long windowUs;
+  private final ByteBuffer data;
+
+  // Access units, oldest first, starting at index first.
+  private final int[] offsets;
+  private final int[] sizes;
+  private final int[] flags;
+  private final long[] times;
+  private int first;
+  private int count;
+  // Sequence number of the oldest access unit, counting all the access units ever buffered.
+  private long firstSequence;
+  // Key frames among the access units, as indices into the arrays above, oldest first. The oldest
+  // access unit is always the first key frame.
+  private final int[] keyFrames;
+  private int keyFirst;
+  private int keyCount;
+  // Where the next access unit is written in data.
+  private int writePosition;
+
+  private MediaFormat format;
+  private long droppedCount;
+
+  /**
+   * @param windowSeconds how much video to keep
+   * @param maxBytes memory for the encoded video; older video is dropped to stay within it
+   * @param maxUnits most access units kept, at least the window times the frame rate
+   */
+  public ReplayBuffer(int windowSeconds, int maxBytes, int maxUnits) {
+    windowUs = windowSeconds * 1000000L;
+    data = ByteBuffer.allocateDirect(maxBytes);
+    offsets = new int[maxUnits];
+    sizes = new int[maxUnits];
+    flags = new int[maxUnits];
+    times = new long[maxUnits];
+    keyFrames = new int[maxUnits];
+  }
+
+  @Override
+  public synchronized void onFormat(MediaFormat format) {
+    this.format = format;
+  }
+
+  @Override
+  public synchronized void onSample(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+    boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+    if (count == 0 && !keyFrame) {
+      // Wait for a key frame to start from.
+      droppedCount++;
+      return;
+    }
+
+    // Drop groups of pictures that the window starts after.
+    int nextKey;
+    while ((nextKey = nextKeyFrame()) >= 0
+        && times[nextKey] <= info.presentationTimeUs - windowUs) {
+      dropOldest();
+    }
+
+    int position;
+    while ((position = place(info.size)) < 0 || count == offsets.length) {
+      if (count == 0) {
+        break;
+      }
+      dropOldest();
+    }
+    if (position < 0 || (count == 0 && !keyFrame)) {
+      // Larger than the buffer, or the rest of a group whose key frame had to go.
+      droppedCount++;
+      return;
+    }
+
+    ByteBuffer target = data.duplicate();
+    target.position(position);
+    target.put(buffer);
+    int index = (first + count) % offsets.length;
+    offsets[index] = position;
+    sizes[index] = info.size;
+    flags[index] = info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME;
+    times[index] = info.presentationTimeUs;
+    count++;
+    writePosition = position + info.size;
+    if (keyFrame) {
+      keyFrames[(keyFirst + keyCount) % keyFrames.length] = index;
+      keyCount++;
+    }
+  }
+
+  @Override
+  public void onEnd() {}
+
+  /** Access units dropped because they did not fit or had no key frame to start from. */
+  public synchronized long getDroppedCount() {
+    return droppedCount;
+  }
+
+  /** Duration of the buffered video. */
+  public synchronized long getDurationUs() {
+    return count == 0 ? 0 : times[(first + count - 1) % offsets.length] - times[first];
+  }
+
+  /**
+   * Writes the buffered video to an MP4 file. Access units are copied out of the buffer one at a
+   * time, so the encoder is only held up for one copy at a time, not for writing the file. Call
+   * from one thread at a time.
+   *
+   * <p>Recording goes on while saving, so the oldest groups of pictures can be dropped before they
+   * are saved if writing the file is slower than real time. The video is then cut short before the
+   * first access unit that was dropped.
+   *
+   * @return false if there was nothing to save.
+   */
+  public boolean save(File file) throws IOException {
+    MediaFormat savedFormat;
+    long startSequence;
+    long endSequence;
+    long startUs = Long.MAX_VALUE;
+    synchronized (this) {
+      if (format == null || count == 0) {
+        return false;
+      }
+      savedFormat = format;
+      startSequence = firstSequence;
+      endSequence = firstSequence + count;
+      for (int i = 0; i < count; i++) {
+        startUs = Math.min(startUs, times[(first + i) % offsets.length]);
+      }
+    }
+
+    MediaMuxer muxer =
+        new MediaMuxer(file.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    long sequence = startSequence;
+    try {
+      int track = muxer.addTrack(savedFormat);
+      muxer.start();
+      MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+      ByteBuffer unit = ByteBuffer.allocateDirect(0);
+      for (; sequence < endSequence; sequence++) {
+        int size;
+        while ((size = copyUnit(sequence, unit, info, startUs)) > 0) {
+          // Grown outside the lock, to the largest access unit so far.
+          unit = ByteBuffer.allocateDirect(size);
+        }
+        if (size < 0) {
+          break;
+        }
+        muxer.writeSampleData(track, unit, info);
+      }
+      muxer.stop();
+    } catch (IllegalStateException | IllegalArgumentException e) {
+      throw new IOException("Unable to mux the replay", e);
+    } finally {
+      muxer.release();
+    }
+    if (sequence < endSequence) {
+      Log.w(
+          TAG,
+          "Replay cut short, saved "
+              + (sequence - startSequence)
+              + " of "
+              + (endSequence - startSequence)
+              + " access units before the encoder overwrote the rest");
+    }
+    Log.d(TAG, "Saved " + (sequence - startSequence) + " access units to " + file);
+    return true;
+  }
+
+  // Copies the access unit with the given sequence number into the buffer and sets its info, with
+  // times relative to startUs. Returns 0 once copied, the size of the access unit if the buffer is
+  // too small for it, or -1 if it has been dropped.
+  private synchronized int copyUnit(
+      long sequence, ByteBuffer buffer, MediaCodec.BufferInfo info, long startUs) {
+    if (sequence < firstSequence) {
+      return -1;
+    }
+    int index = (int) ((first + (sequence - firstSequence)) % offsets.length);
+    int size = sizes[index];
+    if (buffer.capacity() < size) {
+      return size;
+    }
+    ByteBuffer unit = data.duplicate();
+    unit.position(offsets[index]);
+    unit.limit(offsets[index] + size);
+    buffer.clear();
+    buffer.put(unit);
+    buffer.flip();
+    info.set(0, size, times[index] - startUs, flags[index]);
+    return 0;
+  }
+
+  // Where an access unit of the given size fits after the newest one, or -1.
+  private int place(int size) {
+    if (count == 0) {
+      return size <= data.capacity() ? 0 : -1;
+    }
+    int head = offsets[first];
+    if (writePosition > head) {
+      if (data.capacity() - writePosition >= size) {
+        return writePosition;
+      }
+      return size <= head ? 0 : -1;
+    }
+    // Wrapped around: the free space is between the newest and the oldest access unit.
+    return head - writePosition >= size ? writePosition : -1;
+  }
+
+  // Index of the first key frame after the oldest access unit, or -1.
+  private int nextKeyFrame() {
+    return keyCount > 1 ? keyFrames[(keyFirst + 1) % keyFrames.length] : -1;
+  }
+
+  // Drops the oldest group of pictures, from the oldest key frame up to the next one.
+  private void dropOldest() {
+    keyFirst = (keyFirst + 1) % keyFrames.length;
+    keyCount--;
+    int dropped = count;
+    if (keyCount > 0) {
+      dropped = (keyFrames[keyFirst] - first + offsets.length) % offsets.length;
+    }
+    first = (first + dropped) % offsets.length;
+    count -= dropped;
+    firstSequence += dropped;
+  }
+}
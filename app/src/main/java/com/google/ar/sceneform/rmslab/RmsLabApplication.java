@@ -0,0 +1,50 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab;
+
+import android.app.Application;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/** Starts the work the AR activities need as soon as the process starts. */
+public class RmsLabApplication extends Application {
+  private ImageDatabaseLoader imageDatabaseLoader;
+  // Outlives the activities, so a recording finished as one is destroyed is still processed.
+  private final Executor videoPostProcessExecutor = Executors.newSingleThreadExecutor();
+  // Writes diagnostics, such as frame times, off the UI thread.
+  private final Executor diagnosticsExecutor = Executors.newSingleThreadExecutor();
+
+  @Override
+  public void onCreate() {
+    super.onCreate();
+    // Read the augmented image database while the UI is being set up.
+    imageDatabaseLoader = new ImageDatabaseLoader(this, Executors.newSingleThreadExecutor());
+  }
+
+  public ImageDatabaseLoader getImageDatabaseLoader() {
+    return imageDatabaseLoader;
+  }
+
+  public Executor getVideoPostProcessExecutor() {
+    return videoPostProcessExecutor;
+  }
+
+  public Executor getDiagnosticsExecutor() {
+    return diagnosticsExecutor;
+  }
+}
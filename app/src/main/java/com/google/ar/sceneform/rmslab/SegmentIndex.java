@@ -0,0 +1,89 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Names the segment files of a segmented recording and lists the finished ones in an index.
+ *
+ * <p>The index is an ffconcat file, so the segments can be joined without re-encoding with {@code
+ * ffmpeg -f concat -i segments.ffconcat -c copy video.mp4}. Each segment is appended, and synced to
+ * disk, as soon as it is finished, so the index is complete up to the last finished segment if the
+ * app dies while recording:
+ *
+ * <pre>
+ *   ffconcat version 1.0
+ *   file segment-00000.mp4
+ *   duration 10.010000
+ *   # start_us=123456789 bytes=12582912 frames=300
+ * </pre>
+ *
+ * Can be shared by the sinks of consecutive encoders of the same recording.
+ */
+public class SegmentIndex {
+  public static final String INDEX_FILE = "segments.ffconcat";
+
+  private final File directory;
+  private final File indexFile;
+  private int nextSegment;
+
+  public SegmentIndex(File directory) throws IOException {
+    this.directory = directory;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create " + directory);
+    }
+    indexFile = new File(directory, INDEX_FILE);
+    append("ffconcat version 1.0\n");
+  }
+
+  public File getDirectory() {
+    return directory;
+  }
+
+  /** File to write the next segment to. */
+  public synchronized File newSegmentFile(String extension) {
+    String name = String.format(Locale.US, "segment-%05d.%s", nextSegment++, extension);
+    return new File(directory, name);
+  }
+
+  /** Adds a finished segment to the index. */
+  public synchronized void add(File segment, long startUs, long durationUs, long bytes, int frames)
+      throws IOException {
+    append(
+        String.format(
+            Locale.US,
+            "file %s\nduration %.6f\n# start_us=%d bytes=%d frames=%d\n",
+            segment.getName(),
+            durationUs / 1e6,
+            startUs,
+            bytes,
+            frames));
+  }
+
+  // Opens the index for each write, so there is nothing to close, and syncs it.
+  private void append(String text) throws IOException {
+    try (FileOutputStream out = new FileOutputStream(indexFile, true)) {
+      out.write(text.getBytes(StandardCharsets.UTF_8));
+      out.getFD().sync();
+    }
+  }
+}
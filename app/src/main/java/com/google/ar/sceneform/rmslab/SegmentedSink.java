@@ -0,0 +1,148 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.google.ar.sceneform.rmslab.helpers.DirectBufferPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits the output of a {@link VideoEncoder} into MP4 segments of bounded duration and size.
+ *
+ * <p>A new segment is started on the first key frame after the current one reaches its duration
+ * or size, so every segment can be played on its own. Each finished segment is complete on disk
+ * and listed in the {@link SegmentIndex} before the next one is written.
+ *
+ * <p>H.264 and HEVC segments are written as fragmented MP4s, so the segment in progress can be
+ * played up to its last fragment too, and when the app dies while recording only the last fragment
+ * is lost. Other codecs are muxed with MediaMuxer, which only writes a playable file when the
+ * segment is finished.
+ */
+public class SegmentedSink implements VideoEncoder.Sink {
+  private static final String TAG = "SegmentedSink";
+
+  private static final long FRAGMENT_DURATION_US = 1000000;
+
+  /** Called on the encoder thread when a segment is complete. */
+  public interface Listener {
+    /**
+     * @param rolled true if another segment follows, false for the last segment of the encoder
+     */
+    void onSegmentFinished(File segment, boolean rolled);
+  }
+
+  private final SegmentIndex index;
+  private final long maxDurationUs;
+  private final long maxBytes;
+  private final Listener listener;
+  // The segments' buffers, reused from one segment to the next.
+  private final DirectBufferPool bufferPool = new DirectBufferPool(3);
+
+  private MediaFormat format;
+  private VideoEncoder.Sink segment;
+  private File segmentFile;
+  private long segmentStartUs;
+  private long lastTimeUs;
+  private long segmentBytes;
+  private int segmentFrames;
+
+  public SegmentedSink(SegmentIndex index, int maxSeconds, long maxBytes, Listener listener) {
+    this.index = index;
+    this.maxDurationUs = maxSeconds * 1000000L;
+    this.maxBytes = maxBytes;
+    this.listener = listener;
+  }
+
+  @Override
+  public void onFormat(MediaFormat format) {
+    this.format = format;
+  }
+
+  @Override
+  public void onSample(ByteBuffer buffer, MediaCodec.BufferInfo info) {
+    boolean keyFrame = (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+    if (segment != null
+        && keyFrame
+        && (info.presentationTimeUs - segmentStartUs >= maxDurationUs
+            || segmentBytes >= maxBytes)) {
+      finishSegment(info.presentationTimeUs, true);
+    }
+    if (segment == null) {
+      if (!keyFrame || !startSegment(info.presentationTimeUs)) {
+        return;
+      }
+    }
+    segment.onSample(buffer, info);
+    segmentBytes += info.size;
+    segmentFrames++;
+    lastTimeUs = Math.max(lastTimeUs, info.presentationTimeUs);
+  }
+
+  @Override
+  public void onEnd() {
+    if (segment != null) {
+      // Count the last frame as lasting as long as the average one.
+      long durationUs = lastTimeUs - segmentStartUs;
+      if (segmentFrames > 1) {
+        durationUs += durationUs / (segmentFrames - 1);
+      }
+      finishSegment(segmentStartUs + durationUs, false);
+    }
+  }
+
+  private boolean startSegment(long startUs) {
+    File file = index.newSegmentFile("mp4");
+    try {
+      if (FragmentedMp4Sink.supports(format.getString(MediaFormat.KEY_MIME))) {
+        segment = new FragmentedMp4Sink(file, bufferPool, FRAGMENT_DURATION_US);
+      } else {
+        segment = new MuxerSink(file);
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to start segment " + file, e);
+      return false;
+    }
+    segmentFile = file;
+    segment.onFormat(format);
+    segmentStartUs = startUs;
+    lastTimeUs = startUs;
+    segmentBytes = 0;
+    segmentFrames = 0;
+    return true;
+  }
+
+  private void finishSegment(long endUs, boolean rolled) {
+    File finished = segmentFile;
+    segment.onEnd();
+    segment = null;
+    segmentFile = null;
+    try {
+      index.add(finished, segmentStartUs, endUs - segmentStartUs, segmentBytes, segmentFrames);
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to index segment " + finished, e);
+    }
+    if (listener != null) {
+      listener.onSegmentFinished(finished, rolled);
+    }
+  }
+}
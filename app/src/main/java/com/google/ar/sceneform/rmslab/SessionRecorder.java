@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab;
+
+import android.util.Log;
+
+import com.google.ar.core.AugmentedImage;
+import com.google.ar.core.Frame;
+import com.google.ar.core.Pose;
+import com.google.ar.sceneform.rmslab.tracking.FrameUpdate;
+import com.google.ar.sceneform.rmslab.tracking.ImageTracker;
+import com.google.ar.sceneform.rmslab.tracking.ImageUpdate;
+import com.google.ar.sceneform.rmslab.tracking.SessionLogWriter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Records what the frame listener sees of each frame into a session log: the frame timestamp, the
+ * camera tracking state and every updated image with its state, center pose and extents. The log
+ * can be replayed on a plain JVM with the {@code replaySession} task of the tracking module.
+ */
+public class SessionRecorder implements Closeable {
+  private static final String TAG = "SessionRecorder";
+
+  private final SessionLogWriter writer;
+
+  // Reused for every frame.
+  private final FrameUpdate frameUpdate = new FrameUpdate();
+
+  // Set once a write failed, the rest of the session is not recorded.
+  private boolean failed;
+
+  public SessionRecorder(File file, ImageTracker<?> tracker) throws IOException {
+    writer = new SessionLogWriter(new FileOutputStream(file), tracker);
+  }
+
+  /**
+   * Records a frame. The updated images are null if the camera is not tracking. Their indices are
+   * recorded as content catalog indices, offset by the base index of the active database shard.
+   */
+  public void record(Frame frame, Collection<AugmentedImage> updatedImages, int indexBase) {
+    if (failed) {
+      return;
+    }
+    frameUpdate.reset(
+        frame.getTimestamp(), AnchorManager.toStatus(frame.getCamera().getTrackingState()));
+    if (updatedImages != null) {
+      for (AugmentedImage image : updatedImages) {
+        ImageUpdate update = frameUpdate.addImage();
+        Pose pose = image.getCenterPose();
+        pose.getTranslation(update.getPose(), 0);
+        pose.getRotationQuaternion(update.getPose(), 3);
+        update.set(
+            indexBase + image.getIndex(),
+            AnchorManager.toStatus(image.getTrackingState()),
+            image.getExtentX(),
+            image.getExtentZ());
+      }
+    }
+    try {
+      writer.write(frameUpdate);
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to record frame, stopping the session recording", e);
+      failed = true;
+    }
+  }
+
+  public int getFrameCount() {
+    return writer.getFrameCount();
+  }
+
+  public void flush() {
+    try {
+      writer.flush();
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to flush the session recording", e);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    writer.close();
+  }
+}
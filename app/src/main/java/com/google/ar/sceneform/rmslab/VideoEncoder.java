@@ -0,0 +1,286 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.media.MediaRecorder;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes the frames drawn on an input surface with a {@link MediaCodec} in asynchronous mode.
+ *
+ * <p>The codec callbacks run on a dedicated {@link HandlerThread}, which hands every encoded
+ * access unit to a {@link Sink} as soon as it is available, so no frame waits for a polling loop.
+ *
+ * <p>Each encoded frame is counted into the {@link RecordingStats} of the recording, with its
+ * encode latency: the time from when it was queued on the input surface, which is its presentation
+ * time, to when its access unit comes out of the encoder. When the gap between two presentation
+ * times spans more than one frame interval at the configured frame rate, the missing intervals are
+ * counted as render gaps.
+ */
+public class VideoEncoder {
+  private static final String TAG = "VideoEncoder";
+
+  /** Receives the output of the encoder, on the encoder thread. */
+  public interface Sink {
+    /** Called once, with the output format holding the codec specific data, before any sample. */
+    void onFormat(MediaFormat format);
+
+    /**
+     * Called for each encoded access unit. The buffer is positioned on the sample and only valid
+     * during the call.
+     */
+    void onSample(ByteBuffer buffer, MediaCodec.BufferInfo info);
+
+    /** Called once after the last sample, or when the encoder fails. */
+    void onEnd();
+  }
+
+  private final String mimeType;
+  private final int width;
+  private final int height;
+  private final int bitRate;
+  private final int frameRate;
+  private final int keyFrameIntervalSeconds;
+
+  private HandlerThread thread;
+  private MediaCodec codec;
+  private Surface inputSurface;
+  private Sink sink;
+  private final CountDownLatch ended = new CountDownLatch(1);
+
+  private volatile long firstPresentationTimeUs = -1;
+  private RecordingStats stats;
+  // Only used on the encoder thread.
+  private long lastPresentationTimeUs = -1;
+  private boolean finished;
+
+  public VideoEncoder(
+      String mimeType,
+      int width,
+      int height,
+      int bitRate,
+      int frameRate,
+      int keyFrameIntervalSeconds) {
+    this.mimeType = mimeType;
+    this.width = width;
+    this.height = height;
+    this.bitRate = bitRate;
+    this.frameRate = frameRate;
+    this.keyFrameIntervalSeconds = keyFrameIntervalSeconds;
+  }
+
+  /**
+   * Maps a {@link MediaRecorder.VideoEncoder} constant to the MIME type of an encoder that this
+   * device has and that can be muxed into an MP4 file, falling back to H.264.
+   */
+  public static String mimeTypeFor(int videoEncoder, int width, int height) {
+    String mimeType;
+    switch (videoEncoder) {
+      case MediaRecorder.VideoEncoder.HEVC:
+        mimeType = MediaFormat.MIMETYPE_VIDEO_HEVC;
+        break;
+      case MediaRecorder.VideoEncoder.MPEG_4_SP:
+        mimeType = MediaFormat.MIMETYPE_VIDEO_MPEG4;
+        break;
+      case MediaRecorder.VideoEncoder.H263:
+        mimeType = MediaFormat.MIMETYPE_VIDEO_H263;
+        break;
+      default:
+        mimeType = MediaFormat.MIMETYPE_VIDEO_AVC;
+        break;
+    }
+    MediaCodecList codecs = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+    if (codecs.findEncoderForFormat(MediaFormat.createVideoFormat(mimeType, width, height))
+        == null) {
+      return MediaFormat.MIMETYPE_VIDEO_AVC;
+    }
+    return mimeType;
+  }
+
+  /** Counts the encoded frames into the stats of the recording. Call before {@link #start}. */
+  public void setStats(RecordingStats stats) {
+    this.stats = stats;
+  }
+
+  /** Starts the encoder and returns the surface to draw the frames on. */
+  public Surface start(Sink sink) throws IOException {
+    this.sink = sink;
+    MediaFormat format = MediaFormat.createVideoFormat(mimeType, width, height);
+    format.setInteger(
+        MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+    format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+    format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+    format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, keyFrameIntervalSeconds);
+
+    thread = new HandlerThread(TAG);
+    thread.start();
+    try {
+      codec = MediaCodec.createEncoderByType(mimeType);
+      codec.setCallback(new Callback(), new Handler(thread.getLooper()));
+      codec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+      inputSurface = codec.createInputSurface();
+      codec.start();
+    } catch (IOException | RuntimeException e) {
+      release();
+      throw e instanceof IOException ? (IOException) e : new IOException(e);
+    }
+    return inputSurface;
+  }
+
+  /**
+   * Ends the stream and waits for the encoder to drain its last frames into the sink, then
+   * releases it. Stop drawing on the input surface first.
+   *
+   * @return false if the encoder did not drain in time.
+   */
+  public boolean stop(long timeoutMs) {
+    if (codec == null) {
+      return false;
+    }
+    boolean drained = false;
+    try {
+      codec.signalEndOfInputStream();
+      drained = ended.await(timeoutMs, TimeUnit.MILLISECONDS);
+    } catch (IllegalStateException e) {
+      Log.e(TAG, "Unable to end the stream", e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (!drained) {
+      Log.e(TAG, "Encoder did not drain within " + timeoutMs + " ms");
+    }
+    release();
+    return drained;
+  }
+
+  /** Presentation time of the first frame encoded, or -1 if there is none yet. */
+  public long getFirstPresentationTimeUs() {
+    return firstPresentationTimeUs;
+  }
+
+  private void release() {
+    if (codec != null) {
+      try {
+        codec.stop();
+      } catch (IllegalStateException e) {
+        // Already stopped, or never started.
+      }
+      codec.release();
+      codec = null;
+    }
+    if (thread != null) {
+      // The codec is released, so no more callbacks are posted. Let the pending ones run, then
+      // make sure the sink is ended.
+      Handler handler = new Handler(thread.getLooper());
+      handler.post(this::finish);
+      thread.quitSafely();
+      thread = null;
+    }
+    if (inputSurface != null) {
+      inputSurface.release();
+      inputSurface = null;
+    }
+  }
+
+  // Runs on the encoder thread.
+  private void finish() {
+    if (!finished) {
+      finished = true;
+      sink.onEnd();
+      ended.countDown();
+    }
+  }
+
+  private final class Callback extends MediaCodec.Callback {
+    @Override
+    public void onInputBufferAvailable(MediaCodec codec, int index) {
+      // Frames come in through the input surface.
+    }
+
+    @Override
+    public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+      if (finished) {
+        return;
+      }
+      try {
+        ByteBuffer buffer = codec.getOutputBuffer(index);
+        boolean config = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+        if (!config && info.size > 0 && buffer != null) {
+          countFrame(info.presentationTimeUs, info.size);
+          buffer.position(info.offset);
+          buffer.limit(info.offset + info.size);
+          sink.onSample(buffer, info);
+        }
+        codec.releaseOutputBuffer(index, false);
+      } catch (RuntimeException e) {
+        Log.e(TAG, "Unable to write encoded frame", e);
+        finish();
+        return;
+      }
+      if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+        finish();
+      }
+    }
+
+    @Override
+    public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+      Log.e(TAG, "Encoder error", e);
+      finish();
+    }
+
+    @Override
+    public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+      sink.onFormat(format);
+    }
+  }
+
+  private void countFrame(long presentationTimeUs, int size) {
+    if (firstPresentationTimeUs < 0) {
+      firstPresentationTimeUs = presentationTimeUs;
+    }
+    if (stats == null) {
+      return;
+    }
+    // Surface frames are timestamped on the same clock as System.nanoTime().
+    stats.onFrameEncoded(System.nanoTime() - presentationTimeUs * 1000, size);
+
+    // With B-frames access units come out of presentation order; only forward gaps count.
+    if (presentationTimeUs > lastPresentationTimeUs) {
+      if (lastPresentationTimeUs >= 0) {
+        long frameIntervalUs = 1000000L / frameRate;
+        long gapFrames =
+            (presentationTimeUs - lastPresentationTimeUs + frameIntervalUs / 2) / frameIntervalUs;
+        if (gapFrames > 1) {
+          stats.onRenderGap(gapFrames - 1);
+        }
+      }
+      lastPresentationTimeUs = presentationTimeUs;
+    }
+  }
+}
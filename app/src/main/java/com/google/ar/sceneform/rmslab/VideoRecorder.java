@@ -16,31 +16,128 @@
 
 package com.google.ar.sceneform.rmslab;
 
+import android.content.ContentResolver;
+import android.content.ContentValues;
 import android.content.res.Configuration;
 import android.media.CamcorderProfile;
 import android.media.MediaRecorder;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.provider.MediaStore;
 import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
 import com.google.ar.sceneform.SceneView;
+import com.google.ar.sceneform.rmslab.helpers.LatencyHistogram;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 
 /**
  * Video Recorder class handles recording the contents of a SceneView. It uses MediaRecorder to
  * encode the video. The quality settings can be set explicitly or simply use the CamcorderProfile
  * class to select a predefined set of parameters.
+ *
+ * <p>With {@link #ENGINE_MEDIA_CODEC}, a {@link VideoEncoder} and a {@link MuxerSink} are used
+ * instead, which allow setting the key frame interval and report the encode latency and render gaps
+ * of each recording.
+ *
+ * <p>{@link #getStats} returns the counters of the current or last recording: frames submitted and
+ * encoded, encoder queue depth, render gaps, throughput and encode latency. They are updated
+ * lock-free, so they can be sampled from any thread while recording.
+ *
+ * <p>Preparing, stopping and finalizing a recording can take hundreds of milliseconds, so they run
+ * on a recorder thread, and the methods called from the main thread return right away. A
+ * recording goes through the {@link State states} IDLE, PREPARING, RECORDING, FINALIZING and back
+ * to IDLE, reported to the {@link Listener} on the main thread. Only mirroring the scene to the
+ * encoder surface is done on the main thread, which Sceneform renders on. Finished videos are
+ * added to the MediaStore from the recorder thread, in batches. With a post-processing executor,
+ * set with {@link #setPostProcessExecutor}, finished videos are then rewritten there by {@link
+ * FastStart} to start playing before they are fully downloaded.
+ *
+ * <p>In instant replay mode, set with {@link #setInstantReplay}, recording keeps the last seconds
+ * of encoded video in a {@link ReplayBuffer} instead of writing a file, and {@link #saveReplay}
+ * saves them as a video.
+ *
+ * <p>In segmented mode, set with {@link #setSegmentation}, a recording is written as a directory of
+ * MP4 segments listed in a {@link SegmentIndex}, so a recording cut short by the app dying keeps
+ * all its finished segments. Each segment is added to the MediaStore as soon as it is finished.
+ *
+ * <p>With a proxy, set with {@link #setProxy}, each video is also recorded at a lower resolution
+ * and bitrate by a second encoder, for sharing right away. The scene is mirrored to both encoders
+ * from the same frame on, so the proxy has the same frames with the same timestamps.
+ *
+ * <p>With a {@link RecordingGovernor}, each segment, or each recording when not segmented, has its
+ * quality level chosen by the governor from the measurements of the previous one. Changing the
+ * quality within a recording restarts the encoder between two segments.
  */
 public class VideoRecorder {
   private static final String TAG = "VideoRecorder";
   private static final int DEFAULT_BITRATE = 10000000;
   private static final int DEFAULT_FRAMERATE = 30;
+  private static final int DEFAULT_KEY_FRAME_INTERVAL = 1;
+  // How long stopping waits for the encoder to write its last frames.
+  private static final long ENCODER_STOP_TIMEOUT_MS = 2000;
+  // Videos finished within this delay of each other are added to the MediaStore together.
+  private static final long MEDIA_STORE_BATCH_DELAY_MS = 1000;
+  // Highest frame rate the scene is mirrored at, which sizes the replay buffer.
+  private static final int MAX_MIRROR_FRAME_RATE = 60;
+
+  /** Encode with a MediaRecorder. */
+  public static final int ENGINE_MEDIA_RECORDER = 0;
+  /** Encode with a MediaCodec in asynchronous mode, muxed by a MediaMuxer. */
+  public static final int ENGINE_MEDIA_CODEC = 1;
+
+  /** State of the recorder. */
+  public enum State {
+    IDLE,
+    // The encoder is being set up on the recorder thread.
+    PREPARING,
+    // The scene is mirrored to the encoder.
+    RECORDING,
+    // The encoder is writing the end of the video on the recorder thread.
+    FINALIZING
+  }
+
+  /** Receives the state changes of the recorder, on the main thread. */
+  public interface Listener {
+    void onStateChanged(State state);
+
+    /**
+     * Called when a video has been finalized, just before going back to IDLE, or once it has been
+     * post-processed when there is a post-processing executor.
+     */
+    void onVideoSaved(File video);
+  }
 
-  // recordingVideoFlag is true when the media recorder is capturing video.
-  private boolean recordingVideoFlag;
+  // Changed on the main thread only.
+  private volatile State state = State.IDLE;
+  // Set when the recording is stopped while being prepared.
+  private boolean stopRequested;
+  // Set by release(), so a recording prepared afterwards is left to the recorder thread to stop.
+  private boolean released;
+  private Listener listener;
 
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final HandlerThread recorderThread;
+  private final Handler recorderHandler;
+
+  // Used on the recorder thread only.
   private MediaRecorder mediaRecorder;
+  // Set while the encoders of a recording run, from when they start until they are stopped.
+  private boolean encoding;
+  private final List<ContentValues> pendingMediaStoreValues = new ArrayList<>();
+  private final Runnable flushMediaStoreTask = this::flushMediaStore;
+  private volatile ContentResolver contentResolver;
+  private volatile Executor postProcessExecutor;
+  // Set when the recorder is paused, so the videos are added to the MediaStore right away.
+  private volatile boolean finishing;
 
   private Size videoSize;
 
@@ -48,10 +145,52 @@ public class VideoRecorder {
   private int videoCodec;
   private File videoDirectory;
   private String videoBaseName;
-  private File videoPath;
+  private volatile File videoPath;
   private int bitRate = DEFAULT_BITRATE;
   private int frameRate = DEFAULT_FRAMERATE;
+  // Surface mirrored to, on the main thread.
   private Surface encoderSurface;
+  private int engine = ENGINE_MEDIA_RECORDER;
+  // Engine of the current recording.
+  private int recordingEngine;
+  private int keyFrameInterval = DEFAULT_KEY_FRAME_INTERVAL;
+  // Encoder of the current or last recording, when using the MediaCodec engine. While the quality
+  // changes, it is the outgoing encoder, which is mirrored to until the main thread swaps surfaces.
+  private volatile VideoEncoder videoEncoder;
+  // Encoder started at the new quality, waiting for the main thread to mirror to it. Used on the
+  // recorder thread only.
+  private VideoEncoder incomingEncoder;
+  // Counters of the current or last recording, replaced on the main thread.
+  private volatile RecordingStats stats = new RecordingStats(false);
+  // Quality level and orientation of the last setVideoQuality call.
+  private int quality = CamcorderProfile.QUALITY_HIGH;
+  private int orientation;
+  private RecordingGovernor governor;
+  // Instant replay window, or 0 to record to a file.
+  private int replaySeconds;
+  private int replayMaxBytes;
+  // Buffer of the current recording, in instant replay mode.
+  private volatile ReplayBuffer replayBuffer;
+  // Segment duration, or 0 to record a single file, and size.
+  private int segmentSeconds;
+  private long segmentMaxBytes;
+  // Index of the current recording, in segmented mode. Used on the recorder thread only.
+  private SegmentIndex segmentIndex;
+  // Segments finished on the encoder threads, to be added to the MediaStore on the recorder thread.
+  private final ConcurrentLinkedQueue<File> finishedSegments = new ConcurrentLinkedQueue<>();
+  // Short side of the proxy video, or 0 for none, and its bitrate.
+  private int proxyShortSide;
+  private int proxyBitRate;
+  // Proxy of the current recording, if any, set on the recorder thread.
+  private volatile VideoEncoder proxyEncoder;
+  private volatile RecordingStats proxyStats;
+  private File proxyPath;
+  private Size proxySize;
+  // Surface of the proxy encoder mirrored to, on the main thread.
+  private Surface proxySurface;
+  // Frame times between recordings, and the time of the last frame, on the main thread.
+  private final LatencyHistogram idleFrameTimes = new LatencyHistogram();
+  private long lastFrameNanos;
 
   private static final int[] FALLBACK_QUALITY_LEVELS = {
     CamcorderProfile.QUALITY_HIGH,
@@ -62,7 +201,9 @@ public class VideoRecorder {
   };
 
   public VideoRecorder() {
-    recordingVideoFlag = false;
+    recorderThread = new HandlerThread(TAG);
+    recorderThread.start();
+    recorderHandler = new Handler(recorderThread.getLooper());
   }
 
   public File getVideoPath() {
@@ -81,21 +222,305 @@ public class VideoRecorder {
     this.sceneView = sceneView;
   }
 
+  public void setListener(Listener listener) {
+    this.listener = listener;
+  }
+
+  /** Finished videos are added to the MediaStore through this resolver, if set. */
+  public void setContentResolver(ContentResolver contentResolver) {
+    this.contentResolver = contentResolver;
+  }
+
+  /**
+   * Rewrites finished videos on this executor with their moov before their media data, so they can
+   * be played while downloading, before reporting them to {@link Listener#onVideoSaved}. Videos
+   * are added to the MediaStore right away; the rewrite replaces the file in one rename.
+   */
+  public void setPostProcessExecutor(Executor postProcessExecutor) {
+    this.postProcessExecutor = postProcessExecutor;
+  }
+
+  /** Selects the engine used by the next recordings, {@link #ENGINE_MEDIA_RECORDER} by default. */
+  public void setEngine(int engine) {
+    this.engine = engine;
+  }
+
+  /**
+   * Lets the governor choose the quality of each recording among the quality levels this device
+   * has, starting from the one set with {@link #setVideoQuality}.
+   */
+  public void setGovernor(RecordingGovernor governor) {
+    this.governor = governor;
+    if (governor != null) {
+      governor.setLevels(getQualityLevels(), quality);
+    }
+  }
+
+  /**
+   * Switches to instant replay mode, where recording keeps the last seconds of video in memory
+   * until {@link #saveReplay} is called, or back to recording to a file with 0 seconds. Instant
+   * replay always uses the MediaCodec engine.
+   *
+   * @param maxBytes memory for the encoded video; the window is shortened to stay within it
+   */
+  public void setInstantReplay(int seconds, int maxBytes) {
+    replaySeconds = seconds;
+    replayMaxBytes = maxBytes;
+  }
+
+  /**
+   * Switches to segmented mode, where a recording is split into segments of at most the given
+   * duration and size, or back to a single file with 0 seconds. Segments are cut on key frames, so
+   * they can be up to a key frame interval longer. Segmented mode uses the MediaCodec engine.
+   */
+  public void setSegmentation(int seconds, long maxBytes) {
+    segmentSeconds = seconds;
+    segmentMaxBytes = maxBytes;
+  }
+
+  /**
+   * Also records each video as a proxy scaled down to the given short side, at the given bitrate,
+   * or no proxy with 0. The proxy is saved next to the video, with a "_proxy" suffix, and reported
+   * to {@link Listener#onVideoSaved} after it. Proxies are not recorded in instant replay or
+   * segmented mode.
+   */
+  public void setProxy(int shortSide, int bitRate) {
+    proxyShortSide = shortSide;
+    proxyBitRate = bitRate;
+  }
+
+  /**
+   * Saves the buffered video while recording in instant replay mode. The video is written on the
+   * recorder thread and reported to {@link Listener#onVideoSaved}; recording goes on.
+   *
+   * @return false if there is no replay being recorded.
+   */
+  public boolean saveReplay() {
+    if (state != State.RECORDING || replayBuffer == null) {
+      return false;
+    }
+    ReplayBuffer buffer = replayBuffer;
+    recorderHandler.post(
+        () -> {
+          buildFilename();
+          File video = videoPath;
+          try {
+            if (!buffer.save(video)) {
+              return;
+            }
+          } catch (IOException e) {
+            Log.e(TAG, "Unable to save the replay", e);
+            video.delete();
+            return;
+          }
+          publishVideo(video);
+        });
+    return true;
+  }
+
+  /** Key frame interval in seconds. Only used by the MediaCodec engine. */
+  public void setKeyFrameInterval(int keyFrameInterval) {
+    this.keyFrameInterval = keyFrameInterval;
+  }
+
+  /** Counters of the current or last recording. Can be called from any thread. */
+  public RecordingStats.Snapshot getStats() {
+    return stats.snapshot();
+  }
+
+  /**
+   * Counters of the proxy of the current or last recording, the extra encode cost of the proxy, or
+   * null if it has none. Can be called from any thread.
+   */
+  public RecordingStats.Snapshot getProxyStats() {
+    RecordingStats proxy = proxyStats;
+    return proxy != null ? proxy.snapshot() : null;
+  }
+
+  /**
+   * Call on every rendered frame, on the main thread, to count the frames sent to the encoders and
+   * measure the frame times while recording and in between.
+   */
+  public void onFrame() {
+    long now = System.nanoTime();
+    long frameTime = lastFrameNanos != 0 ? now - lastFrameNanos : 0;
+    lastFrameNanos = now;
+    if (encoderSurface != null) {
+      stats.onFrameSubmitted();
+      if (frameTime > 0) {
+        stats.onFrameRendered(frameTime);
+      }
+      if (proxySurface != null) {
+        proxyStats.onFrameSubmitted();
+      }
+    } else if (frameTime > 0) {
+      idleFrameTimes.record(frameTime);
+    }
+  }
+
   /**
-   * Toggles the state of video recording.
+   * Toggles the state of video recording. Call on the main thread. Starting and stopping finish on
+   * the recorder thread, and are reported to the listener. Toggling while a video is being
+   * finalized is ignored.
    *
-   * @return true if recording is now active.
+   * @return true if recording is now starting or active.
    */
   public boolean onToggleRecord() {
-    if (recordingVideoFlag) {
+    switch (state) {
+      case IDLE:
+        startRecordingVideo();
+        return true;
+      case PREPARING:
+        stopRequested = true;
+        return false;
+      case RECORDING:
+        stopRecordingVideo();
+        return false;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Stops the recording, if any, and adds finished videos to the MediaStore without waiting for a
+   * batch. Call from onPause, so mirroring stops before the scene view is paused. The video is then
+   * finalized on the recorder thread.
+   */
+  public void finishRecording() {
+    finishing = true;
+    if (state == State.RECORDING) {
       stopRecordingVideo();
-    } else {
-      startRecordingVideo();
+    } else if (state == State.PREPARING) {
+      stopRequested = true;
+    }
+    recorderHandler.post(flushMediaStoreTask);
+  }
+
+  /**
+   * Finishes the pending work of the recorder thread and stops it. Call from onDestroy. A recording
+   * still being prepared is stopped and saved on the recorder thread before it quits.
+   */
+  public void release() {
+    finishRecording();
+    released = true;
+    recorderHandler.post(
+        () -> {
+          // The main thread can no longer post the stop of a recording prepared after release().
+          if (encoding) {
+            stopRecorder(stats);
+          }
+          if (mediaRecorder != null) {
+            mediaRecorder.release();
+            mediaRecorder = null;
+          }
+        });
+    recorderThread.quitSafely();
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  private void setState(State state) {
+    this.state = state;
+    if (listener != null) {
+      listener.onStateChanged(state);
     }
-    return recordingVideoFlag;
   }
 
   private void startRecordingVideo() {
+    stopRequested = false;
+    finishing = false;
+    recordingEngine = replaySeconds > 0 || segmentSeconds > 0 ? ENGINE_MEDIA_CODEC : engine;
+    stats = new RecordingStats(recordingEngine == ENGINE_MEDIA_CODEC);
+    if (governor != null && governor.getQuality() != quality) {
+      setVideoQuality(governor.getQuality(), orientation);
+    }
+    setState(State.PREPARING);
+    recorderHandler.post(
+        () -> {
+          Surface surface =
+              recordingEngine == ENGINE_MEDIA_CODEC ? startEncoder() : startMediaRecorder();
+          Surface proxy = surface != null ? startProxy() : null;
+          encoding = surface != null;
+          mainHandler.post(() -> onPrepared(surface, proxy));
+        });
+  }
+
+  // Runs on the main thread once the encoders are set up, with their surfaces or null if the
+  // encoder failed or there is no proxy.
+  private void onPrepared(Surface surface, Surface proxy) {
+    if (released) {
+      // Stopped by the last task of the recorder thread.
+      return;
+    }
+    if (surface == null) {
+      setState(State.IDLE);
+      return;
+    }
+    if (stopRequested) {
+      stopRecordingVideo();
+      return;
+    }
+    encoderSurface = surface;
+    proxySurface = proxy;
+    // Both in the same frame, so that the proxy starts on the same frame as the video.
+    sceneView.startMirroringToSurface(
+        encoderSurface, 0, 0, videoSize.getWidth(), videoSize.getHeight());
+    if (proxySurface != null) {
+      sceneView.startMirroringToSurface(
+          proxySurface, 0, 0, proxySize.getWidth(), proxySize.getHeight());
+    }
+    stats.setBaselineFrameTime(idleFrameTimes.getValueAtPercentile(50));
+    idleFrameTimes.reset();
+    if (governor != null) {
+      governor.beginSegment(stats);
+    }
+    setState(State.RECORDING);
+  }
+
+  private void stopRecordingVideo() {
+    if (encoderSurface != null) {
+      sceneView.stopMirroringToSurface(encoderSurface);
+      encoderSurface = null;
+    }
+    if (proxySurface != null) {
+      sceneView.stopMirroringToSurface(proxySurface);
+      proxySurface = null;
+    }
+    setState(State.FINALIZING);
+    RecordingStats recordingStats = stats;
+    recorderHandler.post(() -> stopRecorder(recordingStats));
+  }
+
+  // Runs on the recorder thread. Stops the encoders of the recording and saves its videos.
+  private void stopRecorder(RecordingStats recordingStats) {
+    encoding = false;
+    File video =
+        recordingEngine == ENGINE_MEDIA_CODEC ? stopEncoder(recordingStats) : stopMediaRecorder();
+    recordingStats.finish();
+    Log.d(TAG, "Recording stats: " + recordingStats.snapshot());
+    File proxy = stopProxy();
+    // The encoder has drained, so its last segment is finished. Add it now rather than from the
+    // task the encoder thread posted, which is dropped if the recorder is released.
+    addFinishedSegments();
+    if (governor != null) {
+      governor.endSegment(recordingStats);
+    }
+    // Segments are added to the MediaStore as they are finished.
+    if (video != null && video.isFile()) {
+      publishVideo(video);
+    } else if (video != null) {
+      mainHandler.post(() -> reportVideo(video));
+    }
+    if (proxy != null) {
+      publishVideo(proxy);
+    }
+    mainHandler.post(() -> setState(State.IDLE));
+  }
+
+  // Runs on the recorder thread.
+  private Surface startMediaRecorder() {
     if (mediaRecorder == null) {
       mediaRecorder = new MediaRecorder();
     }
@@ -105,16 +530,352 @@ public class VideoRecorder {
       setUpMediaRecorder();
     } catch (IOException e) {
       Log.e(TAG, "Exception setting up recorder", e);
-      return;
+      mediaRecorder.reset();
+      return null;
     }
 
     // Set up Surface for the MediaRecorder
-    encoderSurface = mediaRecorder.getSurface();
+    return mediaRecorder.getSurface();
+  }
 
-    sceneView.startMirroringToSurface(
-        encoderSurface, 0, 0, videoSize.getWidth(), videoSize.getHeight());
+  // Runs on the recorder thread.
+  private File stopMediaRecorder() {
+    try {
+      mediaRecorder.stop();
+    } catch (RuntimeException e) {
+      // Thrown when no frame was recorded; the file is unusable.
+      Log.e(TAG, "Exception stopping capture", e);
+      mediaRecorder.reset();
+      videoPath.delete();
+      return null;
+    }
+    mediaRecorder.reset();
+    return videoPath;
+  }
+
+  // Runs on the recorder thread.
+  private Surface startEncoder() {
+    VideoEncoder.Sink sink;
+    replayBuffer = null;
+    segmentIndex = null;
+    if (replaySeconds > 0) {
+      // Room for the window plus the group of pictures it may start in.
+      int maxUnits = (replaySeconds + keyFrameInterval) * MAX_MIRROR_FRAME_RATE;
+      replayBuffer = new ReplayBuffer(replaySeconds, replayMaxBytes, maxUnits);
+      sink = replayBuffer;
+    } else if (segmentSeconds > 0) {
+      buildFilename();
+      String name = videoPath.getName();
+      videoPath = new File(videoDirectory, name.substring(0, name.lastIndexOf('.')));
+      try {
+        segmentIndex = new SegmentIndex(videoPath);
+      } catch (IOException e) {
+        Log.e(TAG, "Exception setting up segments", e);
+        return null;
+      }
+      sink = newSegmentedSink();
+    } else {
+      buildFilename();
+      try {
+        sink = new MuxerSink(videoPath);
+      } catch (IOException e) {
+        Log.e(TAG, "Exception setting up muxer", e);
+        return null;
+      }
+      Surface surface = startEncoder(sink);
+      if (surface == null) {
+        videoPath.delete();
+      }
+      return surface;
+    }
+    return startEncoder(sink);
+  }
+
+  // Runs on the recorder thread. Starts an encoder at the current quality and returns its surface.
+  private Surface startEncoder(VideoEncoder.Sink sink) {
+    VideoEncoder encoder = newEncoder();
+    try {
+      Surface surface = encoder.start(sink);
+      videoEncoder = encoder;
+      return surface;
+    } catch (IOException e) {
+      Log.e(TAG, "Exception setting up encoder", e);
+      return null;
+    }
+  }
+
+  // Runs on the recorder thread. Returns an encoder at the current quality, not started yet.
+  private VideoEncoder newEncoder() {
+    String mimeType =
+        VideoEncoder.mimeTypeFor(videoCodec, videoSize.getWidth(), videoSize.getHeight());
+    VideoEncoder encoder =
+        new VideoEncoder(
+            mimeType,
+            videoSize.getWidth(),
+            videoSize.getHeight(),
+            bitRate,
+            frameRate,
+            keyFrameInterval);
+    encoder.setStats(stats);
+    return encoder;
+  }
+
+  // Runs on the recorder thread.
+  private File stopEncoder(RecordingStats recordingStats) {
+    VideoEncoder encoder = videoEncoder;
+    encoder.stop(ENCODER_STOP_TIMEOUT_MS);
+    if (incomingEncoder != null) {
+      // Stopped while changing the quality, before the new encoder was mirrored to. It has no
+      // frames, but stopping it closes its sink.
+      incomingEncoder.stop(ENCODER_STOP_TIMEOUT_MS);
+      incomingEncoder = null;
+    }
+    boolean encoded = recordingStats.snapshot().encodedFrames > 0;
+    if (replayBuffer != null) {
+      // Only saved replays are kept.
+      replayBuffer = null;
+      return null;
+    }
+    if (segmentIndex != null) {
+      return encoded ? segmentIndex.getDirectory() : null;
+    }
+    if (!encoded) {
+      // The muxer created the file, but never started; it is unusable.
+      videoPath.delete();
+      return null;
+    }
+    return videoPath;
+  }
+
+  // Runs on the recorder thread. Starts the proxy encoder, if this recording has a proxy, and
+  // returns its surface.
+  private Surface startProxy() {
+    proxyEncoder = null;
+    proxyStats = null;
+    if (proxyShortSide <= 0 || replaySeconds > 0 || segmentSeconds > 0) {
+      return null;
+    }
+    int width = videoSize.getWidth();
+    int height = videoSize.getHeight();
+    float scale = (float) proxyShortSide / Math.min(width, height);
+    if (scale >= 1) {
+      Log.d(TAG, "Video not larger than its proxy, recording no proxy");
+      return null;
+    }
+    // Encoders want sizes in multiples of 16.
+    proxySize = new Size(Math.round(width * scale / 16) * 16, Math.round(height * scale / 16) * 16);
+    String name = videoPath.getName();
+    proxyPath = new File(videoDirectory, name.substring(0, name.lastIndexOf('.')) + "_proxy.mp4");
+
+    String mimeType =
+        VideoEncoder.mimeTypeFor(videoCodec, proxySize.getWidth(), proxySize.getHeight());
+    VideoEncoder encoder =
+        new VideoEncoder(
+            mimeType,
+            proxySize.getWidth(),
+            proxySize.getHeight(),
+            proxyBitRate,
+            frameRate,
+            keyFrameInterval);
+    RecordingStats encoderStats = new RecordingStats(true);
+    encoder.setStats(encoderStats);
+    try {
+      Surface surface = encoder.start(new MuxerSink(proxyPath));
+      proxyEncoder = encoder;
+      proxyStats = encoderStats;
+      return surface;
+    } catch (IOException e) {
+      Log.e(TAG, "Exception setting up the proxy encoder, recording without proxy", e);
+      proxyPath.delete();
+      return null;
+    }
+  }
+
+  // Runs on the recorder thread. Returns the proxy video, or null if there is none.
+  private File stopProxy() {
+    VideoEncoder encoder = proxyEncoder;
+    if (encoder == null) {
+      return null;
+    }
+    proxyEncoder = null;
+    encoder.stop(ENCODER_STOP_TIMEOUT_MS);
+    RecordingStats encoderStats = proxyStats;
+    encoderStats.finish();
+    RecordingStats.Snapshot snapshot = encoderStats.snapshot();
+    Log.d(TAG, "Proxy " + proxySize + " stats: " + snapshot);
+    VideoEncoder video = recordingEngine == ENGINE_MEDIA_CODEC ? videoEncoder : null;
+    if (video != null
+        && video.getFirstPresentationTimeUs() >= 0
+        && encoder.getFirstPresentationTimeUs() >= 0) {
+      // Both are mirrored the same frames, so this is the time between their two swaps.
+      Log.d(
+          TAG,
+          "Proxy starts "
+              + (encoder.getFirstPresentationTimeUs() - video.getFirstPresentationTimeUs())
+              + " us after the video");
+    }
+    if (snapshot.encodedFrames == 0) {
+      proxyPath.delete();
+      return null;
+    }
+    return proxyPath;
+  }
 
-    recordingVideoFlag = true;
+  // Runs on the recorder thread.
+  private SegmentedSink newSegmentedSink() {
+    return new SegmentedSink(
+        segmentIndex, segmentSeconds, segmentMaxBytes, this::onSegmentFinished);
+  }
+
+  // Runs on the encoder thread.
+  private void onSegmentFinished(File segment, boolean rolled) {
+    finishedSegments.add(segment);
+    recorderHandler.post(
+        () -> {
+          addFinishedSegments();
+          if (rolled) {
+            onSegmentRolled();
+          }
+        });
+  }
+
+  // Runs on the recorder thread.
+  private void addFinishedSegments() {
+    File segment;
+    while ((segment = finishedSegments.poll()) != null) {
+      addToMediaStore(segment);
+    }
+  }
+
+  // Runs on the recorder thread, between two segments of the recording.
+  private void onSegmentRolled() {
+    if (governor == null || state != State.RECORDING) {
+      return;
+    }
+    RecordingStats recordingStats = stats;
+    governor.endSegment(recordingStats);
+    governor.beginSegment(recordingStats);
+    if (governor.getQuality() != quality) {
+      mainHandler.post(this::switchQuality);
+    }
+  }
+
+  // Restarts the encoder at the quality chosen by the governor. The incoming encoder starts a new
+  // segment, and the outgoing one finishes its current segment once it is no longer mirrored to.
+  // Until then both are kept in fields, so stopping the recording meanwhile stops both.
+  private void switchQuality() {
+    if (state != State.RECORDING || governor.getQuality() == quality) {
+      return;
+    }
+    setVideoQuality(governor.getQuality(), orientation);
+    recorderHandler.post(
+        () -> {
+          if (state != State.RECORDING || incomingEncoder != null) {
+            return;
+          }
+          VideoEncoder encoder = newEncoder();
+          Surface surface;
+          try {
+            surface = encoder.start(newSegmentedSink());
+          } catch (IOException e) {
+            Log.e(TAG, "Exception setting up encoder, keeping the previous quality", e);
+            return;
+          }
+          incomingEncoder = encoder;
+          mainHandler.post(
+              () -> {
+                if (state == State.RECORDING) {
+                  sceneView.stopMirroringToSurface(encoderSurface);
+                  encoderSurface = surface;
+                  sceneView.startMirroringToSurface(
+                      surface, 0, 0, videoSize.getWidth(), videoSize.getHeight());
+                  governor.beginSegment(stats);
+                }
+                recorderHandler.post(() -> finishSwitch(encoder));
+              });
+        });
+  }
+
+  // Runs on the recorder thread once the main thread mirrors to the incoming encoder, or has
+  // stopped the recording instead.
+  private void finishSwitch(VideoEncoder encoder) {
+    if (incomingEncoder != encoder) {
+      // The recording was stopped before the swap, which stopped both encoders.
+      return;
+    }
+    incomingEncoder = null;
+    VideoEncoder outgoing = videoEncoder;
+    videoEncoder = encoder;
+    outgoing.stop(ENCODER_STOP_TIMEOUT_MS);
+    addFinishedSegments();
+  }
+
+  // Runs on the recorder thread. Adds a finished video to the MediaStore, moves its moov first on
+  // the post-processing executor, if any, and reports it.
+  private void publishVideo(File video) {
+    addToMediaStore(video);
+    Executor executor = postProcessExecutor;
+    if (executor == null) {
+      mainHandler.post(() -> reportVideo(video));
+      return;
+    }
+    executor.execute(
+        () -> {
+          long startNanos = System.nanoTime();
+          try {
+            if (FastStart.apply(video)) {
+              Log.d(
+                  TAG,
+                  "Moved the moov of "
+                      + video
+                      + " first in "
+                      + (System.nanoTime() - startNanos) / 1000000
+                      + " ms");
+            }
+          } catch (IOException e) {
+            Log.e(TAG, "Unable to move the moov of " + video + " first", e);
+          }
+          mainHandler.post(() -> reportVideo(video));
+        });
+  }
+
+  private void reportVideo(File video) {
+    if (listener != null) {
+      listener.onVideoSaved(video);
+    }
+  }
+
+  // Runs on the recorder thread.
+  private void addToMediaStore(File video) {
+    if (contentResolver == null) {
+      return;
+    }
+    ContentValues values = new ContentValues();
+    values.put(MediaStore.Video.Media.TITLE, "Sceneform Video");
+    values.put(MediaStore.Video.Media.MIME_TYPE, "video/mp4");
+    values.put(MediaStore.Video.Media.DATA, video.getAbsolutePath());
+    pendingMediaStoreValues.add(values);
+    if (finishing) {
+      flushMediaStore();
+    } else if (pendingMediaStoreValues.size() == 1) {
+      recorderHandler.postDelayed(flushMediaStoreTask, MEDIA_STORE_BATCH_DELAY_MS);
+    }
+  }
+
+  // Runs on the recorder thread.
+  private void flushMediaStore() {
+    recorderHandler.removeCallbacks(flushMediaStoreTask);
+    if (pendingMediaStoreValues.isEmpty()) {
+      return;
+    }
+    try {
+      contentResolver.bulkInsert(
+          MediaStore.Video.Media.EXTERNAL_CONTENT_URI,
+          pendingMediaStoreValues.toArray(new ContentValues[0]));
+    } catch (RuntimeException e) {
+      Log.e(TAG, "Unable to add videos to the MediaStore", e);
+    }
+    pendingMediaStoreValues.clear();
   }
 
   private void buildFilename() {
@@ -136,19 +897,6 @@ public class VideoRecorder {
     }
   }
 
-  private void stopRecordingVideo() {
-    // UI
-    recordingVideoFlag = false;
-
-    if (encoderSurface != null) {
-      sceneView.stopMirroringToSurface(encoderSurface);
-      encoderSurface = null;
-    }
-    // Stop recording
-    mediaRecorder.stop();
-    mediaRecorder.reset();
-  }
-
   private void setUpMediaRecorder() throws IOException {
 
     mediaRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
@@ -183,10 +931,13 @@ public class VideoRecorder {
       for (int level : FALLBACK_QUALITY_LEVELS) {
         if (CamcorderProfile.hasProfile(level)) {
           profile = CamcorderProfile.get(level);
+          quality = level;
           break;
         }
       }
     }
+    this.quality = quality;
+    this.orientation = orientation;
     if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
       setVideoSize(profile.videoFrameWidth, profile.videoFrameHeight);
     } else {
@@ -197,11 +948,27 @@ public class VideoRecorder {
     setFrameRate(profile.videoFrameRate);
   }
 
+  // The fallback quality levels this device has, best first, without QUALITY_HIGH which is the
+  // same as the best of them.
+  private static int[] getQualityLevels() {
+    int[] levels = new int[FALLBACK_QUALITY_LEVELS.length];
+    int count = 0;
+    for (int level : FALLBACK_QUALITY_LEVELS) {
+      if (level != CamcorderProfile.QUALITY_HIGH && CamcorderProfile.hasProfile(level)) {
+        levels[count++] = level;
+      }
+    }
+    if (count == 0) {
+      return new int[] {CamcorderProfile.QUALITY_HIGH};
+    }
+    return Arrays.copyOf(levels, count);
+  }
+
   public void setVideoCodec(int videoCodec) {
     this.videoCodec = videoCodec;
   }
 
   public boolean isRecording() {
-    return recordingVideoFlag;
+    return state == State.RECORDING;
   }
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab.helpers;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Pool of direct byte buffers.
+ *
+ * <p>Direct buffers are slow to allocate and are only freed when the garbage collector gets to
+ * them, so writers that are created over and over, like one per recording segment, take their
+ * buffers from a shared pool and give them back when they are done.
+ */
+public final class DirectBufferPool {
+  private final int maxPooled;
+  private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+
+  /** @param maxPooled most buffers kept for reuse; buffers released beyond that are dropped. */
+  public DirectBufferPool(int maxPooled) {
+    this.maxPooled = maxPooled;
+  }
+
+  /** Returns a cleared buffer with at least the given capacity. */
+  public synchronized ByteBuffer acquire(int capacity) {
+    for (Iterator<ByteBuffer> it = free.iterator(); it.hasNext(); ) {
+      ByteBuffer buffer = it.next();
+      if (buffer.capacity() >= capacity) {
+        it.remove();
+        buffer.clear();
+        return buffer;
+      }
+    }
+    return ByteBuffer.allocateDirect(capacity);
+  }
+
+  /** Gives a buffer back for reuse. It must not be used after this. */
+  public synchronized void release(ByteBuffer buffer) {
+    if (buffer == null || !buffer.isDirect()) {
+      return;
+    }
+    if (free.size() >= maxPooled) {
+      // Keep the larger buffers, they are the more expensive ones.
+      ByteBuffer smallest = buffer;
+      for (ByteBuffer pooled : free) {
+        if (pooled.capacity() < smallest.capacity()) {
+          smallest = pooled;
+        }
+      }
+      if (smallest == buffer) {
+        return;
+      }
+      free.remove(smallest);
+    }
+    free.add(buffer);
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.sceneform.rmslab.helpers;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Times the stages of a frame listener and keeps a {@link LatencyHistogram} per stage, plus one
+ * for the whole frame.
+ *
+ * <p>A frame is timed by calling {@link #beginFrame}, then {@link #mark} at the end of each stage
+ * and {@link #endFrame} at the end. A stage that is nested in another one, or that runs several
+ * times per frame, can instead be accumulated with {@link #add}; its time is then subtracted from
+ * the stage it ran in. Nothing is allocated per frame. The frame loop must be the only caller of
+ * these methods, but the histograms can be read from any thread.
+ */
+public final class FrameProfiler {
+  private final String[] stageNames;
+  private final LatencyHistogram[] stageHistograms;
+  private final LatencyHistogram frameHistogram = new LatencyHistogram();
+
+  // Time spent in each stage in the current frame.
+  private final long[] stageNanos;
+
+  private long frameStartNanos;
+  private long stageStartNanos;
+  private long nestedNanos;
+
+  public FrameProfiler(String... stageNames) {
+    this.stageNames = stageNames;
+    stageHistograms = new LatencyHistogram[stageNames.length];
+    for (int i = 0; i < stageNames.length; i++) {
+      stageHistograms[i] = new LatencyHistogram();
+    }
+    stageNanos = new long[stageNames.length];
+  }
+
+  public void beginFrame() {
+    frameStartNanos = System.nanoTime();
+    stageStartNanos = frameStartNanos;
+    nestedNanos = 0;
+    for (int i = 0; i < stageNanos.length; i++) {
+      stageNanos[i] = 0;
+    }
+  }
+
+  /**
+   * Ends the given stage, which started at the previous mark or at the start of the frame. Time
+   * {@link #add added} to nested stages since then is not counted in it.
+   */
+  public void mark(int stage) {
+    long now = System.nanoTime();
+    stageNanos[stage] += now - stageStartNanos - nestedNanos;
+    stageStartNanos = now;
+    nestedNanos = 0;
+  }
+
+  /** Adds time spent in a nested stage, measured by the caller with System.nanoTime(). */
+  public void add(int stage, long nanos) {
+    stageNanos[stage] += nanos;
+    nestedNanos += nanos;
+  }
+
+  /**
+   * Records the stages and the frame time. Stages that did not run in this frame are not recorded,
+   * so a frame that returns early only counts towards the stages it got through.
+   */
+  public void endFrame() {
+    frameHistogram.record(System.nanoTime() - frameStartNanos);
+    for (int i = 0; i < stageNanos.length; i++) {
+      if (stageNanos[i] != 0) {
+        stageHistograms[i].record(stageNanos[i]);
+      }
+    }
+  }
+
+  public LatencyHistogram getFrameHistogram() {
+    return frameHistogram;
+  }
+
+  public LatencyHistogram getStageHistogram(int stage) {
+    return stageHistograms[stage];
+  }
+
+  public void reset() {
+    frameHistogram.reset();
+    for (LatencyHistogram histogram : stageHistograms) {
+      histogram.reset();
+    }
+  }
+
+  /** One line per stage with count, mean, p50, p99, p99.9 and max, in microseconds. */
+  public String summary() {
+    StringBuilder builder = new StringBuilder();
+    appendSummary(builder, "frame", frameHistogram);
+    for (int i = 0; i < stageNames.length; i++) {
+      appendSummary(builder, stageNames[i], stageHistograms[i]);
+    }
+    return builder.toString();
+  }
+
+  /** Writes the summary followed by the buckets of every histogram. */
+  public void dump(File file) throws IOException {
+    try (Writer writer = new BufferedWriter(new FileWriter(file))) {
+      writer.write(summary());
+      writer.write("\n# frame (ns)\n");
+      frameHistogram.writeBuckets(writer);
+      for (int i = 0; i < stageNames.length; i++) {
+        writer.write("\n# " + stageNames[i] + " (ns)\n");
+        stageHistograms[i].writeBuckets(writer);
+      }
+    }
+  }
+
+  private static void appendSummary(StringBuilder builder, String name, LatencyHistogram h) {
+    builder.append(
+        String.format(
+            Locale.US,
+            "%-22s n=%d mean=%.1fus p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus%n",
+            name,
+            h.getTotalCount(),
+            h.getMean() / 1000.0,
+            h.getValueAtPercentile(50) / 1000.0,
+            h.getValueAtPercentile(99) / 1000.0,
+            h.getValueAtPercentile(99.9) / 1000.0,
+            h.getMax() / 1000.0));
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.sceneform.rmslab.helpers;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size, log-linear histogram of non-negative values such as latencies in nanoseconds.
+ *
+ * <p>Values below 16 get a bucket each. Above that, every power of two range is split into 16
+ * linear buckets, so a bucket is never wider than 1/16th of the values it holds. Values above
+ * {@link #MAX_TRACKABLE_VALUE} are counted in the last bucket.
+ *
+ * <p>Recording is lock-free and allocation free, so it can be done from a frame or encoder loop
+ * while another thread reads percentiles. Readers see a consistent enough view for monitoring, but
+ * not an atomic snapshot of all buckets.
+ */
+public final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  /** Largest value with its own bucket, a little over 18 minutes in nanoseconds. */
+  public static final long MAX_TRACKABLE_VALUE = (1L << 40) - 1;
+
+  private static final int BUCKET_COUNT = bucketIndex(MAX_TRACKABLE_VALUE) + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+  private final AtomicLong totalCount = new AtomicLong();
+  private final AtomicLong sum = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  /** Records one value. Negative values are recorded as zero. */
+  public void record(long value) {
+    if (value < 0) {
+      value = 0;
+    }
+    counts.incrementAndGet(bucketIndex(Math.min(value, MAX_TRACKABLE_VALUE)));
+    totalCount.incrementAndGet();
+    sum.addAndGet(value);
+    long currentMax;
+    while (value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) {
+      // Retry until the max is at least this value.
+    }
+  }
+
+  public long getTotalCount() {
+    return totalCount.get();
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public double getMean() {
+    long count = totalCount.get();
+    return count == 0 ? 0 : (double) sum.get() / count;
+  }
+
+  /**
+   * Returns the value at the given percentile, between 0 and 100. The result is the upper bound of
+   * the bucket the percentile falls in, so it errs on the high side.
+   */
+  public long getValueAtPercentile(double percentile) {
+    long count = totalCount.get();
+    if (count == 0) {
+      return 0;
+    }
+    long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      seen += counts.get(i);
+      if (seen >= target) {
+        return Math.min(bucketUpperBound(i), max.get());
+      }
+    }
+    return max.get();
+  }
+
+  /** Clears all recorded values. */
+  public void reset() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts.set(i, 0);
+    }
+    totalCount.set(0);
+    sum.set(0);
+    max.set(0);
+  }
+
+  /** Writes the non-empty buckets as "lower upper count" lines. */
+  public void writeBuckets(Writer writer) throws IOException {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      long count = counts.get(i);
+      if (count != 0) {
+        writer.write(bucketLowerBound(i) + " " + bucketUpperBound(i) + " " + count + "\n");
+      }
+    }
+  }
+
+  static int bucketIndex(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+  }
+
+  static long bucketLowerBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+  }
+
+  static long bucketUpperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    return bucketLowerBound(index) + (1L << shift) - 1;
+  }
+}
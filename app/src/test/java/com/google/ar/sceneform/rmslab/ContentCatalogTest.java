@@ -0,0 +1,191 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+
+public class ContentCatalogTest {
+  private static final int ENTRY_COUNT = 10000;
+
+  @Test
+  public void opensLargeCatalogWithoutDecodingEntries() throws IOException {
+    ByteBuffer buffer = catalog(ENTRY_COUNT);
+    // Overwrite every entry, opening the catalog must not look at them.
+    int entriesStart = 16 + 4 * (ENTRY_COUNT + 1 + ENTRY_COUNT);
+    for (int i = entriesStart; i < buffer.limit(); i++) {
+      buffer.put(i, (byte) 0xff);
+    }
+
+    ContentCatalog catalog = new ContentCatalog(buffer);
+
+    assertEquals(ENTRY_COUNT + 1, catalog.getSlotCount());
+    assertEquals(ENTRY_COUNT, catalog.getEntryCount());
+    assertTrue(catalog.contains(ENTRY_COUNT));
+  }
+
+  @Test
+  public void decodesEntriesOnLookup() throws IOException {
+    ContentCatalog catalog = new ContentCatalog(catalog(ENTRY_COUNT));
+
+    ContentCatalog.Entry first = catalog.get(1);
+    assertEquals(1, first.getIndex());
+    assertEquals("model_1", first.getModel());
+    assertEquals(1.5f, first.getScale(), 0);
+    assertEquals("baseColorTint", first.getTintParameter());
+    assertArrayEquals(new float[] {0.5f, 1, 0, 1}, first.getTint(), 0);
+    assertEquals(1024, first.getTextureTexels());
+    assertEquals(Arrays.asList("idle", "wave"), first.getAnimations());
+    assertEquals(Arrays.asList("Hi!", "I'm 1"), first.getMessages());
+
+    assertEquals("model_" + ENTRY_COUNT, catalog.get(ENTRY_COUNT).getModel());
+    // Entries are written last to first, so the last image is the most likely one.
+    assertEquals(ENTRY_COUNT, catalog.getLikelyIndex(0));
+  }
+
+  @Test
+  public void returnsNullForImagesWithoutEntry() throws IOException {
+    ContentCatalog catalog = new ContentCatalog(catalog(ENTRY_COUNT));
+
+    // Index 0 is left out of the catalog.
+    assertFalse(catalog.contains(0));
+    assertNull(catalog.get(0));
+    assertNull(catalog.get(-1));
+    assertNull(catalog.get(ENTRY_COUNT + 1));
+  }
+
+  @Test
+  public void readsCatalogWrittenByContentCatalogWriter() throws IOException {
+    // Written by the writeContentCatalogFixture task of app/build.gradle.
+    ContentCatalog catalog = new ContentCatalog(resource("/content_catalog_fixture.bin"));
+
+    assertEquals(8, catalog.getSlotCount());
+    assertEquals(2, catalog.getEntryCount());
+    assertEquals(7, catalog.getLikelyIndex(0));
+    assertEquals(2, catalog.getLikelyIndex(1));
+    assertFalse(catalog.contains(0));
+
+    ContentCatalog.Entry drone = catalog.get(7);
+    assertEquals(7, drone.getIndex());
+    assertEquals("drone", drone.getModel());
+    assertEquals(0.5f, drone.getScale(), 0);
+    assertEquals("baseColorFactor", drone.getTintParameter());
+    assertArrayEquals(new float[] {1, 0.5f, 0.25f, 1}, drone.getTint(), 0);
+    assertEquals(4096, drone.getTextureTexels());
+    assertEquals(Arrays.asList("spin", "hover"), drone.getAnimations());
+    assertEquals(Arrays.asList("Hi!", "Gr\u00f6\u00dfe: 1 m"), drone.getMessages());
+
+    ContentCatalog.Entry globe = catalog.get(2);
+    assertEquals("globe", globe.getModel());
+    assertEquals(2.0f, globe.getScale(), 0);
+    assertEquals("", globe.getTintParameter());
+    assertEquals(0, globe.getTextureTexels());
+    assertEquals(Collections.emptyList(), globe.getAnimations());
+    assertEquals(Collections.emptyList(), globe.getMessages());
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsTruncatedCatalog() throws IOException {
+    ByteBuffer buffer = catalog(ENTRY_COUNT);
+    buffer.limit(16 + 4 * ENTRY_COUNT);
+    new ContentCatalog(buffer);
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsOtherVersions() throws IOException {
+    ByteBuffer buffer = catalog(1);
+    buffer.putInt(4, ContentCatalog.VERSION + 1);
+    new ContentCatalog(buffer);
+  }
+
+  // Builds a catalog in the layout described in ContentCatalog, with entries for the image indices
+  // 1 to entryCount, added in reverse order.
+  private static ByteBuffer catalog(int entryCount) throws IOException {
+    int slotCount = entryCount + 1;
+    ByteArrayOutputStream entries = new ByteArrayOutputStream();
+    DataOutputStream entryOut = new DataOutputStream(entries);
+    int[] slots = new int[slotCount];
+    Arrays.fill(slots, -1);
+    int entriesStart = 16 + 4 * (slotCount + entryCount);
+    for (int index = entryCount; index >= 1; index--) {
+      slots[index] = entriesStart + entryOut.size();
+      entryOut.writeInt(1024);
+      entryOut.writeFloat(1.5f);
+      writeString(entryOut, "model_" + index);
+      writeString(entryOut, "baseColorTint");
+      entryOut.writeFloat(0.5f);
+      entryOut.writeFloat(1);
+      entryOut.writeFloat(0);
+      entryOut.writeFloat(1);
+      entryOut.writeShort(2);
+      writeString(entryOut, "idle");
+      writeString(entryOut, "wave");
+      entryOut.writeShort(2);
+      writeString(entryOut, "Hi!");
+      writeString(entryOut, "I'm " + index);
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(ContentCatalog.MAGIC);
+    out.writeInt(ContentCatalog.VERSION);
+    out.writeInt(slotCount);
+    out.writeInt(entryCount);
+    for (int slot : slots) {
+      out.writeInt(slot);
+    }
+    for (int index = entryCount; index >= 1; index--) {
+      out.writeInt(index);
+    }
+    entries.writeTo(out);
+    return ByteBuffer.wrap(bytes.toByteArray());
+  }
+
+  private static ByteBuffer resource(String name) throws IOException {
+    try (InputStream in = ContentCatalogTest.class.getResourceAsStream(name)) {
+      if (in == null) {
+        throw new IOException("Missing test resource " + name);
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int count;
+      while ((count = in.read(buffer)) != -1) {
+        bytes.write(buffer, 0, count);
+      }
+      return ByteBuffer.wrap(bytes.toByteArray());
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String string) throws IOException {
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    out.writeShort(bytes.length);
+    out.write(bytes);
+  }
+}
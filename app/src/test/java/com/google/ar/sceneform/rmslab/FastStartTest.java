@@ -0,0 +1,243 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FastStartTest {
+  private static final byte[] FTYP = box("ftyp", ascii("isom"), u32(0));
+  private static final byte[] FREE = box("free", new byte[5]);
+  // Two chunks of media data, at these offsets into the payload of the mdat.
+  private static final byte[] MEDIA = media(300);
+  private static final int[] CHUNKS = {0, 200};
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void movesTheMoovFirstAndShiftsTheChunkOffsets() throws IOException {
+    byte[] mdat = box("mdat", MEDIA);
+    long mediaStart = FTYP.length + 8;
+    byte[] moov = moov(stco(mediaStart + CHUNKS[0], mediaStart + CHUNKS[1]));
+    File file = write(FTYP, mdat, moov, FREE);
+
+    assertTrue(FastStart.apply(file));
+
+    ByteBuffer mp4 = read(file);
+    assertEquals(Arrays.asList("ftyp", "moov", "mdat", "free"), types(mp4));
+    assertEquals(FTYP.length + moov.length + mdat.length + FREE.length, mp4.limit());
+    long[] offsets = chunkOffsets(mp4, "stco");
+    assertEquals(2, offsets.length);
+    for (int i = 0; i < CHUNKS.length; i++) {
+      assertEquals(mediaStart + CHUNKS[i] + moov.length, offsets[i]);
+      // The shifted offset still points at the same media data.
+      assertEquals(MEDIA[CHUNKS[i]], mp4.get((int) offsets[i]));
+    }
+    assertFalse(new File(file.getPath() + ".faststart").exists());
+  }
+
+  @Test
+  public void leavesFilesWithTheMoovFirstAlone() throws IOException {
+    byte[] moov = moov(stco(0));
+    File file = write(FTYP, moov, box("mdat", MEDIA));
+    byte[] before = Files.readAllBytes(file.toPath());
+
+    assertFalse(FastStart.apply(file));
+
+    assertArrayEquals(before, Files.readAllBytes(file.toPath()));
+  }
+
+  @Test
+  public void shiftsCo64ChunkOffsets() throws IOException {
+    // An mdat with a 64-bit size, as muxers write for large files.
+    byte[] mdat = concat(u32(1), ascii("mdat"), u64(16 + MEDIA.length), MEDIA);
+    long mediaStart = FTYP.length + 16;
+    // The first offset is before the mdat, and does not move.
+    byte[] moov = moov(co64(0, mediaStart + CHUNKS[0], mediaStart + CHUNKS[1]));
+    File file = write(FTYP, mdat, moov);
+
+    assertTrue(FastStart.apply(file));
+
+    ByteBuffer mp4 = read(file);
+    assertEquals(Arrays.asList("ftyp", "moov", "mdat"), types(mp4));
+    long[] offsets = chunkOffsets(mp4, "co64");
+    assertEquals(0, offsets[0]);
+    for (int i = 0; i < CHUNKS.length; i++) {
+      assertEquals(mediaStart + CHUNKS[i] + moov.length, offsets[i + 1]);
+      assertEquals(MEDIA[CHUNKS[i]], mp4.get((int) offsets[i + 1]));
+    }
+  }
+
+  @Test
+  public void rejectsATruncatedBoxAndLeavesTheFile() throws IOException {
+    byte[] moov = moov(stco(FTYP.length + 8));
+    // The file ends in the middle of the header of a box.
+    byte[] file = concat(FTYP, box("mdat", MEDIA), moov, new byte[] {0, 0, 0});
+    assertRejected(file);
+  }
+
+  @Test
+  public void rejectsABoxLargerThanItsParentAndLeavesTheFile() throws IOException {
+    byte[] stco = stco(FTYP.length + 8);
+    // The stco claims more bytes than the stbl holding it.
+    ByteBuffer.wrap(stco).putInt(0, stco.length + 100);
+    byte[] moov = moov(stco);
+    byte[] file = concat(FTYP, box("mdat", MEDIA), moov, box("free", new byte[200]));
+    assertRejected(file);
+  }
+
+  private void assertRejected(byte[] contents) throws IOException {
+    File file = write(contents);
+    try {
+      FastStart.apply(file);
+      fail("Malformed file was rewritten");
+    } catch (IOException expected) {
+      // The file is left as it was.
+    }
+    assertArrayEquals(contents, Files.readAllBytes(file.toPath()));
+    assertFalse(new File(file.getPath() + ".faststart").exists());
+  }
+
+  private File write(byte[]... boxes) throws IOException {
+    File file = folder.newFile("video.mp4");
+    Files.write(file.toPath(), concat(boxes));
+    return file;
+  }
+
+  private static byte[] moov(byte[] chunkOffsets) {
+    byte[] stbl = box("stbl", box("stsz", new byte[12]), chunkOffsets);
+    byte[] minf = box("minf", box("vmhd", new byte[12]), stbl);
+    byte[] mdia = box("mdia", box("mdhd", new byte[24]), minf);
+    return box("moov", box("mvhd", new byte[100]), box("trak", box("tkhd", new byte[84]), mdia));
+  }
+
+  private static byte[] stco(long... offsets) {
+    ByteArrayOutputStream entries = new ByteArrayOutputStream();
+    for (long offset : offsets) {
+      entries.write(u32(offset), 0, 4);
+    }
+    return box("stco", u32(0), u32(offsets.length), entries.toByteArray());
+  }
+
+  private static byte[] co64(long... offsets) {
+    ByteArrayOutputStream entries = new ByteArrayOutputStream();
+    for (long offset : offsets) {
+      entries.write(u64(offset), 0, 8);
+    }
+    return box("co64", u32(0), u32(offsets.length), entries.toByteArray());
+  }
+
+  private static byte[] box(String type, byte[]... payload) {
+    byte[] content = concat(payload);
+    return concat(u32(8 + content.length), ascii(type), content);
+  }
+
+  private static byte[] media(int size) {
+    byte[] media = new byte[size];
+    for (int i = 0; i < size; i++) {
+      media[i] = (byte) (i * 7 + 1);
+    }
+    return media;
+  }
+
+  // Offsets of the chunk offset box of the given type, found by descending the moov.
+  private static long[] chunkOffsets(ByteBuffer mp4, String type) {
+    int offset = find(mp4, 0, mp4.limit(), "moov");
+    for (String child : new String[] {"trak", "mdia", "minf", "stbl", type}) {
+      offset = find(mp4, offset + 8, offset + mp4.getInt(offset), child);
+    }
+    int count = mp4.getInt(offset + 12);
+    long[] offsets = new long[count];
+    for (int i = 0; i < count; i++) {
+      offsets[i] =
+          type.equals("co64")
+              ? mp4.getLong(offset + 16 + 8 * i)
+              : mp4.getInt(offset + 16 + 4 * i) & 0xffffffffL;
+    }
+    return offsets;
+  }
+
+  private static int find(ByteBuffer mp4, int start, int end, String type) {
+    for (int offset = start; offset < end; offset += boxSize(mp4, offset)) {
+      if (type(mp4, offset).equals(type)) {
+        return offset;
+      }
+    }
+    throw new AssertionError("No " + type + " box");
+  }
+
+  private static List<String> types(ByteBuffer mp4) {
+    List<String> types = new ArrayList<>();
+    for (int offset = 0; offset < mp4.limit(); offset += boxSize(mp4, offset)) {
+      types.add(type(mp4, offset));
+    }
+    return types;
+  }
+
+  private static int boxSize(ByteBuffer mp4, int offset) {
+    int size = mp4.getInt(offset);
+    return size == 1 ? (int) mp4.getLong(offset + 8) : size;
+  }
+
+  private static String type(ByteBuffer mp4, int offset) {
+    byte[] type = new byte[4];
+    for (int i = 0; i < 4; i++) {
+      type[i] = mp4.get(offset + 4 + i);
+    }
+    return new String(type, StandardCharsets.US_ASCII);
+  }
+
+  private static ByteBuffer read(File file) throws IOException {
+    return ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+  }
+
+  private static byte[] ascii(String string) {
+    return string.getBytes(StandardCharsets.US_ASCII);
+  }
+
+  private static byte[] u32(long value) {
+    return ByteBuffer.allocate(4).putInt((int) value).array();
+  }
+
+  private static byte[] u64(long value) {
+    return ByteBuffer.allocate(8).putLong(value).array();
+  }
+
+  private static byte[] concat(byte[]... arrays) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (byte[] array : arrays) {
+      out.write(array, 0, array.length);
+    }
+    return out.toByteArray();
+  }
+}
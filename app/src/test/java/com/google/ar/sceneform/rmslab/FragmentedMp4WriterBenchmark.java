@@ -0,0 +1,107 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab;
+
+import com.google.ar.sceneform.rmslab.helpers.DirectBufferPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Locale;
+
+/**
+ * Measures the cost of writing segments with {@link FragmentedMp4Writer}, as {@link SegmentedSink}
+ * does while recording.
+ *
+ * <p>Each segment is 10 seconds of 30 fps video at about 10 Mbit/s, in 1 second fragments, written
+ * by a new writer with buffers from one shared {@link DirectBufferPool}. The time per sample
+ * includes flushing each fragment to disk. The direct buffer memory in use, reported by the JVM,
+ * should stay flat from one segment to the next, since the pool reuses the large buffers.
+ *
+ * <p>Usage: {@code FragmentedMp4WriterBenchmark [segments]}, on the unit test classpath of this
+ * module, for example from the IDE. This class does not depend on Android.
+ */
+public class FragmentedMp4WriterBenchmark {
+  private static final int FRAME_RATE = 30;
+  private static final int SEGMENT_SECONDS = 10;
+  private static final int KEY_FRAME_BYTES = 150_000;
+  private static final int FRAME_BYTES = 35_000;
+
+  public static void main(String[] args) throws IOException {
+    int segments = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+    ByteBuffer keyFrame = accessUnit(KEY_FRAME_BYTES, true);
+    ByteBuffer frame = accessUnit(FRAME_BYTES, false);
+    ByteBuffer sps = ByteBuffer.wrap(new byte[] {0, 0, 0, 1, 0x67, 0x42, 0, 0x28, 1});
+    ByteBuffer pps = ByteBuffer.wrap(new byte[] {0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, 1});
+
+    File directory = Files.createTempDirectory("fmp4").toFile();
+    DirectBufferPool pool = new DirectBufferPool(3);
+    int frames = FRAME_RATE * SEGMENT_SECONDS;
+    for (int segment = 0; segment < segments; segment++) {
+      File file = new File(directory, "segment" + segment + ".mp4");
+      long startNanos = System.nanoTime();
+      FragmentedMp4Writer writer = new FragmentedMp4Writer(file, pool);
+      try {
+        writer.start(FragmentedMp4Writer.MIME_AVC, 1920, 1080, sps, pps);
+        for (int i = 0; i < frames; i++) {
+          boolean key = i % FRAME_RATE == 0;
+          writer.writeSample(key ? keyFrame : frame, i * 1_000_000L / FRAME_RATE, key);
+        }
+      } finally {
+        writer.close();
+      }
+      long nanos = System.nanoTime() - startNanos;
+      long bytes = writer.getSize();
+      BufferPoolMXBean direct = directBuffers();
+      System.out.println(
+          String.format(
+              Locale.US,
+              "segment %2d: %6.1f us/sample, %6.1f MB/s, direct buffers %d (%.1f MB)",
+              segment,
+              nanos / 1e3 / frames,
+              bytes * 1e3 / nanos,
+              direct != null ? direct.getCount() : -1,
+              direct != null ? direct.getMemoryUsed() / 1e6 : -1));
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  // An Annex B access unit of one NAL unit of the given size, without start codes in its payload.
+  private static ByteBuffer accessUnit(int size, boolean keyFrame) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(4 + size);
+    buffer.putInt(1);
+    buffer.put((byte) (keyFrame ? 0x65 : 0x41));
+    for (int i = 1; i < size; i++) {
+      buffer.put((byte) (1 + i % 250));
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static BufferPoolMXBean directBuffers() {
+    for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+      if (pool.getName().equals("direct")) {
+        return pool;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.ar.sceneform.rmslab.helpers.DirectBufferPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FragmentedMp4WriterTest {
+  private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, 0x00, 0x1e, (byte) 0xab, 0x40};
+  private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+  private static final long FRAME_US = 33_333;
+  // 90 kHz ticks per frame.
+  private static final int FRAME_TICKS = 3000;
+
+  @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+  private final DirectBufferPool pool = new DirectBufferPool(3);
+
+  @Test
+  public void writesOneFragmentPerGroupOfPictures() throws IOException {
+    File file = folder.newFile("video.mp4");
+    try (FragmentedMp4Writer writer = newWriter(file)) {
+      for (int frame = 0; frame < 90; frame++) {
+        writer.writeSample(accessUnit(frame, frame % 30 == 0), frame * FRAME_US, frame % 30 == 0);
+      }
+    }
+
+    ByteBuffer mp4 = read(file);
+    List<Box> boxes = boxes(mp4, 0, mp4.limit());
+    assertEquals(
+        Arrays.asList("ftyp", "moov", "moof", "mdat", "moof", "mdat", "moof", "mdat"),
+        types(boxes));
+    long decodeTime = 0;
+    for (int f = 0; f < 3; f++) {
+      Box moof = boxes.get(2 + 2 * f);
+      Box mdat = boxes.get(3 + 2 * f);
+      Fragment fragment = new Fragment(mp4, moof);
+
+      assertEquals(f + 1, fragment.sequenceNumber);
+      assertEquals(decodeTime, fragment.decodeTime);
+      assertEquals(30, fragment.sizes.length);
+      // Samples start right after the mdat header, relative to the moof.
+      assertEquals(moof.size + 8, fragment.dataOffset);
+      int payload = 0;
+      for (int i = 0; i < 30; i++) {
+        assertEquals(FRAME_TICKS, fragment.durations[i], 1);
+        assertEquals(4 + nalUnitSize(30 * f + i), fragment.sizes[i]);
+        assertEquals(i == 0 ? 0x02000000 : 0x01010000, fragment.flags[i]);
+        assertEquals(0, fragment.compositionOffsets[i]);
+        payload += fragment.sizes[i];
+        decodeTime += fragment.durations[i];
+      }
+      assertEquals(8 + payload, mdat.size);
+    }
+  }
+
+  @Test
+  public void replacesStartCodesWithLengths() throws IOException {
+    File file = folder.newFile("video.mp4");
+    // Two NAL units, after a 4-byte and a 3-byte start code, with trailing zeros.
+    byte[] accessUnit = {0, 0, 0, 1, 0x65, 0x11, 0x22, 0, 0, 1, 0x06, 0x33, 0, 0};
+    try (FragmentedMp4Writer writer = newWriter(file)) {
+      writer.writeSample(ByteBuffer.wrap(accessUnit), 0, true);
+    }
+
+    ByteBuffer mp4 = read(file);
+    Box mdat = boxes(mp4, 0, mp4.limit()).get(3);
+    byte[] samples = new byte[(int) mdat.size - 8];
+    mp4.position((int) mdat.offset + 8);
+    mp4.get(samples);
+    assertArrayEquals(new byte[] {0, 0, 0, 3, 0x65, 0x11, 0x22, 0, 0, 0, 2, 0x06, 0x33}, samples);
+  }
+
+  @Test
+  public void skipsSamplesBeforeTheFirstKeyFrame() throws IOException {
+    File file = folder.newFile("video.mp4");
+    try (FragmentedMp4Writer writer = newWriter(file)) {
+      for (int frame = 0; frame < 10; frame++) {
+        writer.writeSample(accessUnit(frame, frame == 5), frame * FRAME_US, frame == 5);
+      }
+    }
+
+    ByteBuffer mp4 = read(file);
+    Fragment fragment = new Fragment(mp4, boxes(mp4, 0, mp4.limit()).get(2));
+    assertEquals(5, fragment.sizes.length);
+    assertEquals(0x02000000, fragment.flags[0]);
+    assertEquals(0, fragment.decodeTime);
+  }
+
+  @Test
+  public void decodesReorderedFramesInPresentationOrder() throws IOException {
+    File file = folder.newFile("video.mp4");
+    // I P B, as an encoder with B-frames outputs them.
+    long[] times = {0, 2 * FRAME_US, FRAME_US};
+    try (FragmentedMp4Writer writer = newWriter(file)) {
+      for (int i = 0; i < times.length; i++) {
+        writer.writeSample(accessUnit(i, i == 0), times[i], i == 0);
+      }
+    }
+
+    ByteBuffer mp4 = read(file);
+    Fragment fragment = new Fragment(mp4, boxes(mp4, 0, mp4.limit()).get(2));
+    // Decoded at 0, 1 and 2 frames, shown at 0, 2 and 1 frames.
+    assertArrayEquals(new int[] {0, FRAME_TICKS, -FRAME_TICKS}, fragment.compositionOffsets);
+  }
+
+  @Test
+  public void fileIsWellFormedWhileBeingWritten() throws IOException {
+    File file = folder.newFile("video.mp4");
+    FragmentedMp4Writer writer = newWriter(file);
+    writer.setPreallocation(64 * 1024);
+    try {
+      for (int frame = 0; frame < 75; frame++) {
+        writer.writeSample(accessUnit(frame, frame % 30 == 0), frame * FRAME_US, frame % 30 == 0);
+
+        // As read by a player, or after the app died: the committed fragments, then a free box
+        // up to the end of the file.
+        ByteBuffer mp4 = read(file);
+        List<Box> boxes = boxes(mp4, 0, mp4.limit());
+        int fragments = frame / 30;
+        List<String> expected = new ArrayList<>(Arrays.asList("ftyp", "moov"));
+        for (int f = 0; f < fragments; f++) {
+          expected.add("moof");
+          expected.add("mdat");
+        }
+        expected.add("free");
+        assertEquals("after frame " + frame, expected, types(boxes));
+        assertEquals(writer.getSize(), boxes.get(boxes.size() - 1).offset);
+      }
+    } finally {
+      writer.close();
+    }
+    assertEquals(writer.getSize(), file.length());
+  }
+
+  @Test
+  public void writesHevcParameterSets() throws IOException {
+    File file = folder.newFile("video.mp4");
+    byte[] vps = {0, 0, 0, 1, 0x40, 0x01, 0x0c, 0x01, (byte) 0xff, (byte) 0xff};
+    // NAL unit header, then 12 bytes of profile, tier and level, and the rest of the SPS.
+    byte[] sps = {
+      0, 0, 0, 1, 0x42, 0x01, 0x01, 0x01, 0x60, 0, 0, 3, 0, (byte) 0x90, 0, 0, 3, 0, 0, 3, 0, 0x5d,
+      (byte) 0xa0
+    };
+    byte[] pps = {0, 0, 0, 1, 0x44, 0x01, (byte) 0xc1, 0x72};
+    try (FragmentedMp4Writer writer = new FragmentedMp4Writer(file, pool)) {
+      writer.start(
+          FragmentedMp4Writer.MIME_HEVC,
+          1920,
+          1080,
+          ByteBuffer.wrap(concat(vps, sps, pps)));
+    }
+
+    ByteBuffer mp4 = read(file);
+    assertTrue(indexOf(mp4, "hvc1") > 0);
+    int hvcC = indexOf(mp4, "hvcC");
+    // Version, then the profile, tier and level read past the emulation prevention bytes.
+    assertEquals(1, mp4.get(hvcC + 8));
+    assertEquals(0x01, mp4.get(hvcC + 9));
+    assertEquals(0x5d, mp4.get(hvcC + 20));
+  }
+
+  private FragmentedMp4Writer newWriter(File file) throws IOException {
+    FragmentedMp4Writer writer = new FragmentedMp4Writer(file, pool);
+    // Shorter than a group of pictures, so that every key frame starts a fragment.
+    writer.setFragmentDuration(500_000);
+    writer.start(
+        FragmentedMp4Writer.MIME_AVC, 640, 480, ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS));
+    return writer;
+  }
+
+  // An Annex B access unit of one NAL unit, whose size varies with the frame.
+  static ByteBuffer accessUnit(int frame, boolean keyFrame) {
+    int size = nalUnitSize(frame);
+    ByteBuffer buffer = ByteBuffer.allocate(4 + size);
+    buffer.putInt(1);
+    buffer.put((byte) (keyFrame ? 0x65 : 0x41));
+    for (int i = 1; i < size; i++) {
+      // Never 0, so there is no start code in the payload.
+      buffer.put((byte) (1 + (frame + i) % 200));
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private static int nalUnitSize(int frame) {
+    return 100 + frame % 7 * 13;
+  }
+
+  private static ByteBuffer read(File file) throws IOException {
+    return ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+  }
+
+  private static final class Box {
+    final String type;
+    final long offset;
+    final long size;
+
+    Box(String type, long offset, long size) {
+      this.type = type;
+      this.offset = offset;
+      this.size = size;
+    }
+  }
+
+  // The boxes from start to end, which they must cover exactly.
+  private static List<Box> boxes(ByteBuffer b, int start, int end) {
+    List<Box> boxes = new ArrayList<>();
+    int offset = start;
+    while (offset < end) {
+      long size = b.getInt(offset) & 0xffffffffL;
+      assertTrue("box at " + offset + " of size " + size, size >= 8 && offset + size <= end);
+      boxes.add(new Box(type(b, offset + 4), offset, size));
+      offset += size;
+    }
+    assertEquals(end, offset);
+    return boxes;
+  }
+
+  private static Box child(ByteBuffer b, Box parent, int headerSize, String type) {
+    int start = (int) parent.offset + headerSize;
+    for (Box box : boxes(b, start, (int) (parent.offset + parent.size))) {
+      if (box.type.equals(type)) {
+        return box;
+      }
+    }
+    throw new AssertionError("No " + type + " in " + parent.type);
+  }
+
+  // The samples of a fragment, read from its moof.
+  private static final class Fragment {
+    final int sequenceNumber;
+    final long decodeTime;
+    final int dataOffset;
+    final int[] durations;
+    final int[] sizes;
+    final int[] flags;
+    final int[] compositionOffsets;
+
+    Fragment(ByteBuffer b, Box moof) {
+      assertEquals("moof", moof.type);
+      sequenceNumber = b.getInt((int) child(b, moof, 8, "mfhd").offset + 12);
+      Box traf = child(b, moof, 8, "traf");
+      Box tfhd = child(b, traf, 8, "tfhd");
+      assertEquals(0x020000, b.getInt((int) tfhd.offset + 8));
+      Box tfdt = child(b, traf, 8, "tfdt");
+      assertEquals(1, b.get((int) tfdt.offset + 8));
+      decodeTime = b.getLong((int) tfdt.offset + 12);
+      Box trun = child(b, traf, 8, "trun");
+      assertEquals(0x01000f01, b.getInt((int) trun.offset + 8));
+      int count = b.getInt((int) trun.offset + 12);
+      assertEquals(20 + 16 * count, trun.size);
+      dataOffset = b.getInt((int) trun.offset + 16);
+      durations = new int[count];
+      sizes = new int[count];
+      flags = new int[count];
+      compositionOffsets = new int[count];
+      int sample = (int) trun.offset + 20;
+      for (int i = 0; i < count; i++, sample += 16) {
+        durations[i] = b.getInt(sample);
+        sizes[i] = b.getInt(sample + 4);
+        flags[i] = b.getInt(sample + 8);
+        compositionOffsets[i] = b.getInt(sample + 12);
+      }
+    }
+  }
+
+  private static List<String> types(List<Box> boxes) {
+    List<String> types = new ArrayList<>();
+    for (Box box : boxes) {
+      types.add(box.type);
+    }
+    return types;
+  }
+
+  private static String type(ByteBuffer b, int offset) {
+    char[] type = new char[4];
+    for (int i = 0; i < 4; i++) {
+      type[i] = (char) b.get(offset + i);
+    }
+    return new String(type);
+  }
+
+  // Offset of the size field of the first box of the given type, searching the whole file.
+  private static int indexOf(ByteBuffer b, String type) {
+    for (int i = 4; i + 4 <= b.limit(); i++) {
+      if (type(b, i).equals(type)) {
+        return i - 4;
+      }
+    }
+    throw new AssertionError("No " + type);
+  }
+
+  private static byte[] concat(byte[]... arrays) {
+    int length = 0;
+    for (byte[] array : arrays) {
+      length += array.length;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(length);
+    for (byte[] array : arrays) {
+      buffer.put(array);
+    }
+    return buffer.array();
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.sceneform.rmslab.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+public class DirectBufferPoolTest {
+  @Test
+  public void reusesReleasedBuffersCleared() {
+    DirectBufferPool pool = new DirectBufferPool(2);
+    ByteBuffer buffer = pool.acquire(100);
+    assertTrue(buffer.isDirect());
+    buffer.putInt(42).flip();
+    pool.release(buffer);
+
+    ByteBuffer reused = pool.acquire(80);
+    assertSame(buffer, reused);
+    assertEquals(0, reused.position());
+    assertEquals(reused.capacity(), reused.limit());
+  }
+
+  @Test
+  public void allocatesWhenNoPooledBufferIsLargeEnough() {
+    DirectBufferPool pool = new DirectBufferPool(2);
+    ByteBuffer small = pool.acquire(100);
+    pool.release(small);
+
+    ByteBuffer large = pool.acquire(200);
+    assertNotSame(small, large);
+    assertTrue(large.capacity() >= 200);
+    // The small one is still pooled.
+    assertSame(small, pool.acquire(50));
+  }
+
+  @Test
+  public void keepsTheLargestBuffersWhenFull() {
+    DirectBufferPool pool = new DirectBufferPool(2);
+    ByteBuffer small = pool.acquire(10);
+    ByteBuffer medium = pool.acquire(100);
+    ByteBuffer large = pool.acquire(1000);
+    pool.release(medium);
+    pool.release(small);
+    pool.release(large);
+
+    // The small buffer was dropped, so a request it could serve gets one of the others.
+    ByteBuffer first = pool.acquire(10);
+    ByteBuffer second = pool.acquire(10);
+    assertTrue(first == medium || first == large);
+    assertTrue(second == medium || second == large);
+    assertNotSame(first, second);
+    assertNotSame(small, pool.acquire(10));
+  }
+
+  @Test
+  public void ignoresHeapBuffersAndNull() {
+    DirectBufferPool pool = new DirectBufferPool(2);
+    ByteBuffer heap = ByteBuffer.allocate(100);
+    pool.release(heap);
+    pool.release(null);
+
+    ByteBuffer buffer = pool.acquire(10);
+    assertNotSame(heap, buffer);
+    assertTrue(buffer.isDirect());
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.google.ar.sceneform.rmslab.helpers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+  private static final int LAST_BUCKET =
+      LatencyHistogram.bucketIndex(LatencyHistogram.MAX_TRACKABLE_VALUE);
+
+  @Test
+  public void smallValuesHaveABucketEach() {
+    for (int value = 0; value < 16; value++) {
+      int index = LatencyHistogram.bucketIndex(value);
+      assertEquals(value, index);
+      assertEquals(value, LatencyHistogram.bucketLowerBound(index));
+      assertEquals(value, LatencyHistogram.bucketUpperBound(index));
+    }
+  }
+
+  @Test
+  public void bucketsAreContiguous() {
+    for (int i = 0; i < LAST_BUCKET; i++) {
+      assertEquals(
+          "bucket " + i,
+          LatencyHistogram.bucketUpperBound(i) + 1,
+          LatencyHistogram.bucketLowerBound(i + 1));
+    }
+    assertEquals(
+        LatencyHistogram.MAX_TRACKABLE_VALUE, LatencyHistogram.bucketUpperBound(LAST_BUCKET));
+  }
+
+  @Test
+  public void bucketsHoldTheirValuesWithinOneSixteenth() {
+    Random random = new Random(42);
+    for (int i = 0; i < 100_000; i++) {
+      long value = random.nextLong() >>> (24 + random.nextInt(40));
+      int index = LatencyHistogram.bucketIndex(value);
+      long lower = LatencyHistogram.bucketLowerBound(index);
+      long upper = LatencyHistogram.bucketUpperBound(index);
+      assertTrue(value + " in [" + lower + ", " + upper + "]", lower <= value && value <= upper);
+      assertTrue("bucket of " + value + " too wide", (upper - lower) * 16 <= Math.max(lower, 16));
+    }
+  }
+
+  @Test
+  public void percentilesErrOnTheHighSideByLessThanABucket() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int value = 1; value <= 1000; value++) {
+      histogram.record(value);
+    }
+
+    long p50 = histogram.getValueAtPercentile(50);
+    long p99 = histogram.getValueAtPercentile(99);
+    assertTrue("p50 " + p50, p50 >= 500 && p50 <= 500 + 500 / 16);
+    assertTrue("p99 " + p99, p99 >= 990 && p99 <= 990 + 990 / 16);
+    assertEquals(1000, histogram.getValueAtPercentile(100));
+    assertEquals(1000, histogram.getMax());
+    assertEquals(1000, histogram.getTotalCount());
+    assertEquals(500.5, histogram.getMean(), 1e-9);
+  }
+
+  @Test
+  public void clampsValuesOutOfRange() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(-5);
+    assertEquals(0, histogram.getValueAtPercentile(100));
+
+    histogram.record(LatencyHistogram.MAX_TRACKABLE_VALUE * 4);
+    assertEquals(LatencyHistogram.MAX_TRACKABLE_VALUE * 4, histogram.getMax());
+    assertEquals(LatencyHistogram.MAX_TRACKABLE_VALUE, histogram.getValueAtPercentile(100));
+  }
+
+  @Test
+  public void resetClearsEverything() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(1234);
+    histogram.reset();
+
+    assertEquals(0, histogram.getTotalCount());
+    assertEquals(0, histogram.getMax());
+    assertEquals(0, histogram.getValueAtPercentile(50));
+  }
+}
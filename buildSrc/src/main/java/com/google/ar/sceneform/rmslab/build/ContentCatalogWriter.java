@@ -0,0 +1,149 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab.build;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Writes the binary content catalog read by the app's ContentCatalog. See that class for the
+ * layout. Entries are written in the order they are added, which is also the prefetch order.
+ */
+public class ContentCatalogWriter {
+  private static final int MAGIC = 0x524d5343;
+  private static final int VERSION = 2;
+  private static final int HEADER_BYTES = 16;
+
+  private final List<Integer> indices = new ArrayList<>();
+  private final List<byte[]> entries = new ArrayList<>();
+  private final BitSet added = new BitSet();
+  private int slotCount;
+
+  /**
+   * Adds the entry for an image index. Add the most likely images first.
+   *
+   * @param tintParameter material parameter that multiplies the base color of the model, or an
+   *     empty string if there is none
+   * @param tint RGBA value of the tint parameter in the model
+   */
+  public void add(
+      int index,
+      String model,
+      float scale,
+      String tintParameter,
+      float[] tint,
+      int textureTexels,
+      List<String> animations,
+      List<String> messages)
+      throws IOException {
+    if (index < 0) {
+      throw new IllegalArgumentException("Negative image index " + index);
+    }
+    if (added.get(index)) {
+      throw new IllegalArgumentException("Duplicate entry for image " + index);
+    }
+    if (tint.length != 4) {
+      throw new IllegalArgumentException("Tint of image " + index + " is not RGBA");
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(textureTexels);
+    out.writeFloat(scale);
+    writeString(out, model);
+    writeString(out, tintParameter);
+    for (float component : tint) {
+      out.writeFloat(component);
+    }
+    writeStrings(out, animations);
+    writeStrings(out, messages);
+    out.flush();
+
+    added.set(index);
+    indices.add(index);
+    entries.add(bytes.toByteArray());
+    slotCount = Math.max(slotCount, index + 1);
+  }
+
+  public void write(File file) throws IOException {
+    File dir = file.getParentFile();
+    if (dir != null && !dir.exists()) {
+      dir.mkdirs();
+    }
+    try (OutputStream os = new FileOutputStream(file)) {
+      write(os);
+    }
+  }
+
+  public void write(OutputStream os) throws IOException {
+    int[] slots = new int[slotCount];
+    Arrays.fill(slots, -1);
+    long offset = HEADER_BYTES + 4L * (slotCount + entries.size());
+    for (int i = 0; i < entries.size(); i++) {
+      if (offset > Integer.MAX_VALUE) {
+        throw new IOException("Content catalog larger than 2GB");
+      }
+      slots[indices.get(i)] = (int) offset;
+      offset += entries.get(i).length;
+    }
+
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(slotCount);
+    out.writeInt(entries.size());
+    for (int slot : slots) {
+      out.writeInt(slot);
+    }
+    for (int index : indices) {
+      out.writeInt(index);
+    }
+    for (byte[] entry : entries) {
+      out.write(entry);
+    }
+    out.flush();
+  }
+
+  private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+    if (strings.size() > 0xffff) {
+      throw new IOException("Too many strings in catalog entry: " + strings.size());
+    }
+    out.writeShort(strings.size());
+    for (String string : strings) {
+      writeString(out, string);
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String string) throws IOException {
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > 0xffff) {
+      throw new IOException("Catalog string too long: " + string);
+    }
+    out.writeShort(bytes.length);
+    out.write(bytes);
+  }
+}
@@ -0,0 +1,491 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab.build;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Scores candidate augmented images by how well ARCore is likely to detect them, before they are
+ * printed.
+ *
+ * <p>ARCore detects images from their feature points, so an image is scored on the FAST corners
+ * found in a downscaled grayscale copy: how many there are per pixel, and how evenly they cover
+ * the image. Images are scored in parallel on a fork/join pool. Images whose shorter side is below
+ * ARCore's 300 pixel minimum, or that cannot be read, score 0.
+ *
+ * <p>The score is between 0 and 100. It is a heuristic: tune the threshold against detection
+ * times measured on site.
+ *
+ * <p>Can also be run on its own over a directory of candidate images:
+ *
+ * <pre>
+ *   java -cp buildSrc/build/classes/java/main \
+ *       com.google.ar.sceneform.rmslab.build.MarkerQualityScorer images/ report.txt [threshold]
+ * </pre>
+ */
+public class MarkerQualityScorer {
+  public static final int MIN_IMAGE_DIMENSION = 300;
+  public static final int DEFAULT_THRESHOLD = 50;
+
+  // Offsets of the 16 pixels of the radius 3 Bresenham circle around a FAST candidate.
+  private static final int[] CIRCLE_X = {0, 1, 2, 3, 3, 3, 2, 1, 0, -1, -2, -3, -3, -3, -2, -1};
+  private static final int[] CIRCLE_Y = {-3, -3, -2, -1, 0, 1, 2, 3, 3, 3, 2, 1, 0, -1, -2, -3};
+
+  /** Score of one image. */
+  public static final class Score {
+    private final String name;
+    private final int width;
+    private final int height;
+    private final int corners;
+    private final float density;
+    private final float coverage;
+    private final int score;
+    private final String error;
+
+    Score(
+        String name,
+        int width,
+        int height,
+        int corners,
+        float density,
+        float coverage,
+        int score,
+        String error) {
+      this.name = name;
+      this.width = width;
+      this.height = height;
+      this.corners = corners;
+      this.density = density;
+      this.coverage = coverage;
+      this.score = score;
+      this.error = error;
+    }
+
+    static Score failed(String name, int width, int height, String error) {
+      return new Score(name, width, height, 0, 0, 0, 0, error);
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /** Size of the original image. */
+    public int getWidth() {
+      return width;
+    }
+
+    public int getHeight() {
+      return height;
+    }
+
+    /** Number of corners found in the downscaled image. */
+    public int getCorners() {
+      return corners;
+    }
+
+    /** Corners per 10,000 pixels of the downscaled image. */
+    public float getDensity() {
+      return density;
+    }
+
+    /** Fraction of the grid cells with enough corners. */
+    public float getCoverage() {
+      return coverage;
+    }
+
+    public int getScore() {
+      return score;
+    }
+
+    /** Why the image scored 0, or null. */
+    public String getError() {
+      return error;
+    }
+  }
+
+  private int maxDimension = 640;
+  private int fastThreshold = 20;
+  private int gridSize = 8;
+  private int minCornersPerCell = 3;
+  private float targetDensity = 40;
+  private int parallelism = Runtime.getRuntime().availableProcessors();
+
+  /** Images are subsampled until their longer side is at most this many pixels. */
+  public void setMaxDimension(int maxDimension) {
+    this.maxDimension = maxDimension;
+  }
+
+  /** Intensity difference with the center for a circle pixel to count as brighter or darker. */
+  public void setFastThreshold(int fastThreshold) {
+    this.fastThreshold = fastThreshold;
+  }
+
+  /**
+   * The image is split into a grid of gridSize x gridSize cells, and a cell is covered when it has
+   * at least minCornersPerCell corners.
+   */
+  public void setGrid(int gridSize, int minCornersPerCell) {
+    this.gridSize = gridSize;
+    this.minCornersPerCell = minCornersPerCell;
+  }
+
+  /** Corners per 10,000 pixels at and above which the density part of the score is full. */
+  public void setTargetDensity(float targetDensity) {
+    this.targetDensity = targetDensity;
+  }
+
+  /** Number of images scored at the same time. */
+  public void setParallelism(int parallelism) {
+    this.parallelism = Math.max(1, parallelism);
+  }
+
+  /** Scores the images in parallel. The scores are returned in the order of the images. */
+  public List<Score> scoreAll(List<String> names, List<File> files) {
+    if (names.size() != files.size()) {
+      throw new IllegalArgumentException("One name per image file is needed");
+    }
+    Score[] scores = new Score[files.size()];
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      pool.invoke(new ScoreTask(names, files, scores, 0, scores.length));
+    } finally {
+      pool.shutdown();
+    }
+    return Arrays.asList(scores);
+  }
+
+  // Splits the images in halves until there is one per task, so idle threads steal the rest.
+  private final class ScoreTask extends RecursiveAction {
+    // Tasks are never serialized, ForkJoinTask is only Serializable to carry exceptions.
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> names;
+    private final List<File> files;
+    private final Score[] scores;
+    private final int from;
+    private final int to;
+
+    ScoreTask(List<String> names, List<File> files, Score[] scores, int from, int to) {
+      this.names = names;
+      this.files = files;
+      this.scores = scores;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= 1) {
+        for (int i = from; i < to; i++) {
+          scores[i] = score(names.get(i), files.get(i));
+        }
+        return;
+      }
+      int middle = (from + to) >>> 1;
+      invokeAll(
+          new ScoreTask(names, files, scores, from, middle),
+          new ScoreTask(names, files, scores, middle, to));
+    }
+  }
+
+  /** Scores one image. */
+  public Score score(String name, File file) {
+    int width = 0;
+    int height = 0;
+    BufferedImage image;
+    try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+      Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+      if (readers == null || !readers.hasNext()) {
+        return Score.failed(name, 0, 0, "not a readable image");
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(in, true, true);
+        width = reader.getWidth(0);
+        height = reader.getHeight(0);
+        if (Math.min(width, height) < MIN_IMAGE_DIMENSION) {
+          return Score.failed(
+              name, width, height, "smaller than " + MIN_IMAGE_DIMENSION + " pixels");
+        }
+        // Subsampling while reading keeps only the pixels that are scored in memory.
+        int step = (Math.max(width, height) + maxDimension - 1) / maxDimension;
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(step, step, 0, 0);
+        image = reader.read(0, param);
+      } finally {
+        reader.dispose();
+      }
+    } catch (IOException | RuntimeException e) {
+      return Score.failed(name, width, height, "unreadable: " + e.getMessage());
+    }
+
+    int w = image.getWidth();
+    int h = image.getHeight();
+    byte[] gray = toGray(image);
+
+    int[] cornerX = new int[1024];
+    int[] cornerY = new int[1024];
+    int corners = 0;
+    int[] cornerScores = fastScores(gray, w, h);
+    for (int y = 4; y < h - 4; y++) {
+      for (int x = 4; x < w - 4; x++) {
+        if (isLocalMaximum(cornerScores, w, x, y)) {
+          if (corners == cornerX.length) {
+            cornerX = Arrays.copyOf(cornerX, corners * 2);
+            cornerY = Arrays.copyOf(cornerY, corners * 2);
+          }
+          cornerX[corners] = x;
+          cornerY[corners] = y;
+          corners++;
+        }
+      }
+    }
+
+    int[] cells = new int[gridSize * gridSize];
+    for (int i = 0; i < corners; i++) {
+      int cellX = cornerX[i] * gridSize / w;
+      int cellY = cornerY[i] * gridSize / h;
+      cells[cellY * gridSize + cellX]++;
+    }
+    int covered = 0;
+    for (int count : cells) {
+      if (count >= minCornersPerCell) {
+        covered++;
+      }
+    }
+
+    float density = corners * 10000f / (w * h);
+    float coverage = (float) covered / cells.length;
+    // Both matter: many corners bunched in a corner of the image are found as poorly as few
+    // corners spread across it, so the parts are multiplied.
+    float densityPart = Math.min(1f, density / targetDensity);
+    int score = Math.round(100 * (float) Math.sqrt(densityPart * coverage));
+    return new Score(name, width, height, corners, density, coverage, score, null);
+  }
+
+  // Luminance of each pixel, read one row at a time.
+  private static byte[] toGray(BufferedImage image) {
+    int w = image.getWidth();
+    int h = image.getHeight();
+    byte[] gray = new byte[w * h];
+    int[] row = new int[w];
+    for (int y = 0; y < h; y++) {
+      image.getRGB(0, y, w, 1, row, 0, w);
+      for (int x = 0; x < w; x++) {
+        int argb = row[x];
+        int alpha = argb >>> 24;
+        int r = (argb >> 16) & 0xff;
+        int g = (argb >> 8) & 0xff;
+        int b = argb & 0xff;
+        int luma = (77 * r + 150 * g + 29 * b) >> 8;
+        // Transparent pixels print as paper, so blend them with white.
+        luma = (luma * alpha + 255 * (255 - alpha)) / 255;
+        gray[y * w + x] = (byte) luma;
+      }
+    }
+    return gray;
+  }
+
+  /**
+   * FAST-9 corner score of each pixel: 0 if fewer than 9 contiguous circle pixels are all
+   * brighter or all darker than the center by the threshold, else the summed excess difference of
+   * the brighter or darker pixels, whichever is larger.
+   */
+  private int[] fastScores(byte[] gray, int w, int h) {
+    int[] offsets = new int[16];
+    for (int i = 0; i < 16; i++) {
+      offsets[i] = CIRCLE_Y[i] * w + CIRCLE_X[i];
+    }
+    int t = fastThreshold;
+    int[] scores = new int[w * h];
+    for (int y = 3; y < h - 3; y++) {
+      for (int x = 3; x < w - 3; x++) {
+        int p = y * w + x;
+        int center = gray[p] & 0xff;
+        int high = center + t;
+        int low = center - t;
+
+        // Any 9 contiguous pixels of the circle include at least 2 of these 4.
+        int brighter = 0;
+        int darker = 0;
+        for (int i = 0; i < 16; i += 4) {
+          int v = gray[p + offsets[i]] & 0xff;
+          if (v > high) {
+            brighter++;
+          } else if (v < low) {
+            darker++;
+          }
+        }
+        if (brighter < 2 && darker < 2) {
+          continue;
+        }
+
+        int brighterMask = 0;
+        int darkerMask = 0;
+        int brighterSum = 0;
+        int darkerSum = 0;
+        for (int i = 0; i < 16; i++) {
+          int v = gray[p + offsets[i]] & 0xff;
+          if (v > high) {
+            brighterMask |= 1 << i;
+            brighterSum += v - high;
+          } else if (v < low) {
+            darkerMask |= 1 << i;
+            darkerSum += low - v;
+          }
+        }
+        int score = 0;
+        if (hasArc(brighterMask)) {
+          score = brighterSum + 1;
+        }
+        if (hasArc(darkerMask)) {
+          score = Math.max(score, darkerSum + 1);
+        }
+        scores[p] = score;
+      }
+    }
+    return scores;
+  }
+
+  // Whether the 16 bit circle mask has 9 contiguous set bits, wrapping around.
+  private static boolean hasArc(int mask) {
+    if (Integer.bitCount(mask) < 9) {
+      return false;
+    }
+    int wrapped = mask | (mask << 16);
+    int run = wrapped;
+    for (int i = 1; i < 9; i++) {
+      run &= wrapped >>> i;
+    }
+    return run != 0;
+  }
+
+  // Non-maximum suppression over the 3x3 neighbourhood. Ties go to the first pixel in scan order.
+  private static boolean isLocalMaximum(int[] scores, int w, int x, int y) {
+    int p = y * w + x;
+    int s = scores[p];
+    if (s == 0) {
+      return false;
+    }
+    return s >= scores[p - w - 1]
+        && s >= scores[p - w]
+        && s >= scores[p - w + 1]
+        && s >= scores[p - 1]
+        && s > scores[p + 1]
+        && s > scores[p + w - 1]
+        && s > scores[p + w]
+        && s > scores[p + w + 1];
+  }
+
+  /**
+   * Writes the scores, lowest first, marking those below the threshold. Returns the number of
+   * images below it.
+   */
+  public int writeReport(List<Score> scores, int threshold, File file) throws IOException {
+    File dir = file.getParentFile();
+    if (dir != null && !dir.exists()) {
+      dir.mkdirs();
+    }
+    List<Score> sorted = new ArrayList<>(scores);
+    sorted.sort(Comparator.comparingInt(Score::getScore).thenComparing(Score::getName));
+    int failed = 0;
+    try (Writer writer = new BufferedWriter(new FileWriter(file))) {
+      writer.write(
+          String.format(
+              Locale.US,
+              "# %d images, threshold %d, max dimension %d, FAST threshold %d, grid %dx%d%n",
+              scores.size(),
+              threshold,
+              maxDimension,
+              fastThreshold,
+              gridSize,
+              gridSize));
+      writer.write("# result score corners density/10kpx coverage size name\n");
+      for (Score score : sorted) {
+        boolean fail = score.score < threshold;
+        if (fail) {
+          failed++;
+        }
+        writer.write(
+            String.format(
+                Locale.US,
+                "%s %3d %6d %6.1f %4.0f%% %dx%d %s%s%n",
+                fail ? "FAIL" : "ok  ",
+                score.score,
+                score.corners,
+                score.density,
+                score.coverage * 100,
+                score.width,
+                score.height,
+                score.name,
+                score.error != null ? " (" + score.error + ")" : ""));
+      }
+    }
+    return failed;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: MarkerQualityScorer <image dir> <report> [threshold]");
+      System.exit(2);
+    }
+    int threshold = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_THRESHOLD;
+    File[] listed = new File(args[0]).listFiles(File::isFile);
+    if (listed == null) {
+      throw new IOException("Not a directory: " + args[0]);
+    }
+    Arrays.sort(listed);
+    List<String> names = new ArrayList<>();
+    List<File> files = new ArrayList<>();
+    for (File file : listed) {
+      names.add(file.getName());
+      files.add(file);
+    }
+
+    MarkerQualityScorer scorer = new MarkerQualityScorer();
+    long startNanos = System.nanoTime();
+    List<Score> scores = scorer.scoreAll(names, files);
+    long elapsedMs = (System.nanoTime() - startNanos) / 1000000;
+    int failed = scorer.writeReport(scores, threshold, new File(args[1]));
+    System.out.printf(
+        Locale.US,
+        "Scored %d images in %d ms, %d below %d, report in %s%n",
+        scores.size(),
+        elapsedMs,
+        failed,
+        threshold,
+        args[1]);
+    System.exit(failed == 0 ? 0 : 1);
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab.tracking;
+
+/**
+ * What the tracking logic sees of one ARCore frame: its timestamp, the camera tracking state and
+ * the images updated in it. The image updates are kept and reused, so filling a frame does not
+ * allocate once it has held as many images as the largest frame before it.
+ */
+public final class FrameUpdate {
+  private long timestampNs;
+  private TrackingStatus cameraStatus;
+
+  private ImageUpdate[] images = new ImageUpdate[0];
+  private int imageCount;
+
+  /** Starts a new frame, dropping the images of the previous one. */
+  public void reset(long timestampNs, TrackingStatus cameraStatus) {
+    this.timestampNs = timestampNs;
+    this.cameraStatus = cameraStatus;
+    imageCount = 0;
+  }
+
+  /** Returns the update for the next image of the frame, to be filled in by the caller. */
+  public ImageUpdate addImage() {
+    if (imageCount == images.length) {
+      ImageUpdate[] grown = new ImageUpdate[Math.max(4, images.length * 2)];
+      System.arraycopy(images, 0, grown, 0, images.length);
+      for (int i = images.length; i < grown.length; i++) {
+        grown[i] = new ImageUpdate();
+      }
+      images = grown;
+    }
+    return images[imageCount++];
+  }
+
+  public long getTimestampNs() {
+    return timestampNs;
+  }
+
+  public TrackingStatus getCameraStatus() {
+    return cameraStatus;
+  }
+
+  public int getImageCount() {
+    return imageCount;
+  }
+
+  public ImageUpdate getImage(int i) {
+    return images[i];
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab.tracking;
+
+import java.util.Arrays;
+
+/**
+ * Map from augmented image index to a value, for indices that are small and dense like those of
+ * an augmented image database.
+ *
+ * <p>Values are kept in an array indexed by image index, so lookups are a bounds check and a load,
+ * with no hashing or boxing. The indices that have a value are also kept packed, so iterating with
+ * {@link #keyAt} and {@link #valueAt} only visits those, and does not allocate:
+ *
+ * <pre>
+ *   for (int i = 0; i < registry.size(); i++) {
+ *     use(registry.keyAt(i), registry.valueAt(i));
+ *   }
+ * </pre>
+ *
+ * Removing a value moves the last one into its slot, so the iteration order is not stable across
+ * removals, and values must not be removed while iterating.
+ */
+public final class ImageRegistry<V> {
+  private Object[] values;
+
+  // Position of each index in the packed arrays, valid while the index has a value.
+  private int[] positions;
+
+  // Indices and values that are present, packed at the start.
+  private int[] keys;
+  private Object[] packed;
+  private int size;
+
+  public ImageRegistry() {
+    this(16);
+  }
+
+  /** Creates a registry sized for image indices below {@code capacity}, it grows as needed. */
+  public ImageRegistry(int capacity) {
+    capacity = Math.max(1, capacity);
+    values = new Object[capacity];
+    positions = new int[capacity];
+    keys = new int[Math.min(capacity, 16)];
+    packed = new Object[keys.length];
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(int index) {
+    return index >= 0 && index < values.length ? (V) values[index] : null;
+  }
+
+  public boolean contains(int index) {
+    return get(index) != null;
+  }
+
+  /** Sets the value for the image index, which must not be null. Returns the previous value. */
+  @SuppressWarnings("unchecked")
+  public V put(int index, V value) {
+    if (index < 0) {
+      throw new IllegalArgumentException("Negative image index " + index);
+    }
+    if (value == null) {
+      throw new NullPointerException("Null value for image index " + index);
+    }
+    if (index >= values.length) {
+      int capacity = Math.max(index + 1, values.length * 2);
+      values = Arrays.copyOf(values, capacity);
+      positions = Arrays.copyOf(positions, capacity);
+    }
+    V previous = (V) values[index];
+    values[index] = value;
+    if (previous != null) {
+      packed[positions[index]] = value;
+      return previous;
+    }
+    if (size == keys.length) {
+      keys = Arrays.copyOf(keys, size * 2);
+      packed = Arrays.copyOf(packed, size * 2);
+    }
+    keys[size] = index;
+    packed[size] = value;
+    positions[index] = size;
+    size++;
+    return null;
+  }
+
+  /** Removes the value for the image index. Returns it, or null if there was none. */
+  @SuppressWarnings("unchecked")
+  public V remove(int index) {
+    V value = get(index);
+    if (value == null) {
+      return null;
+    }
+    values[index] = null;
+    int position = positions[index];
+    size--;
+    if (position != size) {
+      keys[position] = keys[size];
+      packed[position] = packed[size];
+      positions[keys[position]] = position;
+    }
+    packed[size] = null;
+    return value;
+  }
+
+  public void clear() {
+    for (int i = 0; i < size; i++) {
+      values[keys[i]] = null;
+      packed[i] = null;
+    }
+    size = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /** Image index of the i-th value, for 0 <= i < {@link #size}. */
+  public int keyAt(int i) {
+    return keys[i];
+  }
+
+  /** The i-th value, for 0 <= i < {@link #size}. */
+  @SuppressWarnings("unchecked")
+  public V valueAt(int i) {
+    return (V) packed[i];
+  }
+}
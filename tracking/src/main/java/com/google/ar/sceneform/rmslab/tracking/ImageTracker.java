@@ -0,0 +1,364 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab.tracking;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Decides, from the stream of augmented image updates, when content is created, held, faded and
+ * released for each image. It only keeps indices and timestamps, and leaves the scene graph to its
+ * {@link Listener}, so the same decisions drive the app and the {@link SessionReplay} tool.
+ *
+ * <p>Each tracked image gets content, anchored at the image center. When an image is lost (PAUSED
+ * or STOPPED) its content is held at its last pose for a grace period, and revived in place if the
+ * image is tracked again. Only once the grace period runs out is the content released. At most
+ * {@code maxLiveAnchors} images have content at once. Acquiring one more releases the held image
+ * that was tracked least recently. Tracked content is on screen and is never released to make
+ * room: if no image is held, the new image waits until one is.
+ *
+ * <p>Two thresholds keep flapping tracking states from causing repeated work: a new image must be
+ * TRACKING for {@code acquireFrames} updates in a row before content is created for it, and held
+ * content is only faded once the image has been lost for {@code fadeDelayMs}.
+ *
+ * @param <T> the trackable the updates come from, handed back to the listener so it can anchor
+ *     content on it
+ */
+public class ImageTracker<T> {
+
+  /** Applies the decisions of the tracker. All calls are made from the frame loop. */
+  public interface Listener<T> {
+    /** The image was detected but is not tracked yet, its content can start loading. */
+    void onDetected(int index);
+
+    /** Content should be created for the image and anchored on it. */
+    void onAcquired(int index, T image);
+
+    /** The held content of the image is tracked again, possibly through a new trackable. */
+    void onRevived(int index, T image);
+
+    /** The image stopped, its anchor can no longer be updated. */
+    void onStopped(int index);
+
+    /** The image was lost, its content should be held at its last pose. */
+    void onHeld(int index);
+
+    /** The image has been lost for a while, its held content should be faded. */
+    void onFaded(int index);
+
+    /** The content of the image should be released. */
+    void onReleased(int index);
+  }
+
+  // What the tracker knows about an image that has content.
+  private static final class Track {
+    long lastTrackedMs;
+    long lostAtMs;
+    boolean held;
+    boolean faded;
+  }
+
+  private final Listener<T> listener;
+  private final TrackingStateMachine stateMachine;
+
+  private int maxLiveAnchors = Integer.MAX_VALUE;
+  private int acquireFrames = 1;
+  private long gracePeriodMs;
+  private long fadeDelayMs;
+  private boolean fadeHeldContent;
+
+  // Images with content, keyed by their index in the database, so content held for a lost image
+  // can be revived by a new trackable for the same image.
+  private final ImageRegistry<Track> tracks = new ImageRegistry<>();
+
+  // The subset of tracks whose content is held, the only ones endFrame has to look at.
+  private final ImageRegistry<Track> heldTracks = new ImageRegistry<>();
+
+  // Released tracks, reused for the next images that get content.
+  private final ArrayDeque<Track> freeTracks = new ArrayDeque<>();
+
+  // Consecutive TRACKING updates seen for images that do not have content yet, by image index.
+  private int[] trackingStreaks = new int[16];
+
+  // Scratch array of images whose grace period ran out, reused every frame.
+  private int[] expired = new int[16];
+
+  private int evictedCount;
+  private int revivedCount;
+  private int deferredCount;
+
+  public ImageTracker(Listener<T> listener, TrackingStateMachine stateMachine) {
+    this.listener = listener;
+    this.stateMachine = stateMachine;
+  }
+
+  /**
+   * Most images with content at once. Past this, the least recently tracked held image is
+   * released, or the new image waits if every image with content is tracked.
+   */
+  public void setMaxLiveAnchors(int maxLiveAnchors) {
+    this.maxLiveAnchors = Math.max(1, maxLiveAnchors);
+  }
+
+  /** Number of TRACKING updates in a row needed before content is created for a new image. */
+  public void setAcquireFrames(int acquireFrames) {
+    this.acquireFrames = Math.max(1, acquireFrames);
+  }
+
+  /**
+   * Holds the content of lost images for {@code gracePeriodMs}. Held content is faded once the
+   * image has been lost for {@code fadeDelayMs}, if {@code fade} is set.
+   */
+  public void setGracePeriod(long gracePeriodMs, long fadeDelayMs, boolean fade) {
+    this.gracePeriodMs = gracePeriodMs;
+    this.fadeDelayMs = fadeDelayMs;
+    this.fadeHeldContent = fade;
+  }
+
+  public int getMaxLiveAnchors() {
+    return maxLiveAnchors;
+  }
+
+  public int getAcquireFrames() {
+    return acquireFrames;
+  }
+
+  public long getGracePeriodMs() {
+    return gracePeriodMs;
+  }
+
+  public long getFadeDelayMs() {
+    return fadeDelayMs;
+  }
+
+  public boolean isFadeHeldContent() {
+    return fadeHeldContent;
+  }
+
+  /** Called for every image updated in the frame. */
+  public void update(T image, int index, TrackingStatus status, long nowMs) {
+    switch (status) {
+      case PAUSED:
+        // When an image is in PAUSED state, but the camera is not PAUSED, it has been detected,
+        // but not yet tracked. Start loading its content so it is ready once tracking begins.
+        // If the image was tracked before, hold its content where it was.
+        listener.onDetected(index);
+        onLost(index, false, nowMs);
+        break;
+
+      case TRACKING:
+        // Create content for newly found images, or revive held content.
+        if (onTracking(image, index, nowMs)) {
+          stateMachine.onTracking(index);
+        }
+        break;
+
+      case STOPPED:
+        // Hold the content for the grace period, then release it.
+        onLost(index, true, nowMs);
+        break;
+    }
+  }
+
+  /**
+   * Fades held content, releases images whose grace period ran out and settles the overall
+   * tracking state. Call once per frame, after all its updates.
+   */
+  public void endFrame(long nowMs) {
+    int expiredCount = 0;
+    for (int i = 0; i < heldTracks.size(); i++) {
+      Track track = heldTracks.valueAt(i);
+      long lostMs = nowMs - track.lostAtMs;
+      if (lostMs >= gracePeriodMs) {
+        addExpired(expiredCount++, heldTracks.keyAt(i));
+      } else if (fadeHeldContent && !track.faded && lostMs >= fadeDelayMs) {
+        track.faded = true;
+        listener.onFaded(heldTracks.keyAt(i));
+      }
+    }
+    for (int i = 0; i < expiredCount; i++) {
+      release(expired[i]);
+    }
+
+    // Updates the UI at most once, and only if the overall tracking state changed.
+    stateMachine.endFrame();
+  }
+
+  /** Releases the content of the image, if it has any. */
+  public void release(int index) {
+    Track track = tracks.remove(index);
+    if (track != null) {
+      heldTracks.remove(index);
+      freeTracks.push(track);
+      listener.onReleased(index);
+      stateMachine.onLost(index);
+    }
+  }
+
+  /**
+   * Releases every image with an index from {@code from} up to, but not including, {@code to}, for
+   * example when the database shard holding those images is swapped out.
+   */
+  public void releaseRange(int from, int to) {
+    int expiredCount = 0;
+    for (int i = 0; i < tracks.size(); i++) {
+      int index = tracks.keyAt(i);
+      if (index >= from && index < to) {
+        addExpired(expiredCount++, index);
+      }
+    }
+    for (int i = 0; i < expiredCount; i++) {
+      release(expired[i]);
+    }
+    Arrays.fill(
+        trackingStreaks,
+        Math.min(from, trackingStreaks.length),
+        Math.min(to, trackingStreaks.length),
+        0);
+  }
+
+  /** Releases every image, for example when the activity is destroyed. */
+  public void releaseAll() {
+    for (int i = 0; i < tracks.size(); i++) {
+      int index = tracks.keyAt(i);
+      freeTracks.push(tracks.valueAt(i));
+      listener.onReleased(index);
+      stateMachine.onLost(index);
+    }
+    tracks.clear();
+    heldTracks.clear();
+    Arrays.fill(trackingStreaks, 0);
+  }
+
+  /** Number of images with content, including held ones. */
+  public int getTrackedCount() {
+    return tracks.size();
+  }
+
+  /** Number of images whose content is held after they were lost. */
+  public int getHeldCount() {
+    return heldTracks.size();
+  }
+
+  /** Number of times held content was revived instead of being rebuilt. */
+  public int getRevivedCount() {
+    return revivedCount;
+  }
+
+  /** Number of images released to stay within the anchor budget. */
+  public int getEvictedCount() {
+    return evictedCount;
+  }
+
+  /** Number of updates on which a new image waited because every live image was tracked. */
+  public int getDeferredCount() {
+    return deferredCount;
+  }
+
+  private void addExpired(int position, int index) {
+    if (position == expired.length) {
+      expired = Arrays.copyOf(expired, position * 2);
+    }
+    expired[position] = index;
+  }
+
+  // Returns true if the image has content.
+  private boolean onTracking(T image, int index, long nowMs) {
+    Track track = tracks.get(index);
+    if (track == null) {
+      if (index >= trackingStreaks.length) {
+        trackingStreaks =
+            Arrays.copyOf(trackingStreaks, Math.max(index + 1, trackingStreaks.length * 2));
+      }
+      int frames = trackingStreaks[index] + 1;
+      if (frames < acquireFrames) {
+        trackingStreaks[index] = frames;
+        return false;
+      }
+      if (tracks.size() >= maxLiveAnchors && !evictLeastRecentlyHeld()) {
+        // Keep the streak, so the image is acquired on its next update once a slot frees up.
+        trackingStreaks[index] = acquireFrames - 1;
+        deferredCount++;
+        return false;
+      }
+      trackingStreaks[index] = 0;
+
+      track = freeTracks.poll();
+      if (track == null) {
+        track = new Track();
+      }
+      track.held = false;
+      track.faded = false;
+      tracks.put(index, track);
+      listener.onAcquired(index, image);
+    } else if (track.held) {
+      revivedCount++;
+      heldTracks.remove(index);
+      track.held = false;
+      track.faded = false;
+      listener.onRevived(index, image);
+    }
+    track.lastTrackedMs = nowMs;
+    return true;
+  }
+
+  // A STOPPED image can no longer update its anchor, so the listener hears about it right away,
+  // even if the content is already held.
+  private void onLost(int index, boolean stopped, long nowMs) {
+    if (index < trackingStreaks.length) {
+      trackingStreaks[index] = 0;
+    }
+    Track track = tracks.get(index);
+    if (track == null) {
+      return;
+    }
+    if (gracePeriodMs <= 0) {
+      release(index);
+      return;
+    }
+    if (stopped) {
+      listener.onStopped(index);
+    }
+    if (!track.held) {
+      track.held = true;
+      track.lostAtMs = nowMs;
+      heldTracks.put(index, track);
+      listener.onHeld(index);
+    }
+  }
+
+  // Releases the held image that was tracked least recently. Returns false if no image is held.
+  private boolean evictLeastRecentlyHeld() {
+    int oldest = -1;
+    long oldestMs = Long.MAX_VALUE;
+    // Ties go to the lowest index, so the choice does not depend on the iteration order.
+    for (int i = 0; i < heldTracks.size(); i++) {
+      long lastTrackedMs = heldTracks.valueAt(i).lastTrackedMs;
+      int index = heldTracks.keyAt(i);
+      if (lastTrackedMs < oldestMs || (lastTrackedMs == oldestMs && index < oldest)) {
+        oldest = index;
+        oldestMs = lastTrackedMs;
+      }
+    }
+    if (oldest < 0) {
+      return false;
+    }
+    evictedCount++;
+    release(oldest);
+    return true;
+  }
+}
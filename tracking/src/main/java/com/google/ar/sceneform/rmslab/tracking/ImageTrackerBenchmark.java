@@ -0,0 +1,108 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab.tracking;
+
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Measures the per-frame cost of the {@link ImageTracker} as the augmented image database grows.
+ *
+ * <p>For each database size, a synthetic session is generated in which every frame updates the
+ * same number of images, picked at random from the whole database, with a mix of TRACKING, PAUSED
+ * and STOPPED states. The session is replayed through {@link SessionReplay#dispatch} until the
+ * JIT has warmed up, then timed. The cost per frame should stay flat as the database grows.
+ *
+ * <p>Usage: {@code ImageTrackerBenchmark [updates per frame]}, or the {@code benchmarkTracker}
+ * Gradle task of this module.
+ */
+public class ImageTrackerBenchmark {
+  private static final int[] DATABASE_SIZES = {10, 100, 250, 500, 1000};
+
+  // Anchor budgets to measure: the one the app uses, and one that lets every image of the
+  // database have content at once.
+  private static final int APP_MAX_LIVE_ANCHORS = 8;
+  private static final int UNBOUNDED = Integer.MAX_VALUE;
+  private static final int FRAMES = 20_000;
+  private static final int WARMUP_ITERATIONS = 5;
+  private static final int ITERATIONS = 20;
+
+  // Frames are 30 fps apart, so grace periods run out during the session.
+  private static final long FRAME_INTERVAL_NS = 33_333_333L;
+
+  public static void main(String[] args) {
+    int updatesPerFrame = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    for (int databaseSize : DATABASE_SIZES) {
+      FrameUpdate[] frames = generate(databaseSize, updatesPerFrame);
+      System.out.println(
+          String.format(
+              Locale.US,
+              "images=%4d updates/frame=%d  budget %d: %7.1f ns/frame  unbounded: %7.1f ns/frame",
+              databaseSize,
+              updatesPerFrame,
+              APP_MAX_LIVE_ANCHORS,
+              measure(frames, APP_MAX_LIVE_ANCHORS),
+              measure(frames, UNBOUNDED)));
+    }
+  }
+
+  private static double measure(FrameUpdate[] frames, int maxLiveAnchors) {
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      replay(frames, maxLiveAnchors);
+    }
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      replay(frames, maxLiveAnchors);
+    }
+    return (double) (System.nanoTime() - startNanos) / ((long) frames.length * ITERATIONS);
+  }
+
+  private static void replay(FrameUpdate[] frames, int maxLiveAnchors) {
+    SessionReplay listener = new SessionReplay();
+    ImageTracker<ImageUpdate> tracker =
+        new ImageTracker<>(listener, new TrackingStateMachine(listener));
+    tracker.setMaxLiveAnchors(maxLiveAnchors);
+    tracker.setAcquireFrames(2);
+    tracker.setGracePeriod(3_000, 500, true);
+    for (FrameUpdate frame : frames) {
+      SessionReplay.dispatch(tracker, frame);
+    }
+  }
+
+  private static FrameUpdate[] generate(int databaseSize, int updatesPerFrame) {
+    Random random = new Random(databaseSize);
+    FrameUpdate[] frames = new FrameUpdate[FRAMES];
+    for (int f = 0; f < FRAMES; f++) {
+      FrameUpdate frame = new FrameUpdate();
+      frame.reset(f * FRAME_INTERVAL_NS, TrackingStatus.TRACKING);
+      for (int i = 0; i < updatesPerFrame; i++) {
+        int state = random.nextInt(10);
+        frame
+            .addImage()
+            .set(
+                random.nextInt(databaseSize),
+                state < 7
+                    ? TrackingStatus.TRACKING
+                    : state < 9 ? TrackingStatus.PAUSED : TrackingStatus.STOPPED,
+                0.1f,
+                0.1f);
+      }
+      frames[f] = frame;
+    }
+    return frames;
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab.tracking;
+
+/**
+ * One update of an augmented image within a frame: its index in the image database, its tracking
+ * state, its center pose and its estimated extents. Instances are reused from frame to frame.
+ */
+public final class ImageUpdate {
+  /** Number of floats in a pose: translation x, y, z, then rotation quaternion x, y, z, w. */
+  public static final int POSE_SIZE = 7;
+
+  private int index;
+  private TrackingStatus status;
+  private final float[] pose = new float[POSE_SIZE];
+  private float extentX;
+  private float extentZ;
+
+  public void set(int index, TrackingStatus status, float extentX, float extentZ) {
+    this.index = index;
+    this.status = status;
+    this.extentX = extentX;
+    this.extentZ = extentZ;
+  }
+
+  public int getIndex() {
+    return index;
+  }
+
+  public TrackingStatus getStatus() {
+    return status;
+  }
+
+  /** Center pose of the image, see {@link #POSE_SIZE}. The array can be written to. */
+  public float[] getPose() {
+    return pose;
+  }
+
+  public float getExtentX() {
+    return extentX;
+  }
+
+  public float getExtentZ() {
+    return extentZ;
+  }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab.tracking;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads back a session log written by {@link SessionLogWriter}, frame by frame.
+ *
+ * <p>The log is memory mapped and decoded into a reused {@link FrameUpdate}, so reading it does
+ * not allocate and a replay is only limited by the tracking logic itself.
+ *
+ * <p>Layout, all values big endian:
+ *
+ * <pre>
+ *   int     magic            'RMSL'
+ *   int     version
+ *   int     maxLiveAnchors   configuration of the tracker that saw the frames
+ *   int     acquireFrames
+ *   long    gracePeriodMs
+ *   long    fadeDelayMs
+ *   byte    fadeHeldContent
+ *   frames, until the end of the log:
+ *     long  timestampNs
+ *     byte  cameraStatus     ordinal of {@link TrackingStatus}
+ *     short imageCount
+ *     images[imageCount]:
+ *       int   index
+ *       byte  status
+ *       float pose[7]        translation, then rotation quaternion
+ *       float extentX, extentZ
+ * </pre>
+ *
+ * <p>The writer is buffered, so a log from an app that was killed can end partway through a frame.
+ * Reading stops at the last complete frame.
+ */
+public class SessionLogReader implements TrackableSource {
+  public static final int MAGIC = 0x524d534c;
+  public static final int VERSION = 1;
+
+  private static final TrackingStatus[] STATUSES = TrackingStatus.values();
+
+  private static final int HEADER_BYTES = 33;
+  // Timestamp, camera status and image count.
+  private static final int FRAME_HEADER_BYTES = 11;
+  // Index, status, pose and extents.
+  private static final int IMAGE_BYTES = 5 + 4 * (ImageUpdate.POSE_SIZE + 2);
+
+  private final ByteBuffer buffer;
+  private final int maxLiveAnchors;
+  private final int acquireFrames;
+  private final long gracePeriodMs;
+  private final long fadeDelayMs;
+  private final boolean fadeHeldContent;
+  private final int firstFrame;
+  private boolean truncated;
+
+  public SessionLogReader(ByteBuffer buffer) throws IOException {
+    this.buffer = buffer;
+    if (buffer.remaining() < 4 || buffer.getInt() != MAGIC) {
+      throw new IOException("Not a session log");
+    }
+    if (buffer.remaining() < HEADER_BYTES - 4) {
+      throw new IOException("Truncated session log header");
+    }
+    int version = buffer.getInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported session log version " + version);
+    }
+    maxLiveAnchors = buffer.getInt();
+    acquireFrames = buffer.getInt();
+    gracePeriodMs = buffer.getLong();
+    fadeDelayMs = buffer.getLong();
+    fadeHeldContent = buffer.get() != 0;
+    firstFrame = buffer.position();
+  }
+
+  /** Maps the session log at the given path. */
+  public static SessionLogReader open(File file) throws IOException {
+    try (FileInputStream stream = new FileInputStream(file);
+        FileChannel channel = stream.getChannel()) {
+      return new SessionLogReader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  /** Gives the tracker the configuration the session was recorded with. */
+  public void configure(ImageTracker<?> tracker) {
+    tracker.setMaxLiveAnchors(maxLiveAnchors);
+    tracker.setAcquireFrames(acquireFrames);
+    tracker.setGracePeriod(gracePeriodMs, fadeDelayMs, fadeHeldContent);
+  }
+
+  @Override
+  public boolean next(FrameUpdate frame) {
+    int remaining = buffer.remaining();
+    if (remaining == 0) {
+      return false;
+    }
+    int imageCount =
+        remaining >= FRAME_HEADER_BYTES ? buffer.getShort(buffer.position() + 9) & 0xffff : 0;
+    if (remaining < FRAME_HEADER_BYTES + IMAGE_BYTES * imageCount) {
+      truncated = true;
+      return false;
+    }
+    frame.reset(buffer.getLong(), STATUSES[buffer.get()]);
+    // The image count, read above.
+    buffer.getShort();
+    for (int i = 0; i < imageCount; i++) {
+      ImageUpdate image = frame.addImage();
+      int index = buffer.getInt();
+      TrackingStatus status = STATUSES[buffer.get()];
+      float[] pose = image.getPose();
+      for (int j = 0; j < ImageUpdate.POSE_SIZE; j++) {
+        pose[j] = buffer.getFloat();
+      }
+      image.set(index, status, buffer.getFloat(), buffer.getFloat());
+    }
+    return true;
+  }
+
+  /** True if the log ends partway through a frame, which {@link #next} does not return. */
+  public boolean isTruncated() {
+    return truncated;
+  }
+
+  /** Goes back to the first frame, to replay the session again. */
+  public void rewind() {
+    buffer.position(firstFrame);
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab.tracking;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes frames to a session log, in the layout described in {@link SessionLogReader}. The
+ * configuration of the tracker that saw the frames is written first, so a replay makes the same
+ * decisions.
+ */
+public class SessionLogWriter implements Closeable {
+  private final DataOutputStream out;
+  private int frameCount;
+
+  public SessionLogWriter(OutputStream out, ImageTracker<?> tracker) throws IOException {
+    this.out = new DataOutputStream(new BufferedOutputStream(out));
+    this.out.writeInt(SessionLogReader.MAGIC);
+    this.out.writeInt(SessionLogReader.VERSION);
+    this.out.writeInt(tracker.getMaxLiveAnchors());
+    this.out.writeInt(tracker.getAcquireFrames());
+    this.out.writeLong(tracker.getGracePeriodMs());
+    this.out.writeLong(tracker.getFadeDelayMs());
+    this.out.writeBoolean(tracker.isFadeHeldContent());
+  }
+
+  public void write(FrameUpdate frame) throws IOException {
+    out.writeLong(frame.getTimestampNs());
+    out.writeByte(frame.getCameraStatus().ordinal());
+    out.writeShort(frame.getImageCount());
+    for (int i = 0; i < frame.getImageCount(); i++) {
+      ImageUpdate image = frame.getImage(i);
+      out.writeInt(image.getIndex());
+      out.writeByte(image.getStatus().ordinal());
+      float[] pose = image.getPose();
+      for (int j = 0; j < ImageUpdate.POSE_SIZE; j++) {
+        out.writeFloat(pose[j]);
+      }
+      out.writeFloat(image.getExtentX());
+      out.writeFloat(image.getExtentZ());
+    }
+    frameCount++;
+  }
+
+  public int getFrameCount() {
+    return frameCount;
+  }
+
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+}
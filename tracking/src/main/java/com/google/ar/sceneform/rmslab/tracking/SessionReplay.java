@@ -0,0 +1,186 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab.tracking;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Replays a session log through the {@link ImageTracker} on a plain JVM, as fast as possible, and
+ * prints how many decisions of each kind it made and how long each frame took.
+ *
+ * <p>The decision counts only depend on the log, so they can be compared between runs to catch
+ * behavior changes, while the timings track the cost of the tracking logic. Frame times are taken
+ * from the last iteration, once the JIT has warmed up.
+ *
+ * <p>Usage: {@code SessionReplay <session log> [iterations]}, or the {@code replaySession} Gradle
+ * task of this module.
+ */
+public class SessionReplay
+    implements ImageTracker.Listener<ImageUpdate>, TrackingStateMachine.Listener {
+  private long detectedCount;
+  private long acquiredCount;
+  private long revivedCount;
+  private long stoppedCount;
+  private long heldCount;
+  private long fadedCount;
+  private long releasedCount;
+  private long stateChangeCount;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: SessionReplay <session log> [iterations]");
+      System.exit(2);
+    }
+    SessionLogReader reader = SessionLogReader.open(new File(args[0]));
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+
+    FrameUpdate frame = new FrameUpdate();
+    int frameCount = 0;
+    while (reader.next(frame)) {
+      frameCount++;
+    }
+    if (reader.isTruncated()) {
+      System.err.println("The log ends partway through a frame, replaying up to the frame before");
+    }
+    long[] frameNanos = new long[frameCount];
+
+    SessionReplay replay = null;
+    long startNanos = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      reader.rewind();
+      replay = new SessionReplay();
+      ImageTracker<ImageUpdate> tracker =
+          new ImageTracker<>(replay, new TrackingStateMachine(replay));
+      reader.configure(tracker);
+      for (int f = 0; reader.next(frame); f++) {
+        long frameStartNanos = System.nanoTime();
+        dispatch(tracker, frame);
+        frameNanos[f] = System.nanoTime() - frameStartNanos;
+      }
+    }
+    long elapsedNanos = System.nanoTime() - startNanos;
+
+    System.out.println(replay);
+    Arrays.sort(frameNanos);
+    System.out.println(
+        String.format(
+            Locale.US,
+            "%d frames x %d iterations in %.1f ms, %.0f frames/s%n"
+                + "frame p50=%.2fus p99=%.2fus p99.9=%.2fus max=%.2fus",
+            frameCount,
+            iterations,
+            elapsedNanos / 1e6,
+            (double) frameCount * iterations / (elapsedNanos / 1e9),
+            percentile(frameNanos, 50) / 1e3,
+            percentile(frameNanos, 99) / 1e3,
+            percentile(frameNanos, 99.9) / 1e3,
+            percentile(frameNanos, 100) / 1e3));
+  }
+
+  /**
+   * Feeds one frame to the tracker the way the app's frame listener does: frames in which the
+   * camera is not tracking are skipped, and time is taken from the frame timestamp.
+   */
+  public static void dispatch(ImageTracker<ImageUpdate> tracker, FrameUpdate frame) {
+    if (frame.getCameraStatus() != TrackingStatus.TRACKING) {
+      return;
+    }
+    long nowMs = frame.getTimestampNs() / 1_000_000;
+    for (int i = 0; i < frame.getImageCount(); i++) {
+      ImageUpdate image = frame.getImage(i);
+      tracker.update(image, image.getIndex(), image.getStatus(), nowMs);
+    }
+    tracker.endFrame(nowMs);
+  }
+
+  private static long percentile(long[] sorted, double percentile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+    return sorted[Math.min(sorted.length, Math.max(1, rank)) - 1];
+  }
+
+  @Override
+  public void onDetected(int index) {
+    detectedCount++;
+  }
+
+  @Override
+  public void onAcquired(int index, ImageUpdate image) {
+    acquiredCount++;
+  }
+
+  @Override
+  public void onRevived(int index, ImageUpdate image) {
+    revivedCount++;
+  }
+
+  @Override
+  public void onStopped(int index) {
+    stoppedCount++;
+  }
+
+  @Override
+  public void onHeld(int index) {
+    heldCount++;
+  }
+
+  @Override
+  public void onFaded(int index) {
+    fadedCount++;
+  }
+
+  @Override
+  public void onReleased(int index) {
+    releasedCount++;
+  }
+
+  @Override
+  public void onImageTracked(int index) {}
+
+  @Override
+  public void onImageLost(int index) {}
+
+  @Override
+  public void onStateChanged(TrackingStateMachine.State state) {
+    stateChangeCount++;
+  }
+
+  @Override
+  public String toString() {
+    return "detected="
+        + detectedCount
+        + " acquired="
+        + acquiredCount
+        + " revived="
+        + revivedCount
+        + " stopped="
+        + stoppedCount
+        + " held="
+        + heldCount
+        + " faded="
+        + fadedCount
+        + " released="
+        + releasedCount
+        + " stateChanges="
+        + stateChangeCount;
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab.tracking;
+
+import java.util.BitSet;
+
+/**
+ * Turns the per-frame stream of augmented image updates into transition events.
+ *
+ * <p>The frame loop reports every TRACKING update and every released image, which happens many
+ * times a second. Listeners only hear about changes: an image becoming tracked, an image being
+ * lost, and the overall state moving between {@link State#SEARCHING} and {@link State#TRACKING}.
+ * The overall state is settled in {@link #endFrame}, so it changes at most once per frame no
+ * matter how many images were updated.
+ */
+public class TrackingStateMachine {
+
+  /** Overall state of the session. */
+  public enum State {
+    // No image is tracked, the user should be shown how to scan one.
+    SEARCHING,
+    // At least one image is tracked.
+    TRACKING
+  }
+
+  /** Receives transition events. All calls are made from the frame loop. */
+  public interface Listener {
+    void onImageTracked(int index);
+
+    void onImageLost(int index);
+
+    /** Called when the first image is tracked, or when all images are lost. */
+    void onStateChanged(State state);
+  }
+
+  private final Listener listener;
+
+  // Indices of images that are currently tracked.
+  private final BitSet tracked = new BitSet();
+  private int trackedCount;
+
+  private State state = State.SEARCHING;
+
+  private long trackingUpdateCount;
+  private long stateChangeCount;
+
+  public TrackingStateMachine(Listener listener) {
+    this.listener = listener;
+  }
+
+  /** Called for every TRACKING update of an image. */
+  public void onTracking(int index) {
+    trackingUpdateCount++;
+    if (!tracked.get(index)) {
+      tracked.set(index);
+      trackedCount++;
+      listener.onImageTracked(index);
+    }
+  }
+
+  /** Called when the content of an image is released. */
+  public void onLost(int index) {
+    if (tracked.get(index)) {
+      tracked.clear(index);
+      trackedCount--;
+      listener.onImageLost(index);
+    }
+  }
+
+  /** Settles the overall state once all updates of the frame have been reported. */
+  public void endFrame() {
+    State next = trackedCount == 0 ? State.SEARCHING : State.TRACKING;
+    if (next != state) {
+      state = next;
+      stateChangeCount++;
+      listener.onStateChanged(next);
+    }
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  public int getTrackedCount() {
+    return trackedCount;
+  }
+
+  /**
+   * Number of view updates saved by reacting to transitions only. Each TRACKING update used to
+   * update the view, now only each change of the overall state does.
+   */
+  public long getSavedUpdateCount() {
+    return trackingUpdateCount - stateChangeCount;
+  }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab.tracking;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ImageTrackerTest {
+  private final List<String> events = new ArrayList<>();
+  private ImageTracker<Integer> tracker;
+  private long nowMs;
+
+  @Before
+  public void setUp() {
+    tracker =
+        new ImageTracker<>(new RecordingListener(), new TrackingStateMachine(new NoOpListener()));
+    tracker.setMaxLiveAnchors(2);
+    tracker.setGracePeriod(3_000, 500, false);
+  }
+
+  @Test
+  public void trackedContentIsNeverEvicted() {
+    frame(tracking(0), tracking(1));
+    events.clear();
+
+    // A third image comes into view while both live images are still tracked.
+    for (int i = 0; i < 10; i++) {
+      frame(tracking(0), tracking(1), tracking(2));
+    }
+
+    assertEquals(Arrays.asList(), events);
+    assertEquals(2, tracker.getTrackedCount());
+    assertEquals(0, tracker.getEvictedCount());
+    assertEquals(10, tracker.getDeferredCount());
+  }
+
+  @Test
+  public void heldContentIsEvictedForNewImage() {
+    frame(tracking(0), tracking(1));
+    frame(paused(0), tracking(1));
+    events.clear();
+
+    frame(tracking(1), tracking(2));
+
+    assertEquals(Arrays.asList("released 0", "acquired 2"), events);
+    assertEquals(1, tracker.getEvictedCount());
+  }
+
+  @Test
+  public void leastRecentlyTrackedHeldImageIsEvicted() {
+    frame(tracking(0), tracking(1));
+    frame(tracking(1));
+    frame(paused(0), paused(1));
+    events.clear();
+
+    frame(tracking(2));
+
+    assertEquals(Arrays.asList("released 0", "acquired 2"), events);
+  }
+
+  @Test
+  public void waitingImageIsAcquiredOnceSlotFrees() {
+    tracker.setAcquireFrames(3);
+    for (int i = 0; i < 3; i++) {
+      frame(tracking(0), tracking(1));
+    }
+    for (int i = 0; i < 5; i++) {
+      frame(tracking(0), tracking(1), tracking(2));
+    }
+    events.clear();
+
+    // Image 2 has been tracked long enough, so it is acquired as soon as image 1 is lost.
+    frame(tracking(0), paused(1));
+    frame(tracking(0), tracking(2));
+
+    assertEquals(Arrays.asList("held 1", "released 1", "acquired 2"), events);
+  }
+
+  private void frame(Update... updates) {
+    nowMs += 33;
+    for (Update update : updates) {
+      tracker.update(update.index, update.index, update.status, nowMs);
+    }
+    tracker.endFrame(nowMs);
+  }
+
+  private static Update tracking(int index) {
+    return new Update(index, TrackingStatus.TRACKING);
+  }
+
+  private static Update paused(int index) {
+    return new Update(index, TrackingStatus.PAUSED);
+  }
+
+  private static final class Update {
+    final int index;
+    final TrackingStatus status;
+
+    Update(int index, TrackingStatus status) {
+      this.index = index;
+      this.status = status;
+    }
+  }
+
+  // Records the decisions that change the scene.
+  private final class RecordingListener implements ImageTracker.Listener<Integer> {
+    @Override
+    public void onDetected(int index) {}
+
+    @Override
+    public void onAcquired(int index, Integer image) {
+      events.add("acquired " + index);
+    }
+
+    @Override
+    public void onRevived(int index, Integer image) {
+      events.add("revived " + index);
+    }
+
+    @Override
+    public void onStopped(int index) {}
+
+    @Override
+    public void onHeld(int index) {
+      events.add("held " + index);
+    }
+
+    @Override
+    public void onFaded(int index) {}
+
+    @Override
+    public void onReleased(int index) {
+      events.add("released " + index);
+    }
+  }
+
+  private static final class NoOpListener implements TrackingStateMachine.Listener {
+    @Override
+    public void onImageTracked(int index) {}
+
+    @Override
+    public void onImageLost(int index) {}
+
+    @Override
+    public void onStateChanged(TrackingStateMachine.State state) {}
+  }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.ar.sceneform.rmslab.tracking;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+public class SessionLogTest {
+  private static final int FRAMES = 500;
+
+  @Test
+  public void readsBackWhatWasWritten() throws IOException {
+    FrameUpdate[] frames = generate(FRAMES);
+    SessionLogReader reader = new SessionLogReader(ByteBuffer.wrap(write(frames)));
+
+    FrameUpdate frame = new FrameUpdate();
+    for (FrameUpdate expected : frames) {
+      assertTrue(reader.next(frame));
+      assertFrameEquals(expected, frame);
+    }
+    assertFalse(reader.next(frame));
+    assertFalse(reader.isTruncated());
+  }
+
+  @Test
+  public void replaysWithTheRecordedConfiguration() throws IOException {
+    FrameUpdate[] frames = generate(FRAMES);
+    SessionReplay live = new SessionReplay();
+    ImageTracker<ImageUpdate> liveTracker = tracker(live);
+    liveTracker.setMaxLiveAnchors(3);
+    liveTracker.setAcquireFrames(2);
+    liveTracker.setGracePeriod(1_000, 200, true);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (SessionLogWriter writer = new SessionLogWriter(bytes, liveTracker)) {
+      for (FrameUpdate frame : frames) {
+        SessionReplay.dispatch(liveTracker, frame);
+        writer.write(frame);
+      }
+    }
+
+    SessionLogReader reader = new SessionLogReader(ByteBuffer.wrap(bytes.toByteArray()));
+    // Replayed twice, to check that rewinding starts over from the first frame.
+    for (int i = 0; i < 2; i++) {
+      reader.rewind();
+      SessionReplay replay = new SessionReplay();
+      ImageTracker<ImageUpdate> tracker = tracker(replay);
+      reader.configure(tracker);
+      FrameUpdate frame = new FrameUpdate();
+      while (reader.next(frame)) {
+        SessionReplay.dispatch(tracker, frame);
+      }
+      assertEquals(live.toString(), replay.toString());
+    }
+  }
+
+  @Test
+  public void stopsAtTheLastCompleteFrameOfACutLog() throws IOException {
+    FrameUpdate[] frames = generate(3);
+    byte[] full = write(frames);
+    int lastFrameStart = write(Arrays.copyOf(frames, 2)).length;
+
+    // Cut the log at every byte of the last frame.
+    for (int length = lastFrameStart; length < full.length; length++) {
+      SessionLogReader reader = new SessionLogReader(ByteBuffer.wrap(full, 0, length).slice());
+      FrameUpdate frame = new FrameUpdate();
+      assertTrue(reader.next(frame));
+      assertTrue(reader.next(frame));
+      assertFrameEquals(frames[1], frame);
+      assertFalse("cut at " + length, reader.next(frame));
+      assertEquals("cut at " + length, length > lastFrameStart, reader.isTruncated());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsACutHeader() throws IOException {
+    byte[] log = write(new FrameUpdate[0]);
+    new SessionLogReader(ByteBuffer.wrap(log, 0, log.length - 1).slice());
+  }
+
+  private static ImageTracker<ImageUpdate> tracker(SessionReplay listener) {
+    return new ImageTracker<>(listener, new TrackingStateMachine(listener));
+  }
+
+  private static byte[] write(FrameUpdate[] frames) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (SessionLogWriter writer = new SessionLogWriter(bytes, tracker(new SessionReplay()))) {
+      for (FrameUpdate frame : frames) {
+        writer.write(frame);
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  private static FrameUpdate[] generate(int count) {
+    Random random = new Random(count);
+    TrackingStatus[] statuses = TrackingStatus.values();
+    FrameUpdate[] frames = new FrameUpdate[count];
+    for (int f = 0; f < count; f++) {
+      FrameUpdate frame = new FrameUpdate();
+      TrackingStatus cameraStatus =
+          random.nextInt(20) == 0 ? TrackingStatus.PAUSED : TrackingStatus.TRACKING;
+      frame.reset(f * 33_333_333L, cameraStatus);
+      int imageCount = 1 + random.nextInt(4);
+      for (int i = 0; i < imageCount; i++) {
+        ImageUpdate image = frame.addImage();
+        float[] pose = image.getPose();
+        for (int j = 0; j < ImageUpdate.POSE_SIZE; j++) {
+          pose[j] = random.nextFloat();
+        }
+        image.set(
+            random.nextInt(10),
+            statuses[random.nextInt(statuses.length)],
+            random.nextFloat(),
+            random.nextFloat());
+      }
+      frames[f] = frame;
+    }
+    return frames;
+  }
+
+  private static void assertFrameEquals(FrameUpdate expected, FrameUpdate actual) {
+    assertEquals(expected.getTimestampNs(), actual.getTimestampNs());
+    assertEquals(expected.getCameraStatus(), actual.getCameraStatus());
+    assertEquals(expected.getImageCount(), actual.getImageCount());
+    for (int i = 0; i < expected.getImageCount(); i++) {
+      ImageUpdate expectedImage = expected.getImage(i);
+      ImageUpdate actualImage = actual.getImage(i);
+      assertEquals(expectedImage.getIndex(), actualImage.getIndex());
+      assertEquals(expectedImage.getStatus(), actualImage.getStatus());
+      assertArrayEquals(expectedImage.getPose(), actualImage.getPose(), 0);
+      assertEquals(expectedImage.getExtentX(), actualImage.getExtentX(), 0);
+      assertEquals(expectedImage.getExtentZ(), actualImage.getExtentZ(), 0);
+    }
+  }
+}